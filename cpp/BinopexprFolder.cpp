@@ -0,0 +1,112 @@
+//
+// Nests the flat binopexpr chains produced by the parser into left op right
+// contexts by operator precedence.
+//
+
+#include "BinopexprFolder.h"
+
+using namespace std;
+using namespace antlr4;
+
+BinopexprFolder::BinopexprFolder() {
+
+}
+
+BinopexprFolder::~BinopexprFolder() {
+
+}
+
+void BinopexprFolder::exitBinopexpr(BSVParser::BinopexprContext *ctx) {
+    if (ctx->children.size() > 1)
+        fold(ctx);
+}
+
+// Same levels as BinopexprFolder.java, loosest first; all left associative.
+int BinopexprFolder::precedence(const string &op) {
+    static const map<string, int> levels = {
+            {"||", 0},
+            {"&&", 1}, {"&&&", 1},
+            {"|", 2},
+            {"&", 3}, {"^", 3}, {"^~", 3}, {"~^", 3},
+            {"==", 4}, {"!=", 4},
+            {"<", 5}, {"<=", 5}, {">", 5}, {">=", 5},
+            {"<<", 6}, {">>", 6},
+            {"+", 7}, {"-", 7},
+            {"*", 8}, {"/", 8}, {"%", 8},
+            {"**", 9}
+    };
+    return levels.at(op);
+}
+
+void BinopexprFolder::fold(BSVParser::BinopexprContext *ctx) {
+    vector<BSVParser::UnopexprContext *> operands;
+    vector<tree::TerminalNode *> operators;
+    for (tree::ParseTree *child : ctx->children) {
+        if (operands.empty()) {
+            BSVParser::UnopexprContext *operand = dynamic_cast<BSVParser::UnopexprContext *>(child);
+            if (!operand)
+                return;
+            operands.push_back(operand);
+            continue;
+        }
+        // leave chains damaged by syntax errors as they are
+        BSVParser::BinoptailContext *tail = dynamic_cast<BSVParser::BinoptailContext *>(child);
+        if (!tail || !tail->op || !tail->unopexpr() || tail->children.empty())
+            return;
+        tree::TerminalNode *op = dynamic_cast<tree::TerminalNode *>(tail->children[0]);
+        if (!op)
+            return;
+        operators.push_back(op);
+        operands.push_back(tail->unopexpr());
+    }
+
+    size_t next = 0;
+    BSVParser::BinopexprContext *root = climb(ctx, operands, operators, next, 0);
+    ctx->children = root->children;
+    for (tree::ParseTree *child : ctx->children)
+        child->parent = ctx;
+    ctx->left = root->left;
+    ctx->op = root->op;
+    ctx->right = root->right;
+}
+
+BSVParser::BinopexprContext *BinopexprFolder::climb(BSVParser::BinopexprContext *ctx,
+                                                    const vector<BSVParser::UnopexprContext *> &operands,
+                                                    const vector<tree::TerminalNode *> &operators,
+                                                    size_t &next, int minPrecedence) {
+    BSVParser::UnopexprContext *operand = operands[next];
+    BSVParser::BinopexprContext *lhs = newContext(ctx);
+    lhs->children.push_back(operand);
+    operand->parent = lhs;
+    lhs->start = operand->start;
+    lhs->stop = operand->stop;
+
+    while (next < operators.size()) {
+        tree::TerminalNode *op = operators[next];
+        int prec = precedence(op->getText());
+        if (prec < minPrecedence)
+            break;
+        next++;
+        BSVParser::BinopexprContext *rhs = climb(ctx, operands, operators, next, prec + 1);
+        BSVParser::BinopexprContext *node = newContext(ctx);
+        node->left = lhs;
+        node->op = op->getSymbol();
+        node->right = rhs;
+        node->children.push_back(lhs);
+        node->children.push_back(op);
+        node->children.push_back(rhs);
+        lhs->parent = node;
+        op->parent = node;
+        rhs->parent = node;
+        node->start = lhs->start;
+        node->stop = rhs->stop;
+        lhs = node;
+    }
+    return lhs;
+}
+
+BSVParser::BinopexprContext *BinopexprFolder::newContext(BSVParser::BinopexprContext *ctx) {
+    nodes.push_back(unique_ptr<BSVParser::BinopexprContext>(
+            new BSVParser::BinopexprContext(ctx, ctx->invokingState)));
+    return nodes.back().get();
+}
@@ -0,0 +1,42 @@
+//
+// Nests the flat binopexpr chains produced by the parser into left op right
+// contexts by operator precedence.
+//
+
+#ifndef BSV_PARSER_BINOPEXPRFOLDER_H
+#define BSV_PARSER_BINOPEXPRFOLDER_H
+
+#include <map>
+#include <memory>
+#include <string>
+#include <vector>
+
+#include <BSVBaseListener.h>
+
+// Add as a parse listener; the folder owns the contexts it creates, so it
+// must live as long as the parse tree.
+class BinopexprFolder : public BSVBaseListener {
+public:
+    BinopexprFolder();
+
+    virtual ~BinopexprFolder();
+
+    void exitBinopexpr(BSVParser::BinopexprContext *ctx) override;
+
+private:
+    std::vector<std::unique_ptr<BSVParser::BinopexprContext>> nodes;
+
+    void fold(BSVParser::BinopexprContext *ctx);
+
+    BSVParser::BinopexprContext *climb(BSVParser::BinopexprContext *ctx,
+                                       const std::vector<BSVParser::UnopexprContext *> &operands,
+                                       const std::vector<antlr4::tree::TerminalNode *> &operators,
+                                       size_t &next, int minPrecedence);
+
+    BSVParser::BinopexprContext *newContext(BSVParser::BinopexprContext *ctx);
+
+    static int precedence(const std::string &op);
+};
+
+
+#endif //BSV_PARSER_BINOPEXPRFOLDER_H
@@ -6,6 +6,7 @@
 #include <sys/stat.h>
 #include <fcntl.h>
 #include <unistd.h>
+#include "BinopexprFolder.h"
 #include "BSVPreprocessor.h"
 #include "TypeChecker.h"
 
@@ -170,6 +171,8 @@ BSVParser::PackagedefContext *TypeChecker::analyzePackage(const string &packageN
     }
 
     BSVParser parser(&tokens);
+    BinopexprFolder binopexprFolder;
+    parser.addParseListener(&binopexprFolder);
     //parser.addErrorListener(&ConsoleErrorListener::INSTANCE);
     BSVParser::PackagedefContext *tree = parser.packagedef();
     packageScopes[packageName] = lexicalScope;
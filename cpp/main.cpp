@@ -19,6 +19,7 @@
 
 #include "antlr4-runtime.h"
 #include "AstWriter.h"
+#include "BinopexprFolder.h"
 #include "BSVLexer.h"
 #include "BSVParser.h"
 #include "BSVPreprocessor.h"
@@ -63,6 +64,8 @@ int processBSVFile(const string &inputFileName, shared_ptr<TypeChecker> typeChec
     tokens.fill();
 
     BSVParser parser(&tokens);
+    BinopexprFolder binopexprFolder;
+    parser.addParseListener(&binopexprFolder);
     //parser.addErrorListener(&ConsoleErrorListener::INSTANCE);
     BSVParser::PackagedefContext *tree = parser.packagedef();
     int numberOfSyntaxErrors = parser.getNumberOfSyntaxErrors();
@@ -294,18 +294,13 @@ caseexprdefaultitem :
 patterncond :
     ('&&&' expression)
     ;
-binopexpr :
-       left=binopexpr op=('**' | '**') right=binopexpr
-    |  left=binopexpr op=('*' | '/' | '%' | '**') right=binopexpr
-    |  left=binopexpr op=('+' | '-') right=binopexpr
-    |  left=binopexpr op=('<<' | '>>') right=binopexpr
-    |  left=binopexpr op=('<' | '<=' | '>' | '>=') right=binopexpr
-    |  left=binopexpr op=('==' | '!=') right=binopexpr
-    |  left=binopexpr op=('&' | '^' | '^~' | '~^') right=binopexpr
-    |  left=binopexpr op=('|' | '|') right=binopexpr
-    |  left=binopexpr op=('&&' | '&&&') right=binopexpr
-    |  left=binopexpr op=('||' | '||') right=binopexpr
-    | unopexpr
+// parsed flat; BinopexprFolder nests the tails into left op right by precedence
+binopexpr locals [BinopexprContext left, Token op, BinopexprContext right] :
+    unopexpr binoptail*
+    ;
+binoptail :
+    op=('**' | '*' | '/' | '%' | '+' | '-' | '<<' | '>>' | '<' | '<=' | '>' | '>='
+        | '==' | '!=' | '&' | '^' | '^~' | '~^' | '|' | '&&' | '&&&' | '||') unopexpr
     ;
 unopexpr : 
      op=('!' | '~' | '&' | '~&' | '|' | '~|' | '^' | '^~' | '~^') exprprimary
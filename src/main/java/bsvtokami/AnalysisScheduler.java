@@ -0,0 +1,231 @@
+package bsvtokami;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/*
+ * Analyzes the import closure of a package on a pool of worker threads.
+ *
+ * The closure is parsed first, on the calling thread, to build the import
+ * DAG. Imports that the compiler can load from the library snapshot or
+ * their interface files, as importPackage would, are loaded then and are
+ * finished from the start. A package is then analyzed, and its IR generated, as soon as all of
+ * the packages it imports are finished, each with its own StaticAnalysis;
+ * the analyzers share only the map of finished package scopes that imports
+ * are resolved from.
+ *
+ * At most maxInFlight packages are analyzed at once, and no new package is
+ * started while the heap is more than three quarters full unless nothing
+ * else is running.
+ */
+class AnalysisScheduler {
+    private static Logger logger = Logger.getGlobal();
+
+    private static class PackageNode {
+        final String pkgName;
+        final String filename;
+        final boolean translateToKami;
+        BSVParser.PackagedefContext packagedef;
+        final ArrayList<PackageNode> dependents = new ArrayList<>();
+        int pendingImports;
+        boolean finished;
+        boolean failed;
+
+        PackageNode(String pkgName, String filename, boolean translateToKami) {
+            this.pkgName = pkgName;
+            this.filename = filename;
+            this.translateToKami = translateToKami;
+        }
+    }
+
+    private final Compiler compiler;
+    private final int threads;
+    private final int maxInFlight;
+    private final Map<String, SymbolTable> packageScopes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, StaticAnalysis> analyzers = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, PackageNode> nodes = new LinkedHashMap<>();
+
+    AnalysisScheduler(Compiler compiler, int threads, int maxInFlight) {
+        this.compiler = compiler;
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /*
+     * The analyzer holding the scopes and types of a package analyzed here.
+     */
+    StaticAnalysis analyzer(String pkgName) {
+        return analyzers.get(pkgName);
+    }
+
+    BSVParser.PackagedefContext analyze(String pkgName, String filename) throws IOException, InterruptedException {
+        ArrayList<PackageNode> added = new ArrayList<>();
+        PackageNode root = addPackage(pkgName, filename, true, added);
+        run(added);
+        for (PackageNode node: added) {
+            if (!node.finished)
+                System.err.println(String.format("ERROR: package %s was not analyzed: import cycle", node.pkgName));
+        }
+        if (root.packagedef != null)
+            return root.packagedef;
+        return (BSVParser.PackagedefContext)compiler.packages.get(pkgName);
+    }
+
+    /*
+     * Parses a package and, recursively, the packages it imports that have
+     * not been seen yet, linking each to the packages that import it.
+     */
+    private PackageNode addPackage(String pkgName, String filename, boolean translateToKami,
+                                   List<PackageNode> added) throws IOException {
+        PackageNode node = nodes.get(pkgName);
+        if (node != null)
+            return node;
+        node = new PackageNode(pkgName, filename, translateToKami);
+        nodes.put(pkgName, node);
+        added.add(node);
+        node.packagedef = (BSVParser.PackagedefContext)compiler.parsePackage(pkgName, filename);
+        if (compiler.dotstream != null)
+            compiler.dotstream.println(String.format("    n%s[label=%s];", pkgName, pkgName));
+
+        LinkedHashSet<String> imports = new LinkedHashSet<>();
+        if (!pkgName.equals("Prelude"))
+            imports.add("Prelude");
+        for (BSVParser.PackagestmtContext stmt: node.packagedef.packagestmt()) {
+            BSVParser.ImportdeclContext importdecl = stmt.importdecl();
+            if (importdecl == null)
+                continue;
+            for (BSVParser.ImportitemContext importitem: importdecl.importitem()) {
+                String importedPkgName = importitem.pkgname.getText();
+                if (compiler.dotstream != null)
+                    compiler.dotstream.println(String.format("    n%s -> n%s;", pkgName, importedPkgName));
+                imports.add(importedPkgName);
+            }
+        }
+        for (String importedPkgName: imports) {
+            PackageNode imported = addImport(importedPkgName, added);
+            // an import that failed in an earlier analyze is finished, so is not waited for
+            if (imported.failed)
+                node.failed = true;
+            if (!imported.finished) {
+                imported.dependents.add(node);
+                node.pendingImports++;
+            }
+        }
+        return node;
+    }
+
+    /*
+     * The node of an imported package: one seen before, a finished one for
+     * a package the compiler has or can load without analyzing it, or a
+     * new one from addPackage.
+     */
+    private PackageNode addImport(String pkgName, List<PackageNode> added) throws IOException {
+        PackageNode node = nodes.get(pkgName);
+        if (node != null)
+            return node;
+        String filename = compiler.findPackageFile(pkgName);
+        SymbolTable packageScope = compiler.loadPackage(pkgName, filename);
+        if (packageScope == null)
+            return addPackage(pkgName, filename, !pkgName.equals("Prelude"), added);
+        node = new PackageNode(pkgName, filename, false);
+        node.finished = true;
+        nodes.put(pkgName, node);
+        packageScopes.put(pkgName, packageScope);
+        return node;
+    }
+
+    private void run(List<PackageNode> added) throws InterruptedException {
+        ArrayDeque<PackageNode> ready = new ArrayDeque<>();
+        for (PackageNode node: added) {
+            if (node.pendingImports == 0)
+                ready.add(node);
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        CompletionService<PackageNode> completions = new ExecutorCompletionService<>(workers);
+        long startTime = System.nanoTime();
+        int inFlight = 0;
+        int mostInFlight = 0;
+        int deferred = 0;
+        int analyzed = 0;
+        try {
+            while (!ready.isEmpty() || inFlight > 0) {
+                while (!ready.isEmpty() && inFlight < maxInFlight) {
+                    if (inFlight > 0 && heapNearlyFull()) {
+                        deferred++;
+                        break;
+                    }
+                    completions.submit(new AnalysisTask(ready.remove()));
+                    inFlight++;
+                    mostInFlight = Math.max(mostInFlight, inFlight);
+                }
+                PackageNode node;
+                try {
+                    node = completions.take().get();
+                } catch (ExecutionException ex) {
+                    throw new RuntimeException(ex.getCause());
+                }
+                inFlight--;
+                analyzed++;
+                node.finished = true;
+                if (!node.failed) {
+                    // so that interfaces loaded later can import it
+                    compiler.staticAnalyzer.addPackageScope(node.pkgName, packageScopes.get(node.pkgName));
+                    compiler.packageFinished(node.pkgName, analyzers.get(node.pkgName));
+                    if (compiler.heapBudget != null) {
+                        // compiler.packages and the heap budget hold them until they are evicted
+                        node.packagedef = null;
+                        analyzers.remove(node.pkgName);
+                    }
+                }
+                for (PackageNode dependent: node.dependents) {
+                    dependent.failed |= node.failed;
+                    if (--dependent.pendingImports == 0)
+                        ready.add(dependent);
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        System.err.println(String.format("analyzed %d packages on %d threads in %.1f ms, at most %d in flight, %d starts deferred for memory",
+                                         analyzed, threads, (System.nanoTime() - startTime) / 1.0e6, mostInFlight, deferred));
+    }
+
+    private static boolean heapNearlyFull() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return used > runtime.maxMemory() / 4 * 3;
+    }
+
+    private class AnalysisTask implements Callable<PackageNode> {
+        private final PackageNode node;
+
+        AnalysisTask(PackageNode node) {
+            this.node = node;
+        }
+
+        @Override
+        public PackageNode call() {
+            if (node.failed) {
+                System.err.println(String.format("ERROR: skipping package %s: an import failed", node.pkgName));
+                return node;
+            }
+            System.err.println("STARTPACKAGE: " + node.pkgName);
+            try {
+                StaticAnalysis analyzer = new StaticAnalysis(packageScopes);
+                analyzer.reachability = compiler.reachability;
+                compiler.visitPackage(analyzer, node.pkgName, node.packagedef);
+                analyzers.put(node.pkgName, analyzer);
+                if (node.translateToKami)
+                    compiler.generateIR(node.pkgName, node.filename, node.packagedef, analyzer);
+            } catch (Exception | AssertionError e) {
+                node.failed = true;
+                logger.severe(String.format("Analysis of package %s failed: %s", node.pkgName, e));
+                e.printStackTrace();
+            }
+            System.err.println("ENDPACKAGE: " + node.pkgName);
+            return node;
+        }
+    }
+}
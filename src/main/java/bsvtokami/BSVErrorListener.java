@@ -0,0 +1,56 @@
+package bsvtokami;
+
+import java.util.BitSet;
+import java.util.logging.Logger;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.ATNConfigSet;
+import org.antlr.v4.runtime.dfa.DFA;
+
+class BSVErrorListener implements ANTLRErrorListener {
+    private static Logger logger = Logger.getGlobal();
+    // whether to log ambiguities and full context predictions, when profiling
+    private final boolean profile;
+
+    BSVErrorListener(boolean profile) {
+	this.profile = profile;
+    }
+
+    @Override
+    public void syntaxError(Recognizer<?,?> recognizer, Object offendingSymbol, int line, int charPositionInLine, String msg, RecognitionException e) {
+	logger.severe(String.format("Syntax error: %s at line %s:%d:%d",
+				    msg, recognizer.getInputStream().getSourceName(), line, charPositionInLine));
+    }
+
+    @Override
+    public void reportAmbiguity(Parser recognizer, DFA dfa, int startIndex, int stopIndex, boolean exact, BitSet ambigAlts, ATNConfigSet configs) {
+	if (!profile)
+	    return;
+	logger.fine(String.format("Ambiguity in %s decision %d alts %s at %s",
+				  ruleName(recognizer, dfa), dfa.decision, ambigAlts, location(recognizer, startIndex)));
+    }
+
+    @Override
+    public void reportAttemptingFullContext(Parser recognizer, DFA dfa, int startIndex, int stopIndex, BitSet conflictingAlts, ATNConfigSet configs) {
+	if (!profile)
+	    return;
+	logger.fine(String.format("Full context prediction in %s decision %d alts %s at %s",
+				  ruleName(recognizer, dfa), dfa.decision, conflictingAlts, location(recognizer, startIndex)));
+    }
+
+    @Override
+    public void reportContextSensitivity(Parser recognizer, DFA dfa, int startIndex, int stopIndex, int prediction, ATNConfigSet configs) {
+	if (!profile)
+	    return;
+	logger.fine(String.format("Context sensitivity in %s decision %d alt %d at %s",
+				  ruleName(recognizer, dfa), dfa.decision, prediction, location(recognizer, startIndex)));
+    }
+
+    private static String ruleName(Parser recognizer, DFA dfa) {
+	return recognizer.getRuleNames()[dfa.atnStartState.ruleIndex];
+    }
+
+    private static String location(Parser recognizer, int tokenIndex) {
+	return PreprocessedTokenSource.sourceLocation(recognizer.getTokenStream().get(tokenIndex));
+    }
+}
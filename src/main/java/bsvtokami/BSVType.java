@@ -1,6 +1,7 @@
 package bsvtokami;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class InferenceError extends Exception {
     public InferenceError(String msg) {super(msg);}
@@ -13,15 +14,47 @@ public class BSVType {
     public List<BSVType> params;
     public BSVType instance;
 
-    private static int count = 0;
+    // names type variables made outside the analysis or translation of a package
+    private static AtomicInteger count = new AtomicInteger();
+    private static final ThreadLocal<VariableNames> variableNames = new ThreadLocal<>();
     private static boolean skipUnify = false;
     private static boolean traceGetInstance = false;
 
+    /*
+     * Names the fresh type variables of one package tvarN$Pkg, counting from
+     * zero, so that the names, which can end up in the IR, do not depend on
+     * which packages were analyzed before or alongside it. The compiler keeps
+     * one per package and installs it with use on the thread analyzing or
+     * translating the package.
+     */
+    static class VariableNames {
+	private final String pkgName;
+	private final AtomicInteger count = new AtomicInteger();
+
+	VariableNames(String pkgName) {
+	    this.pkgName = pkgName;
+	}
+
+	private String next() {
+	    return String.format("tvar%d$%s", count.getAndIncrement(), pkgName);
+	}
+    }
+
+    /*
+     * Makes names the fresh type variable names of the current thread, and
+     * returns the ones it replaces, to be restored afterwards.
+     */
+    static VariableNames use(VariableNames names) {
+	VariableNames previous = variableNames.get();
+	variableNames.set(names);
+	return previous;
+    }
+
     private void init(String name, boolean numeric) {
 	params = new ArrayList<BSVType>();
 	if (name == null) {
-	    name = "tvar" + count;
-	    count++;
+	    VariableNames names = variableNames.get();
+	    name = (names != null) ? names.next() : "tvar" + count.getAndIncrement();
 	}
 	if (name.equals("void"))
 	    name = "Void";
@@ -180,6 +213,26 @@ public class BSVType {
     public void unify(BSVType t) throws InferenceError {
 	if (skipUnify)
 	    return;
+	if (CompilerEvents.sampleUnify()) {
+	    CompilerEvents.Unify event = new CompilerEvents.Unify();
+	    event.begin();
+	    try {
+		unifyTypes(t);
+	    } catch (InferenceError e) {
+		event.failed = true;
+		throw e;
+	    } finally {
+		event.end();
+		event.left = prune().name;
+		event.right = t.prune().name;
+		event.commit();
+	    }
+	    return;
+	}
+	unifyTypes(t);
+    }
+
+    private void unifyTypes(BSVType t) throws InferenceError {
         BSVType a = prune();
         BSVType b = t.prune();
 	if (a.name.equals("Maybe") || b.name.equals("Maybe"))
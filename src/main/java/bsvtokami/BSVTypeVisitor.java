@@ -2,6 +2,7 @@ package bsvtokami;
 
 import org.antlr.v4.runtime.tree.AbstractParseTreeVisitor;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
 import java.util.*;
 import java.util.logging.Logger;
 
@@ -21,6 +22,8 @@ public class BSVTypeVisitor extends AbstractParseTreeVisitor<BSVType> implements
     private static Logger logger = Logger.getGlobal();
     private static boolean callUnify = true;
     private static boolean traceEval = false;
+    // nesting of visit calls, so that -phasereport times only the outermost
+    private int visitDepth = 0;
 
     BSVTypeVisitor(StaticAnalysis staticAnalyzer) {
         this.staticAnalyzer = staticAnalyzer;
@@ -40,6 +43,24 @@ public class BSVTypeVisitor extends AbstractParseTreeVisitor<BSVType> implements
 	assert scopeStack.size() > 0; // nobody should pop the global scope
     }
 
+    void forget(ParserRuleContext ctx) {
+	types.remove(ctx);
+    }
+
+    @Override public BSVType visit(ParseTree tree) {
+	if (!PhaseReport.enabled)
+	    return super.visit(tree);
+	long[] start = (visitDepth == 0) ? PhaseReport.sample(false) : null;
+	visitDepth++;
+	try {
+	    return super.visit(tree);
+	} finally {
+	    visitDepth--;
+	    if (start != null)
+		PhaseReport.addInference(start);
+	}
+    }
+
     BSVType dereferenceTypedef(BSVType bsvtype) {
         assert scope != null;
         assert bsvtype != null;
@@ -221,7 +242,8 @@ public class BSVTypeVisitor extends AbstractParseTreeVisitor<BSVType> implements
                 p.add(methodtype);
                 methodtype = new BSVType("Function", p);
             }
-            logger.fine("methodproto " + ctx.name.getText() + " : " + methodtype);
+            if (Trace.on(Trace.TYPES))
+                Trace.fine(Trace.TYPES, "methodproto %s : %s", ctx.name.getText(), methodtype);
 	    types.put(ctx, methodtype);
             return methodtype;
         }
@@ -343,7 +365,7 @@ public class BSVTypeVisitor extends AbstractParseTreeVisitor<BSVType> implements
         @Override public BSVType visitTypedefstruct(BSVParser.TypedefstructContext ctx) {
             BSVParser.TypedeftypeContext typedeftype = ctx.typedeftype();
             BSVType bsvtype = visit(typedeftype);
-            logger.fine(String.format("typedefstruct %s", bsvtype.name));
+            Trace.fine(Trace.TYPES, "typedefstruct %s", bsvtype.name);
             SymbolTable fieldMappings = new SymbolTable(scope, SymbolTable.ScopeType.Declaration, bsvtype.name);
             for (BSVParser.StructmemberContext member: ctx.structmember()) {
                 assert member.subunion() == null;
@@ -352,8 +374,7 @@ public class BSVTypeVisitor extends AbstractParseTreeVisitor<BSVType> implements
                     fieldMappings.bind(member.lowerCaseIdentifier().getText(), membertype);
                 }
             }
-	    logger.fine(String.format("Defining struct %s in scope %s %s",
-				      bsvtype.name, scope.name, scope));
+	    Trace.fine(Trace.TYPES, "Defining struct %s in scope %s %s", bsvtype.name, scope.name, scope);
             scope.bindType(null, bsvtype.name, bsvtype, fieldMappings)
 		.setSymbolType(SymbolType.Struct);
             return bsvtype;
@@ -434,14 +455,15 @@ public class BSVTypeVisitor extends AbstractParseTreeVisitor<BSVType> implements
 System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhstype + "ZZDIM" + ctx.arraydims().expression().size());
             }
 	    //jca assert ctx.arraydims().expression().size() == 0;
-            logger.fine("actiondecl " + ctx.var.getText() + " <- " + bsvtype);
+            if (Trace.on(Trace.TYPES))
+                Trace.fine(Trace.TYPES, "actiondecl %s <- %s", ctx.var.getText(), bsvtype);
             try {
 		BSVType actiontype = new BSVType("ActionValue", bsvtype);
 		System.err.println(String.format("actiontype %1$s rhstype %2$s", actiontype, rhstype));
 		actiontype.unify(rhstype);
 		System.err.println(String.format("   unified %1$s rhstype %2$s", actiontype, rhstype));
             } catch (InferenceError e) {
-                logger.fine(e.toString());
+                Trace.fine(Trace.TYPES, "%s", e);
             }
 	    types.put(ctx, bsvtype);
             return bsvtype;
@@ -538,7 +560,8 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
          * {@link #visitChildren} on {@code ctx}.</p>
          */
         @Override public BSVType visitModuledef(BSVParser.ModuledefContext ctx) {
-            logger.fine("moduledef " + ctx.moduleproto().name.getText());
+            if (Trace.on(Trace.TYPES))
+                Trace.fine(Trace.TYPES, "moduledef %s", ctx.moduleproto().name.getText());
             return visitChildren(ctx);
         }
         /**
@@ -569,7 +592,8 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
                 p.add(moduletype);
                 moduletype = new BSVType("Function", p);
             }
-            logger.fine("moduleproto " + ctx.name.getText() + " : " + moduletype);
+            if (Trace.on(Trace.TYPES))
+                Trace.fine(Trace.TYPES, "moduleproto %s : %s", ctx.name.getText(), moduletype);
 	    types.put(ctx, moduletype);
             return moduletype;
         }
@@ -652,7 +676,7 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
             try {
                 exprtype.unify(booltype);
             } catch (InferenceError e) {
-                logger.fine(e.toString());
+                Trace.fine(Trace.TYPES, "%s", e);
                 System.err.println(e.toString() + " at " + StaticAnalysis.sourceLocation(ctx));
             }
             types.put(ctx, exprtype);
@@ -686,7 +710,7 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
             try {
                 exprtype.unify(booltype);
             } catch (InferenceError e) {
-                logger.fine(e.toString());
+                Trace.fine(Trace.TYPES, "%s", e);
                 System.err.println(e.toString() + " at " + StaticAnalysis.sourceLocation(ctx));
             }
             types.put(ctx, exprtype);
@@ -748,18 +772,19 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
         @Override public BSVType visitLvalue(BSVParser.LvalueContext ctx) {
             BSVParser.LvalueContext lvalue = ctx.lvalue();
             if (lvalue != null) {
-                logger.fine("computing type of lvalue " + lvalue.getText());
+                if (Trace.on(Trace.TYPES))
+                    Trace.fine(Trace.TYPES, "computing type of lvalue %s", lvalue.getText());
                 BSVType lvaluetype = visit(lvalue);
                 if (ctx.lowerCaseIdentifier() != null) {
                     String interfaceName = lvaluetype.name;
                     String subname = ctx.lowerCaseIdentifier().getText();
                     SymbolTableEntry entry = scope.lookupType(interfaceName);
-                    logger.fine("lvalue field " + interfaceName + "." + subname + "    " + lvaluetype);
+                    Trace.fine(Trace.TYPES, "lvalue field %s.%s    %s", interfaceName, subname, lvaluetype);
                     if (entry != null) {
                         SymbolTableEntry subentry = entry.mappings.lookup(subname);
                         if (subentry != null) {
                             // FIXME: instantiate
-                            logger.fine("Subscript " + interfaceName + "." + subname + " : " + subentry.type);
+                            Trace.fine(Trace.TYPES, "Subscript %s.%s : %s", interfaceName, subname, subentry.type);
                             return subentry.type;
                         }
                     }
@@ -913,7 +938,7 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
 			returnType.unify(itemtype);
                 }
             } catch (InferenceError e) {
-                logger.fine(e.toString());
+                Trace.fine(Trace.TYPES, "%s", e);
             }
 	    types.put(ctx, returnType);
             return returnType;
@@ -935,7 +960,7 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
 		    resultType.unify(visit(ctx.expression(1)));
 		    resultType.unify(visit(ctx.expression(2)));
 		} catch (InferenceError e) {
-		    logger.fine(e.toString());
+		    Trace.fine(Trace.TYPES, "%s", e);
 		}
 	    }
 	    types.put(ctx, resultType);
@@ -1029,7 +1054,7 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
 		    if (callUnify)
 			bsvtype.unify(new BSVType("Bool"));
                 } catch (InferenceError e) {
-                    logger.fine(e.toString());
+                    Trace.fine(Trace.TYPES, "%s", e);
                 }
             }
             if (op.equals("&") || op.equals("|") || op.equals("~&") || op.equals("~|")
@@ -1038,7 +1063,7 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
 		    if (callUnify)
 			bsvtype.unify(new BSVType("Bit", new BSVType(null, true)));
                 } catch (InferenceError e) {
-                    logger.fine(e.toString());
+                    Trace.fine(Trace.TYPES, "%s", e);
                 }
                 return new BSVType("Bit", new BSVType(1));
             }
@@ -1063,7 +1088,8 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
                     continue;
                 }
                 exprtype = dereferenceTypedef(exprtype);
-                logger.fine(String.format("bitconcat %s type %s", expr.getText(), exprtype));
+                if (Trace.on(Trace.TYPES))
+                    Trace.fine(Trace.TYPES, "bitconcat %s type %s", expr.getText(), exprtype);
                 if (exprtype.params.size() == 0) {
                     widthKnown = false;
                     continue;
@@ -1075,11 +1101,13 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
                     continue;
                 }
                 widthtype = dereferenceTypedef(widthtype);
-                logger.fine(String.format("bitconcat %s type %s", expr.getText(), widthtype));
+                if (Trace.on(Trace.TYPES))
+                    Trace.fine(Trace.TYPES, "bitconcat %s type %s", expr.getText(), widthtype);
                 width += Integer.parseInt(widthtype.name);
             }
-            logger.fine(String.format("bitconcat %s width %d known %s at %s",
-                                             ctx.getText(), width, widthKnown, StaticAnalysis.sourceLocation(ctx)));
+            if (Trace.on(Trace.TYPES))
+                Trace.fine(Trace.TYPES, "bitconcat %s width %d known %s at %s",
+                                        ctx.getText(), width, widthKnown, StaticAnalysis.sourceLocation(ctx));
 	    BSVType bsvtype = (widthKnown)
 		? new BSVType("Bit", new BSVType(width))
 		: new BSVType("Bit", new BSVType(null, true));
@@ -1111,10 +1139,12 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
             }
             assert entry != null || varName.startsWith("$")
 		: String.format("No symbol table entry for %s at %s", varName, StaticAnalysis.sourceLocation(ctx));
-            logger.fine("var expr " + varName + " entry " + entry + " : " + ((entry != null) ? entry.type : ""));
-            if (entry != null && entry.instances != null) {
+            if (Trace.on(Trace.TYPES))
+                Trace.fine(Trace.TYPES, "var expr %s entry %s : %s",
+                                        varName, entry, ((entry != null) ? entry.type : ""));
+            if (Trace.on(Trace.TYPES) && entry != null && entry.instances != null) {
                 for (SymbolTableEntry instance: entry.instances) {
-                    logger.fine(String.format("    instance %s : %s", varName, instance.type));
+                    Trace.fine(Trace.TYPES, "    instance %s : %s", varName, instance.type);
                 }
             }
 	    BSVType entryType;
@@ -1164,7 +1194,7 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
 							 fieldName, fieldEntry.type,
 							 exprType, exprType.prune()));
 		    } catch (InferenceError e) {
-			logger.fine("Apply InferenceError " + e);
+			Trace.fine(Trace.TYPES, "Apply InferenceError %s", e);
 		    }
 		}
 	    }
@@ -1292,12 +1322,12 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
             String interfaceName = basetype.name;
             String subname = ctx.field.getText();
             SymbolTableEntry entry = scope.lookupType(interfaceName);
-            logger.fine("expr field " + interfaceName + "." + subname + "    " + basetype);
+            Trace.fine(Trace.TYPES, "expr field %s.%s    %s", interfaceName, subname, basetype);
             if (entry != null)
-                logger.fine(" entry.mappings " + entry.mappings);
+                Trace.fine(Trace.TYPES, " entry.mappings %s", entry.mappings);
             if (entry != null && entry.mappings != null) {
                 SymbolTableEntry subentry = entry.mappings.lookup(subname);
-                logger.fine(String.format(" found %s subname %s subentry %s", entry.name, subname, subentry));
+                Trace.fine(Trace.TYPES, " found %s subname %s subentry %s", entry.name, subname, subentry);
                 if (subentry != null) {
                     // FIXME: instantiate interface
                     BSVType dereftype = dereferenceTypedef(subentry.type);
@@ -1307,7 +1337,9 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
                     return dereftype;
                 }
             }
-            logger.fine(String.format("Failed to find type of %s at %s", ctx.getText(), StaticAnalysis.sourceLocation(ctx)));
+            if (Trace.on(Trace.TYPES))
+                Trace.fine(Trace.TYPES, "Failed to find type of %s at %s",
+                                        ctx.getText(), StaticAnalysis.sourceLocation(ctx));
             BSVType bsvtype = new BSVType();
             types.put(ctx, bsvtype);
             return bsvtype;
@@ -1319,7 +1351,8 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
          * {@link #visitChildren} on {@code ctx}.</p>
          */
         @Override public BSVType visitParenexpr(BSVParser.ParenexprContext ctx) {
-            logger.fine("paren expr " + ctx.getText());
+            if (Trace.on(Trace.TYPES))
+                Trace.fine(Trace.TYPES, "paren expr %s", ctx.getText());
             return visit(ctx.expression());
         }
         /**
@@ -1373,9 +1406,10 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
                     if(traceEval)
                     System.err.println("    " + i + " Apply (" + fcntype_i + ") to (" + ftype + ")"
 				       + " result type " + resulttype.prune());
-                    logger.fine("   -> " + resulttype.prune());
+                    if (Trace.on(Trace.TYPES))
+                        Trace.fine(Trace.TYPES, "   -> %s", resulttype.prune());
                 } catch (InferenceError e) {
-                    logger.fine("Apply InferenceError " + e);
+                    Trace.fine(Trace.TYPES, "Apply InferenceError %s", e);
                 }
                 if (fcntype_i.prune().params.size() < 2) {
                     System.err.println("ERROR: CALLERR no items" + fcntype_i.prune() + "EEE" + fcntype_i.prune().params + "PPP");
@@ -1516,7 +1550,7 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
 		    exprType.unify(actionType);
 		    System.err.println(String.format("   unified rules stmt expr %1$s actiontype %2$s", exprType, actionType));
 		} catch (InferenceError e) {
-		    logger.fine(e.toString());
+		    Trace.fine(Trace.TYPES, "%s", e);
 		}
 		types.put(ctx, exprType);
 		return exprType;
@@ -1564,7 +1598,7 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
                 if(traceEval)
 		System.err.println(String.format("   regwrite lhs %1$s rhs %2$s", lhstype, rhstype));
 	    } catch (InferenceError e) {
-		logger.fine(e.toString());
+		Trace.fine(Trace.TYPES, "%s", e);
 	    }
 
 	    types.put(ctx, lhstype);
@@ -1586,7 +1620,7 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
 		    exprType.unify(actionType);
 		    System.err.println(String.format("   unified stmt expr %1$s actiontype %2$s", exprType, actionType));
 		} catch (InferenceError e) {
-		    logger.fine(e.toString());
+		    Trace.fine(Trace.TYPES, "%s", e);
 		}
 		types.put(ctx, exprType);
 		return exprType;
@@ -1802,7 +1836,7 @@ System.err.println("AAAZZZ" + ctx.var.getText() + "ZZ1" + bsvtype + "ZZ2" + rhst
 		    exprType.unify(actionType);
 		    System.err.println(String.format("   unified fsm stmt expr %1$s actiontype %2$s", exprType, actionType));
 		} catch (InferenceError e) {
-		    logger.fine(e.toString());
+		    Trace.fine(Trace.TYPES, "%s", e);
 		}
 		types.put(ctx, exprType);
 		return exprType;
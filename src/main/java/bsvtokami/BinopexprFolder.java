@@ -0,0 +1,139 @@
+package bsvtokami;
+
+import java.util.*;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.*;
+
+/*
+ * binopexpr is parsed as a flat chain, unopexpr binoptail*, which the parser
+ * predicts with a single token of lookahead per operator. This parse
+ * listener rebuilds each chain by precedence climbing into the nested
+ * left op right BinopexprContexts that the visitors consume: a leaf holds a
+ * single unopexpr, and every operator is left associative.
+ *
+ * Precedence, loosest first: || ; && &&& ; | ; & ^ ^~ ~^ ; == != ;
+ * < <= > >= ; << >> ; + - ; * / % ; **
+ */
+class BinopexprFolder extends BSVBaseListener {
+    private static final HashMap<String,Integer> precedence = new HashMap<>();
+    static {
+        String[][] levels = {
+            { "||" },
+            { "&&", "&&&" },
+            { "|" },
+            { "&", "^", "^~", "~^" },
+            { "==", "!=" },
+            { "<", "<=", ">", ">=" },
+            { "<<", ">>" },
+            { "+", "-" },
+            { "*", "/", "%" },
+            { "**" },
+        };
+        for (int i = 0; i < levels.length; i++)
+            for (String op: levels[i])
+                precedence.put(op, i);
+    }
+
+    // stateless, so one instance can listen to every parser
+    static final BinopexprFolder instance = new BinopexprFolder();
+
+    static void attach(Parser parser) {
+        parser.addParseListener(instance);
+    }
+
+    @Override
+    public void exitBinopexpr(BSVParser.BinopexprContext ctx) {
+        if (ctx.getChildCount() > 1)
+            fold(ctx);
+    }
+
+    static void fold(BSVParser.BinopexprContext ctx) {
+        ArrayList<BSVParser.UnopexprContext> operands = new ArrayList<>();
+        ArrayList<TerminalNode> operators = new ArrayList<>();
+        for (ParseTree child: ctx.children) {
+            if (child instanceof BSVParser.UnopexprContext && operands.isEmpty()) {
+                operands.add((BSVParser.UnopexprContext)child);
+                continue;
+            }
+            // leave chains damaged by syntax errors as they are
+            if (!(child instanceof BSVParser.BinoptailContext) || operands.isEmpty())
+                return;
+            BSVParser.BinoptailContext tail = (BSVParser.BinoptailContext)child;
+            if (tail.op == null || tail.unopexpr() == null || !(tail.getChild(0) instanceof TerminalNode))
+                return;
+            operators.add((TerminalNode)tail.getChild(0));
+            operands.add(tail.unopexpr());
+        }
+
+        Chain chain = new Chain(ctx, operands, operators);
+        BSVParser.BinopexprContext root = chain.climb(0);
+        ctx.children = root.children;
+        for (ParseTree child: ctx.children)
+            setParent(child, ctx);
+        ctx.left = root.left;
+        ctx.op = root.op;
+        ctx.right = root.right;
+    }
+
+    private static void setParent(ParseTree tree, ParserRuleContext parent) {
+        if (tree instanceof ParserRuleContext)
+            ((ParserRuleContext)tree).parent = parent;
+        else if (tree instanceof TerminalNodeImpl)
+            ((TerminalNodeImpl)tree).parent = parent;
+    }
+
+    private static class Chain {
+        private final BSVParser.BinopexprContext ctx;
+        private final List<BSVParser.UnopexprContext> operands;
+        private final List<TerminalNode> operators;
+        private int next = 0;
+
+        Chain(BSVParser.BinopexprContext ctx, List<BSVParser.UnopexprContext> operands, List<TerminalNode> operators) {
+            this.ctx = ctx;
+            this.operands = operands;
+            this.operators = operators;
+        }
+
+        // operands[i] is followed by operators[i]; next is the next operator to consume
+        BSVParser.BinopexprContext climb(int minPrecedence) {
+            BSVParser.BinopexprContext lhs = leaf(operands.get(next));
+            while (next < operators.size()) {
+                TerminalNode operator = operators.get(next);
+                int prec = precedence.get(operator.getText());
+                if (prec < minPrecedence)
+                    break;
+                next++;
+                BSVParser.BinopexprContext rhs = climb(prec + 1);
+                lhs = node(lhs, operator, rhs);
+            }
+            return lhs;
+        }
+
+        private BSVParser.BinopexprContext leaf(BSVParser.UnopexprContext operand) {
+            BSVParser.BinopexprContext leaf = new BSVParser.BinopexprContext(ctx, ctx.invokingState);
+            leaf.addChild(operand);
+            operand.parent = leaf;
+            leaf.start = operand.start;
+            leaf.stop = operand.stop;
+            return leaf;
+        }
+
+        private BSVParser.BinopexprContext node(BSVParser.BinopexprContext left, TerminalNode operator,
+                                                BSVParser.BinopexprContext right) {
+            BSVParser.BinopexprContext node = new BSVParser.BinopexprContext(ctx, ctx.invokingState);
+            node.left = left;
+            node.op = operator.getSymbol();
+            node.right = right;
+            node.addChild(left);
+            node.addChild(operator);
+            node.addChild(right);
+            setParent(left, node);
+            setParent(operator, node);
+            setParent(right, node);
+            node.start = left.start;
+            node.stop = right.stop;
+            return node;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package bsvtokami;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/*
+ * Records, in bsvtokami.manifest in an IR output directory, a hash of the
+ * inputs each package's .generated.IR was produced from, so that IR whose
+ * inputs have not changed is neither regenerated nor touched.
+ *
+ * The inputs of a package are the source and included files of the package
+ * and of every package it imports, transitively, including Prelude, plus
+ * the bsvtokami classes themselves. Packages are still parsed and analyzed,
+ * since their importers need their scopes.
+ */
+class BuildManifest {
+    private static Logger logger = Logger.getGlobal();
+    static final String FILENAME = "bsvtokami.manifest";
+    private static final ConcurrentHashMap<String, BuildManifest> manifests = new ConcurrentHashMap<>();
+    // content hashes by file, valid while the file keeps its size and modification time
+    private static final ConcurrentHashMap<String, String[]> fileHashes = new ConcurrentHashMap<>();
+    private static String toolStamp;
+
+    private final File file;
+    private final TreeMap<String, String> hashes = new TreeMap<>();
+
+    static BuildManifest forDirectory(String dirname) {
+        BuildManifest manifest = manifests.get(dirname);
+        if (manifest == null) {
+            manifests.putIfAbsent(dirname, new BuildManifest(new File(dirname, FILENAME)));
+            manifest = manifests.get(dirname);
+        }
+        return manifest;
+    }
+
+    private BuildManifest(File file) {
+        this.file = file;
+        if (!file.exists())
+            return;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length == 2)
+                    hashes.put(fields[0], fields[1]);
+            }
+        } catch (IOException ex) {
+            logger.warning(String.format("Ignoring unreadable build manifest %s: %s", file, ex));
+        }
+    }
+
+    synchronized boolean upToDate(String pkgName, File ofile, String inputsHash) {
+        return inputsHash != null && inputsHash.equals(hashes.get(pkgName)) && ofile.exists();
+    }
+
+    synchronized void record(String pkgName, String inputsHash) {
+        if (inputsHash == null)
+            return;
+        hashes.put(pkgName, inputsHash);
+        try {
+            File tmpfile = File.createTempFile(FILENAME, ".tmp", file.getParentFile());
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmpfile), StandardCharsets.UTF_8))) {
+                for (Map.Entry<String, String> entry: hashes.entrySet())
+                    out.println(entry.getKey() + " " + entry.getValue());
+            }
+            Files.move(tmpfile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            logger.warning(String.format("Could not write build manifest %s: %s", file, ex));
+        }
+    }
+
+    /*
+     * Returns the hash of the inputs of a package, or null if the inputs of
+     * the package or one of its imports are not known.
+     */
+    String inputsHash(Compiler compiler, String pkgName, BSVParser.PackagedefContext packagedef) {
+        TreeMap<String, List<String>> closure = new TreeMap<>();
+        if (!importClosure(compiler, pkgName, packagedef, closure))
+            return null;
+        StringBuilder inputs = new StringBuilder(toolStamp());
+        // with -top, which declarations are emitted depends on the top module and all that it reaches
+        if (compiler.reachability != null)
+            inputs.append("\n").append(compiler.reachability.reachableDeclarations(pkgName));
+        try {
+            for (Map.Entry<String, List<String>> entry: closure.entrySet()) {
+                inputs.append("\n").append(entry.getKey());
+                for (String input: entry.getValue())
+                    inputs.append(" ").append(input).append("=").append(hashFile(input));
+            }
+        } catch (IOException ex) {
+            logger.warning(String.format("Could not hash the inputs of %s: %s", pkgName, ex));
+            return null;
+        }
+        return ParseCache.hash(inputs.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean importClosure(Compiler compiler, String pkgName, BSVParser.PackagedefContext packagedef,
+                                         Map<String, List<String>> closure) {
+        if (closure.containsKey(pkgName))
+            return true;
+        List<String> inputs = compiler.packageInputs.get(pkgName);
+        // packages loaded from interface files have no tree to find their imports in
+        List<String> explicitImports = (packagedef != null)
+            ? Compiler.importedPackages(packagedef) : compiler.interfaceImports.get(pkgName);
+        if (explicitImports == null || inputs == null)
+            return false;
+        closure.put(pkgName, inputs);
+        ArrayList<String> imports = new ArrayList<>();
+        if (!pkgName.equals("Prelude"))
+            imports.add("Prelude");
+        imports.addAll(explicitImports);
+        for (String importedPkgName: imports) {
+            BSVParser.PackagedefContext imported = (BSVParser.PackagedefContext)compiler.packages.get(importedPkgName);
+            if (!importClosure(compiler, importedPkgName, imported, closure))
+                return false;
+        }
+        return true;
+    }
+
+    private static String hashFile(String filename) throws IOException {
+        File file = new File(filename);
+        String stamp = file.length() + ":" + file.lastModified();
+        String[] cached = fileHashes.get(filename);
+        if (cached != null && cached[0].equals(stamp))
+            return cached[1];
+        String hash = ParseCache.hashFile(filename);
+        fileHashes.put(filename, new String[] { stamp, hash });
+        return hash;
+    }
+
+    /*
+     * Identifies the build of bsvtokami by the location and modification
+     * time of the jar or directory its classes were loaded from, and the
+     * grammar by the hash of the lexer's and parser's serialized ATNs, so
+     * that everything persisted by one build is ignored by another. Also
+     * used in the keys of the parse and include caches and in package
+     * interface files.
+     */
+    static synchronized String toolStamp() {
+        if (toolStamp == null) {
+            String location = "unknown";
+            try {
+                File file = new File(BuildManifest.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+                location = file.getPath() + ":" + file.lastModified();
+            } catch (Exception ex) {
+                logger.fine("Could not locate the bsvtokami classes: " + ex);
+            }
+            String grammar = ParseCache.hash((BSVLexer._serializedATN + BSVParser._serializedATN).getBytes(StandardCharsets.UTF_8));
+            toolStamp = location + " grammar " + grammar;
+        }
+        return toolStamp;
+    }
+}
@@ -0,0 +1,157 @@
+package bsvtokami;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.*;
+
+/*
+ * Replaces the tokens referenced by a parse tree with small tokens that keep
+ * only the interned text, type, token index and line and column, and refer
+ * to their file by name alone.
+ *
+ * Lexer tokens point at their lexer and CharStream, and contexts where the
+ * parser recovered from a syntax error hold the RecognitionException, which
+ * points at the whole token stream. Once the tokens are replaced and the
+ * exceptions dropped, the token stream, with its hidden-channel and
+ * preprocessor tokens, and the source text can be collected. Character
+ * offsets are not kept, so compacted trees cannot be reparsed incrementally.
+ * The child lists of the tree are also trimmed to size.
+ */
+class CompactTokens {
+    private static Logger logger = Logger.getGlobal();
+    private static final ConcurrentHashMap<String,TokenSource> sources = new ConcurrentHashMap<>();
+
+    static class CompactToken implements Token {
+        private final String text;
+        private final int type;
+        private final int line;
+        private final int charPositionInLine;
+        private final int tokenIndex;
+        private final TokenSource source;
+
+        CompactToken(Token token, TokenSource source) {
+            this.text = (token.getText() != null) ? token.getText().intern() : null;
+            this.type = token.getType();
+            this.line = token.getLine();
+            this.charPositionInLine = token.getCharPositionInLine();
+            this.tokenIndex = token.getTokenIndex();
+            this.source = source;
+        }
+
+        @Override
+        public String getText() {
+            return text;
+        }
+
+        @Override
+        public int getType() {
+            return type;
+        }
+
+        @Override
+        public int getLine() {
+            return line;
+        }
+
+        @Override
+        public int getCharPositionInLine() {
+            return charPositionInLine;
+        }
+
+        @Override
+        public int getChannel() {
+            return Token.DEFAULT_CHANNEL;
+        }
+
+        @Override
+        public int getTokenIndex() {
+            return tokenIndex;
+        }
+
+        @Override
+        public int getStartIndex() {
+            return -1;
+        }
+
+        @Override
+        public int getStopIndex() {
+            return -1;
+        }
+
+        @Override
+        public TokenSource getTokenSource() {
+            return source;
+        }
+
+        @Override
+        public CharStream getInputStream() {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[@%d,'%s',<%d>,%d:%d]", tokenIndex, text, type, line, charPositionInLine);
+        }
+    }
+
+    static ParserRuleContext compact(ParserRuleContext tree) {
+        IdentityHashMap<Token,Token> replaced = new IdentityHashMap<>();
+        try {
+            compact(tree, replaced);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        logger.fine(String.format("compacted %d tokens of %s", replaced.size(),
+                                  (tree.start != null) ? tree.start.getTokenSource().getSourceName() : "<empty>"));
+        return tree;
+    }
+
+    private static void compact(ParseTree tree, IdentityHashMap<Token,Token> replaced) throws IllegalAccessException {
+        if (tree instanceof TerminalNodeImpl) {
+            TerminalNodeImpl node = (TerminalNodeImpl)tree;
+            node.symbol = compact(node.symbol, replaced);
+            return;
+        }
+        ParserRuleContext ctx = (ParserRuleContext)tree;
+        // the errors have already been reported
+        ctx.exception = null;
+        ctx.start = compact(ctx.start, replaced);
+        ctx.stop = compact(ctx.stop, replaced);
+        for (Field field: ParseCache.labelFields(ctx.getClass())) {
+            if (Token.class.isAssignableFrom(field.getType()))
+                field.set(ctx, compact((Token)field.get(ctx), replaced));
+        }
+        // most contexts have one to three children in a list with room for ten
+        if (ctx.children instanceof ArrayList)
+            ((ArrayList<ParseTree>)ctx.children).trimToSize();
+        for (int i = 0; i < ctx.getChildCount(); i++)
+            compact(ctx.getChild(i), replaced);
+    }
+
+    private static Token compact(Token token, IdentityHashMap<Token,Token> replaced) {
+        if (token == null || token instanceof CompactToken)
+            return token;
+        Token compactToken = replaced.get(token);
+        if (compactToken == null) {
+            compactToken = new CompactToken(token, source(token));
+            replaced.put(token, compactToken);
+        }
+        return compactToken;
+    }
+
+    private static TokenSource source(Token token) {
+        String sourceName = (token.getTokenSource() != null) ? token.getTokenSource().getSourceName() : null;
+        if (sourceName == null)
+            sourceName = IntStream.UNKNOWN_SOURCE_NAME;
+        TokenSource source = sources.get(sourceName);
+        if (source == null) {
+            sources.putIfAbsent(sourceName, new ListTokenSource(Collections.<Token>emptyList(), sourceName));
+            source = sources.get(sourceName);
+        }
+        return source;
+    }
+}
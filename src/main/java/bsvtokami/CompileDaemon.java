@@ -0,0 +1,446 @@
+package bsvtokami;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/*
+ * Keeps a JVM and a Compiler session with analyzed packages resident and
+ * compiles on request, so that a build pays for JVM startup and for
+ * analyzing Prelude and the library once.
+ *
+ * On startup every package in the search path (the -I directories the
+ * daemon was started with) is analyzed, and a random secret is written to
+ * a file only the user can read, ~/.bsvtokami/daemon-PORT.secret or
+ * $BSVTOKAMI_DAEMON_SECRET. The daemon then accepts one connection at a
+ * time on a loopback port. A request is the secret on one line, the
+ * client's working directory on the next, then one line per command line
+ * argument and an empty line; only -I and -K are accepted. Requests
+ * without the secret are refused. Everything the compile prints, and
+ * warnings logged while it runs, are sent back on the connection, followed
+ * by a "generated" line per IR file written and an "exit" line with the
+ * status. bin/bsvtokami-client is the matching client.
+ *
+ * A request searches the daemon's -I directories and then its own, which
+ * are dropped again when it is done. Packages on the request's command
+ * line are brought up to date with reanalyzePackage, as is any previously
+ * analyzed package whose source has changed since. Every package that
+ * imports a changed package, directly or not, is then analyzed again from
+ * its source, since it holds bindings and types from the old version, and
+ * IR is generated for the whole import closure into the request's -K
+ * directory, so that it matches what a fresh run would write.
+ */
+class CompileDaemon {
+    private static Logger logger = Logger.getGlobal();
+    static final String GENERATED = "bsvtokami-daemon: generated ";
+    static final String EXIT = "bsvtokami-daemon: exit ";
+    // how long a client has to send its request
+    private static final int REQUEST_TIMEOUT_MS = 10000;
+
+    // the connection of the request the current thread is handling, if any
+    private static final ThreadLocal<PrintStream> requestStream = new ThreadLocal<>();
+
+    private final Compiler compiler;
+    private String secret;
+    // source file and modification time of every analyzed package
+    private final HashMap<String, String> packageFiles = new HashMap<>();
+    private final HashMap<String, Long> lastModified = new HashMap<>();
+    // the packages that import each analyzed package, as of the end of the last request
+    private final HashMap<String, HashSet<String>> importers = new HashMap<>();
+    // the -I directories the daemon was started with
+    private final ArrayList<String> searchDirs = new ArrayList<>();
+
+    CompileDaemon(Compiler compiler) {
+        this.compiler = compiler;
+        searchDirs.addAll(compiler.searchDirs);
+    }
+
+    void serve(int port) throws IOException {
+        compiler.retainSources = true;
+        long startTime = System.nanoTime();
+        preload();
+        File secretFile = secretFile(port);
+        secret = writeSecret(secretFile);
+        installRequestOutput();
+        System.err.println(String.format("bsvtokami daemon: analyzed %d packages in %.1f ms, listening on port %d, secret in %s",
+                                         packageFiles.size(), (System.nanoTime() - startTime) / 1.0e6, port, secretFile));
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            while (true) {
+                try (Socket socket = serverSocket.accept()) {
+                    handle(socket);
+                } catch (IOException ex) {
+                    logger.warning("bsvtokami daemon: request failed: " + ex);
+                }
+            }
+        }
+    }
+
+    static File secretFile(int port) {
+        String filename = System.getenv("BSVTOKAMI_DAEMON_SECRET");
+        if (filename != null)
+            return new File(filename);
+        return new File(System.getProperty("user.home"), String.format(".bsvtokami/daemon-%d.secret", port));
+    }
+
+    /*
+     * Writes a new random secret to a file readable and writable by the
+     * user only, and returns it.
+     */
+    private static String writeSecret(File file) throws IOException {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        String secret = String.format("%064x", new BigInteger(1, bytes));
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.exists())
+            dir.mkdirs();
+        Path path = file.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException ex) {
+            Files.createFile(path);
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+        }
+        Files.write(path, (secret + "\n").getBytes(StandardCharsets.UTF_8));
+        file.deleteOnExit();
+        return secret;
+    }
+
+    /*
+     * Installs, once, a System.out and System.err that send what a thread
+     * handling a request prints to the request's connection and everything
+     * else to where the daemon's output went, and a log handler that does
+     * the same with warnings. Other threads keep printing to the daemon's
+     * own output while a request runs.
+     */
+    private static void installRequestOutput() {
+        // the root console handler binds System.err when it is created; create it on the daemon's stderr
+        Logger.getLogger("").getHandlers();
+        System.setOut(new PrintStream(new RequestOutputStream(System.out), true));
+        System.setErr(new PrintStream(new RequestOutputStream(System.err), true));
+        Handler handler = new RequestLogHandler();
+        handler.setLevel(Level.WARNING);
+        logger.addHandler(handler);
+    }
+
+    private static class RequestOutputStream extends OutputStream {
+        private final PrintStream daemonStream;
+
+        RequestOutputStream(PrintStream daemonStream) {
+            this.daemonStream = daemonStream;
+        }
+
+        private PrintStream target() {
+            PrintStream out = requestStream.get();
+            return (out != null) ? out : daemonStream;
+        }
+
+        @Override public void write(int b) {
+            target().write(b);
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+            target().write(b, off, len);
+        }
+
+        @Override public void flush() {
+            target().flush();
+        }
+    }
+
+    private static class RequestLogHandler extends Handler {
+        private final SimpleFormatter formatter = new SimpleFormatter();
+
+        @Override public void publish(LogRecord record) {
+            PrintStream out = requestStream.get();
+            if (out != null && isLoggable(record))
+                out.print(formatter.format(record));
+        }
+
+        @Override public void flush() {
+        }
+
+        @Override public void close() {
+        }
+    }
+
+    private void preload() {
+        for (String dir: new ArrayList<String>(compiler.searchDirs)) {
+            String[] names = new File(dir).list();
+            if (names == null)
+                continue;
+            Arrays.sort(names);
+            for (String name: names) {
+                if (!name.endsWith(".bsv"))
+                    continue;
+                String pkgName = name.substring(0, name.length() - ".bsv".length());
+                if (compiler.packages.containsKey(pkgName))
+                    continue;
+                try {
+                    compiler.analyzePackage(pkgName, new File(dir, name).getPath(), false);
+                } catch (Exception | AssertionError e) {
+                    logger.warning(String.format("bsvtokami daemon: could not preload %s: %s", pkgName, e));
+                }
+            }
+        }
+        recordPackages();
+    }
+
+    private void handle(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+        socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+        String clientSecret = in.readLine();
+        if (clientSecret == null
+            || !MessageDigest.isEqual(clientSecret.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8))) {
+            logger.warning("bsvtokami daemon: refused a request without the secret");
+            out.println("bsvtokami daemon: request refused: it did not start with the daemon's secret");
+            out.println(EXIT + 2);
+            return;
+        }
+        String cwd = in.readLine();
+        ArrayList<String> args = new ArrayList<>();
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty())
+            args.add(line);
+        if (cwd == null)
+            return;
+        logger.fine(String.format("bsvtokami daemon: request in %s: %s", cwd, args));
+
+        requestStream.set(out);
+        int status;
+        try {
+            status = compile(cwd, args);
+        } catch (Exception | AssertionError e) {
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            requestStream.remove();
+        }
+        synchronized (compiler.generatedIR) {
+            for (String path: compiler.generatedIR.values())
+                out.println(GENERATED + path);
+        }
+        out.println(EXIT + status);
+    }
+
+    private static String resolve(String cwd, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? path : new File(cwd, path).getPath();
+    }
+
+    int compile(String cwd, List<String> args) throws IOException {
+        Options options = new Options();
+        options.addOption(Option.builder("I").hasArg().build());
+        options.addOption(Option.builder("K").hasArg().build());
+        CommandLine cmdLine;
+        try {
+            cmdLine = new DefaultParser().parse(options, args.toArray(new String[args.size()]));
+        } catch (ParseException ex) {
+            System.err.println("bsvtokami daemon: " + ex.getMessage());
+            return 2;
+        }
+        if (cmdLine.hasOption("I")) {
+            for (String includePath: cmdLine.getOptionValues("I"))
+                compiler.addSearchDir(resolve(cwd, includePath));
+        }
+        compiler.kamidir = cmdLine.hasOption("K") ? resolve(cwd, cmdLine.getOptionValue("K")) : null;
+        compiler.generatedIR.clear();
+        SearchPath.revalidate();
+        try {
+            return compilePackages(cwd, cmdLine.getArgs());
+        } finally {
+            compiler.searchDirs.clear();
+            compiler.searchDirs.addAll(searchDirs);
+        }
+    }
+
+    private int compilePackages(String cwd, String[] args) throws IOException {
+        LinkedHashSet<String> changed = new LinkedHashSet<>();
+        for (String pkgName: new ArrayList<String>(packageFiles.keySet())) {
+            String filename = packageFiles.get(pkgName);
+            Long recorded = lastModified.get(pkgName);
+            if (recorded != null && new File(filename).lastModified() != recorded) {
+                System.err.println(String.format("bsvtokami daemon: %s changed", filename));
+                if (reanalyze(pkgName, filename))
+                    changed.add(pkgName);
+            }
+        }
+
+        int status = 0;
+        LinkedHashMap<String, String> requested = new LinkedHashMap<>();
+        for (String arg: args) {
+            String filename = resolve(cwd, arg);
+            String pkgName = new File(filename).getName().split("\\.")[0];
+            packageFiles.put(pkgName, filename);
+            System.err.println("converting file " + filename);
+            try {
+                if (compiler.packages.get(pkgName) == null)
+                    compiler.analyzePackage(pkgName, filename, false);
+                else if (reanalyze(pkgName, filename))
+                    changed.add(pkgName);
+                requested.put(pkgName, filename);
+            } catch (Exception | AssertionError e) {
+                e.printStackTrace();
+                status = 1;
+            }
+        }
+        try {
+            reanalyzeImporters(changed);
+        } catch (Exception | AssertionError e) {
+            e.printStackTrace();
+            recordPackages();
+            return 1;
+        }
+
+        for (Map.Entry<String, String> entry: requested.entrySet()) {
+            String pkgName = entry.getKey();
+            String filename = entry.getValue();
+            try {
+                LinkedHashSet<String> closure = new LinkedHashSet<>();
+                importClosure(pkgName, closure);
+                for (String importedPkgName: closure) {
+                    if (importedPkgName.equals("Prelude") || compiler.generatedIR.containsKey(importedPkgName))
+                        continue;
+                    String importedFilename = importedPkgName.equals(pkgName) ? filename : fileOf(importedPkgName);
+                    compiler.generateIR(importedPkgName, importedFilename,
+                                    (BSVParser.PackagedefContext)compiler.packages.get(importedPkgName));
+                }
+            } catch (Exception | AssertionError e) {
+                e.printStackTrace();
+                status = 1;
+            }
+        }
+        recordPackages();
+        return status;
+    }
+
+    /*
+     * Brings a package up to date with its source and returns whether the
+     * source had changed.
+     */
+    private boolean reanalyze(String pkgName, String filename) throws IOException {
+        String before = compiler.sources.get(pkgName);
+        compiler.reanalyzePackage(pkgName, filename, false);
+        return before == null || !before.equals(compiler.sources.get(pkgName));
+    }
+
+    /*
+     * Analyzes again from their sources the packages that import a changed
+     * package, directly or through other packages, imports first.
+     */
+    private void reanalyzeImporters(Set<String> changed) throws IOException {
+        HashMap<String, HashSet<String>> importers = new HashMap<>();
+        for (Map.Entry<String, HashSet<String>> entry: this.importers.entrySet())
+            importers.put(entry.getKey(), new HashSet<String>(entry.getValue()));
+        addImporters(importers);
+        LinkedHashSet<String> stale = new LinkedHashSet<>();
+        for (String pkgName: changed)
+            addImporters(pkgName, importers, stale);
+        if (stale.isEmpty())
+            return;
+
+        LinkedHashSet<String> ordered = new LinkedHashSet<>();
+        for (String pkgName: stale)
+            importsFirst(pkgName, stale, ordered);
+        System.err.println(String.format("bsvtokami daemon: reanalyzing %d importers of changed packages", ordered.size()));
+        for (String pkgName: ordered)
+            compiler.forgetPackage(pkgName);
+        for (String pkgName: ordered) {
+            if (!compiler.packages.containsKey(pkgName))
+                compiler.analyzePackage(pkgName, fileOf(pkgName), false);
+        }
+    }
+
+    private static void addImporters(String pkgName, Map<String, HashSet<String>> importers, Set<String> stale) {
+        HashSet<String> direct = importers.get(pkgName);
+        if (direct == null)
+            return;
+        for (String importer: direct) {
+            if (stale.add(importer))
+                addImporters(importer, importers, stale);
+        }
+    }
+
+    private void importsFirst(String pkgName, Set<String> stale, LinkedHashSet<String> ordered) {
+        if (ordered.contains(pkgName))
+            return;
+        BSVParser.PackagedefContext packagedef = (BSVParser.PackagedefContext)compiler.packages.get(pkgName);
+        if (packagedef != null) {
+            for (String importedPkgName: Compiler.importedPackages(packagedef))
+                if (stale.contains(importedPkgName) && !importedPkgName.equals(pkgName))
+                    importsFirst(importedPkgName, stale, ordered);
+        }
+        ordered.add(pkgName);
+    }
+
+    /*
+     * Adds the importers of every analyzed package to a reverse import map;
+     * every package imports Prelude.
+     */
+    private void addImporters(Map<String, HashSet<String>> importers) {
+        for (Map.Entry<String, ParserRuleContext> entry: compiler.packages.entrySet()) {
+            String pkgName = entry.getKey();
+            BSVParser.PackagedefContext packagedef = (BSVParser.PackagedefContext)entry.getValue();
+            if (packagedef == null || pkgName.equals("Prelude"))
+                continue;
+            ArrayList<String> imports = new ArrayList<>(Compiler.importedPackages(packagedef));
+            imports.add("Prelude");
+            for (String importedPkgName: imports)
+                importers.computeIfAbsent(importedPkgName, k -> new HashSet<String>()).add(pkgName);
+        }
+    }
+
+    private String fileOf(String pkgName) {
+        String filename = packageFiles.get(pkgName);
+        return (filename != null) ? filename : compiler.findPackageFile(pkgName);
+    }
+
+    private void importClosure(String pkgName, LinkedHashSet<String> closure) {
+        BSVParser.PackagedefContext packagedef = (BSVParser.PackagedefContext)compiler.packages.get(pkgName);
+        if (packagedef == null || !closure.add(pkgName))
+            return;
+        for (String importedPkgName: Compiler.importedPackages(packagedef))
+            importClosure(importedPkgName, closure);
+    }
+
+    private void recordPackages() {
+        for (String pkgName: compiler.packages.keySet()) {
+            if (compiler.packages.get(pkgName) == null)
+                continue;
+            String filename = fileOf(pkgName);
+            if (filename == null)
+                continue;
+            packageFiles.put(pkgName, filename);
+            lastModified.put(pkgName, new File(filename).lastModified());
+        }
+        importers.clear();
+        addImporters(importers);
+    }
+}
@@ -0,0 +1,875 @@
+package bsvtokami;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+/*
+ * A compilation session: the search path and options of one compile and
+ * the packages parsed and analyzed by it. Main makes one per run and the
+ * compile daemon keeps one resident; a program embedding bsvtokami can make
+ * as many as it likes and run them at once on different threads.
+ *
+ * Sessions share only process-wide caches that are safe to share between
+ * threads: the parser DFA and pooled parsers, the include file and search
+ * directory caches, build manifests and the counters naming fresh type
+ * variables and loop indices.
+ */
+public class Compiler {
+    final HashMap<String, ParserRuleContext> packages = new HashMap<>();
+    final StaticAnalysis staticAnalyzer = new StaticAnalysis();
+    final ArrayList<String> searchDirs = new ArrayList<>();
+    PrintStream dotstream;
+    String kamidir; 
+    boolean twoStageParse = false;
+    ParseCache parseCache;
+    // analyzes independent packages of the import closure concurrently
+    AnalysisScheduler analysisScheduler;
+    // parses, analyzes and generates IR for different packages at once
+    FrontendPipeline pipeline;
+    // preprocessed token files to parse from, and whether to stop after writing them
+    PreprocessedTokens preprocessedTokens;
+    boolean preprocessOnly = false;
+    ParserProfile parserProfile;
+    // replace the tokens of parsed trees so that token streams and source text can be collected
+    boolean compactTrees = false;
+    // keep package sources so that reanalyzePackage can reparse incrementally
+    boolean retainSources = false;
+    // the IR file written for each package, for the compile daemon to report
+    final Map<String, String> generatedIR = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+    // the source file and included files each package was last parsed from
+    final ConcurrentHashMap<String, List<String>> packageInputs = new ConcurrentHashMap<>();
+    // regenerate IR even if the build manifest says it is up to date
+    boolean rebuild = false;
+    // write package interface files, and import packages from them when they are up to date
+    boolean useInterfaces = false;
+    // the imports of packages loaded from interface files or evicted, which have no tree to read them from
+    final ConcurrentHashMap<String, List<String>> interfaceImports = new ConcurrentHashMap<>();
+    // take lib/ packages from the analyzed copies bundled in the jar when their sources match
+    boolean useSnapshot = true;
+    // the packages that were taken from the bundled snapshot
+    final Set<String> snapshotPackages = Collections.synchronizedSet(new HashSet<String>());
+    // with -top, analyze and emit only the declarations reachable from this module
+    String topModule;
+    Reachability reachability;
+    // with -evictpackages or -heapbudget, release the trees of packages once their IR is emitted
+    HeapBudget heapBudget;
+    // per-package, per-phase time and memory, for -phasereport
+    PhaseReport phaseReport;
+    final HashMap<String, String> sources = new HashMap<>();
+    private final ConcurrentHashMap<String, ParserRuleContext> preparsed = new ConcurrentHashMap<>();
+    private ForkJoinPool parsePool;
+    private final AtomicInteger sllParses = new AtomicInteger();
+    private final AtomicInteger llFallbacks = new AtomicInteger();
+    // fresh type variable names, by package, for the session
+    private final ConcurrentHashMap<String, BSVType.VariableNames> variableNames = new ConcurrentHashMap<>();
+    private static Logger logger = Logger.getGlobal();
+
+    public Compiler() {
+    }
+
+    public void addSearchDir(String dirname) {
+	if (!searchDirs.contains(dirname))
+	    searchDirs.add(dirname);
+    }
+
+    /*
+     * Directory in which to write the IR of every package, instead of next
+     * to its source.
+     */
+    public void setKamiDir(String dirname) {
+	kamidir = dirname;
+    }
+
+    /*
+     * Parses the import closure of packages on this many threads first.
+     */
+    public void setParseThreads(int threads) {
+	parsePool = (threads > 1) ? new ForkJoinPool(threads) : null;
+    }
+
+    /*
+     * The IR files written so far, by package.
+     */
+    public Map<String, String> generatedIR() {
+	synchronized (generatedIR) {
+	    return new LinkedHashMap<>(generatedIR);
+	}
+    }
+
+    /*
+     * Analyzes the package in filename and the packages it imports, and
+     * generates the IR of all but Prelude. With -E, only preprocesses them
+     * and returns null.
+     */
+    public BSVParser.PackagedefContext compile(String filename) throws IOException, InterruptedException {
+	File file = new File(filename);
+	String[] components = file.getName().split("\\.");
+	String pkgName = components[0];
+
+	if (preprocessOnly) {
+	    preprocessImportClosure(pkgName, filename);
+	    return null;
+	}
+	if (parsePool != null)
+	    parseImportClosure(pkgName, filename);
+	if (topModule != null)
+	    findReachable(pkgName, filename);
+	BSVParser.PackagedefContext packagedef;
+	if (analysisScheduler != null)
+	    packagedef = analysisScheduler.analyze(pkgName, filename);
+	else if (pipeline != null)
+	    packagedef = pipeline.compile(pkgName, filename);
+	else
+	    packagedef = analyzePackage(pkgName, filename, true);
+	System.out.println("");
+	logger.fine("finished processing package " + pkgName);
+	return packagedef;
+    }
+
+    /*
+     * Prints the statistics of this session's parse cache, parser profile
+     * and SLL parses.
+     */
+    public void report() {
+	if (parseCache != null) {
+	    parseCache.report();
+	}
+	if (parserProfile != null) {
+	    parserProfile.report(System.err);
+	}
+	if (twoStageParse) {
+	    System.err.println(String.format("SLL parses: %d LL fallbacks: %d", sllParses.get(), llFallbacks.get()));
+	}
+	if (phaseReport != null) {
+	    phaseReport.report();
+	}
+	if (heapBudget != null) {
+	    heapBudget.report();
+	}
+    }
+
+    private PhaseReport.Span startPhase(String pkgName, String phase) {
+	return (phaseReport != null) ? phaseReport.start(pkgName, phase) : null;
+    }
+
+    private void endPhase(PhaseReport.Span span) {
+	if (span != null)
+	    phaseReport.stop(span);
+    }
+
+    ParserRuleContext parsePackage(String pkgName, String filename) throws IOException {
+	ParserRuleContext packagedef = takeParse(pkgName, filename);
+	packages.put(pkgName, packagedef);
+	return packagedef;
+    }
+
+    /*
+     * The tree of a package parsed ahead, by -parsethreads or for -top, or
+     * else a new parse of it. -top needs the trees it computed reachability
+     * on. Does not touch packages, so it may be called from any thread.
+     */
+    ParserRuleContext takeParse(String pkgName, String filename) throws IOException {
+	ParserRuleContext packagedef = preparsed.remove(pkgName);
+	return (packagedef != null) ? packagedef : parseFile(pkgName, filename);
+    }
+
+    /*
+     * Preprocesses and parses one file. Does not touch packages, so it may be
+     * called from several threads at once.
+     */
+    ParserRuleContext parseFile(String pkgName, String filename) throws IOException {
+	System.err.println("parsePackage " + filename);
+	logger.fine(String.format("Parsing %s %s", pkgName, filename));
+	long startTime = System.nanoTime();
+	CompilerEvents.PackageParse event = CompilerEvents.packageParse();
+
+	PreprocessedTokenSource preprocessedTokenSource = new PreprocessedTokenSource(searchDirs);
+	preprocessedTokenSource.define("BSVTOKAMI");
+
+	String cacheKey = null;
+	if (parseCache != null || preprocessedTokens != null)
+	    cacheKey = ParseCache.key(filename, preprocessedTokenSource.defines);
+	if (parseCache != null) {
+	    PhaseReport.Span span = startPhase(pkgName, "parse");
+	    ParserRuleContext packagedef = parseCache.load(cacheKey, filename, preprocessedTokenSource.includedFiles);
+	    if (packagedef != null) {
+		parseCache.hit(filename, System.nanoTime() - startTime);
+		packageInputs.put(pkgName, inputs(filename, preprocessedTokenSource.includedFiles));
+		if (compactTrees)
+		    CompactTokens.compact(packagedef);
+		endPhase(span);
+		commitParse(event, pkgName, filename, packagedef, 0, true);
+		return packagedef;
+	    }
+	    endPhase(span);
+	}
+
+	PhaseReport.Span preprocessSpan = startPhase(pkgName, "preprocess");
+	TokenSource tokenSource = null;
+	if (preprocessedTokens != null) {
+	    List<Token> tokens = preprocessedTokens.load(cacheKey, filename, preprocessedTokenSource.includedFiles);
+	    if (tokens != null) {
+		logger.fine(String.format("parsing %s from %d preprocessed tokens", filename, tokens.size()));
+		tokenSource = new ListTokenSource(tokens, filename);
+	    }
+	}
+	if (tokenSource == null) {
+	    CharStream charStream = MappedCharStream.fromFileName(filename);
+
+	    /*
+	     * make Lexer
+	     */
+	    Lexer lexer = new BSVLexer(charStream);
+	    preprocessedTokenSource.push(lexer);
+	    tokenSource = preprocessedTokenSource;
+	}
+
+	CommonTokenStream commonTokenStream = new CommonTokenStream(tokenSource);
+	if (preprocessSpan != null) {
+	    // preprocess everything up front, so that it is not timed as parsing
+	    commonTokenStream.fill();
+	    endPhase(preprocessSpan);
+	}
+	PhaseReport.Span parseSpan = startPhase(pkgName, "parse");
+
+        /*
+         * make a Parser on the token stream
+         */
+        BSVParser parser = ParserPool.acquire(commonTokenStream, parserProfile != null);
+
+	/*
+	 * get the top node of the AST. This corresponds to the topmost rule of BSV.g4, "start"
+	 */
+	ParserRuleContext packagedef;
+	if (twoStageParse) {
+	    packagedef = parseTwoStage(filename, parser);
+	} else {
+	    parser.addErrorListener(new BSVErrorListener(parserProfile != null));
+	    packagedef = parser.packagedef();
+	}
+	if (parserProfile != null)
+	    parserProfile.add(parser);
+	ParserPool.release(parser);
+	packageInputs.put(pkgName, inputs(filename, preprocessedTokenSource.includedFiles));
+	if (parseCache != null) {
+	    parseCache.store(cacheKey, filename, packagedef, commonTokenStream.getTokens(),
+			     preprocessedTokenSource.includedFiles);
+	    parseCache.miss(filename, System.nanoTime() - startTime);
+	}
+	if (compactTrees)
+	    CompactTokens.compact(packagedef);
+	endPhase(parseSpan);
+	commitParse(event, pkgName, filename, packagedef, commonTokenStream.size(), false);
+	return packagedef;
+    }
+
+    private static void commitParse(CompilerEvents.PackageParse event, String pkgName, String filename,
+				    ParserRuleContext packagedef, int tokens, boolean cached) {
+	if (event == null)
+	    return;
+	event.end();
+	if (!event.shouldCommit())
+	    return;
+	event.pkgName = pkgName;
+	event.filename = filename;
+	event.tokens = tokens;
+	event.nodes = CompilerEvents.nodeCount(packagedef);
+	event.cached = cached;
+	event.commit();
+    }
+
+    private static List<String> inputs(String filename, List<String> includedFiles) {
+	ArrayList<String> inputs = new ArrayList<>();
+	inputs.add(filename);
+	inputs.addAll(includedFiles);
+	return inputs;
+    }
+
+    /*
+     * Finds the packages imported by a file by running only the lexer and
+     * preprocessor over it, so that `ifdef'd imports are handled the same way
+     * the parser would see them.
+     */
+    List<String> scanImports(String filename) throws IOException {
+	PreprocessedTokenSource preprocessedTokenSource = new PreprocessedTokenSource(searchDirs);
+	preprocessedTokenSource.define("BSVTOKAMI");
+	preprocessedTokenSource.push(new BSVLexer(MappedCharStream.fromFileName(filename)));
+	return importsOf(preprocessedTokenSource.readAll());
+    }
+
+    static List<String> importsOf(List<Token> allTokens) {
+	ArrayList<Token> tokens = new ArrayList<>();
+	for (Token token: allTokens) {
+	    if (token.getChannel() == Token.DEFAULT_CHANNEL)
+		tokens.add(token);
+	}
+
+	ArrayList<String> imports = new ArrayList<>();
+	for (int i = 0; i < tokens.size(); i++) {
+	    if (!tokens.get(i).getText().equals("import"))
+		continue;
+	    // import Pkg::*; -- but not import "BDPI" function ...
+	    for (i++; i + 2 < tokens.size() && !tokens.get(i).getText().equals(";"); i++) {
+		if (tokens.get(i).getType() == BSVLexer.UpperCaseIdentifier
+		    && tokens.get(i + 1).getText().equals("::")
+		    && tokens.get(i + 2).getText().equals("*"))
+		    imports.add(tokens.get(i).getText());
+	    }
+	}
+	return imports;
+    }
+
+    /*
+     * -E: writes the preprocessed token stream of a package and of every
+     * package it imports, transitively, without parsing any of them.
+     */
+    void preprocessImportClosure(String pkgName, String filename) throws IOException {
+	HashSet<String> seen = new HashSet<>();
+	ArrayDeque<String> pending = new ArrayDeque<>();
+	seen.add(pkgName);
+	seen.add("Prelude");
+	pending.add(filename);
+	pending.add(findPackageFile("Prelude"));
+	while (!pending.isEmpty()) {
+	    String pendingFilename = pending.remove();
+	    for (String importedPkgName: preprocessFile(pendingFilename)) {
+		if (seen.add(importedPkgName))
+		    pending.add(findPackageFile(importedPkgName));
+	    }
+	}
+	System.err.println(String.format("preprocessed %d packages", seen.size()));
+    }
+
+    /*
+     * Writes the preprocessed token stream of one file and returns the
+     * packages it imports.
+     */
+    List<String> preprocessFile(String filename) throws IOException {
+	PreprocessedTokenSource preprocessedTokenSource = new PreprocessedTokenSource(searchDirs);
+	preprocessedTokenSource.define("BSVTOKAMI");
+	String key = ParseCache.key(filename, preprocessedTokenSource.defines);
+	preprocessedTokenSource.push(new BSVLexer(MappedCharStream.fromFileName(filename)));
+	List<Token> tokens = preprocessedTokenSource.readAll();
+	preprocessedTokens.store(key, filename, tokens, preprocessedTokenSource.includedFiles);
+	System.err.println(String.format("preprocessed %s: %d tokens", filename, tokens.size()));
+	return importsOf(tokens);
+    }
+
+    /*
+     * Parses the transitive import closure of a package on the parse pool, one
+     * task per package. Each task scans its file for imports, forks tasks for
+     * packages not yet seen, and then parses its own file.
+     */
+    void parseImportClosure(String pkgName, String filename) {
+	ConcurrentHashMap<String,Boolean> seen = new ConcurrentHashMap<>();
+	for (String parsedPkgName: packages.keySet())
+	    seen.put(parsedPkgName, true);
+	int alreadyParsed = seen.size();
+	seen.put(pkgName, true);
+	ArrayList<ParseTask> tasks = new ArrayList<>();
+	tasks.add(new ParseTask(pkgName, filename, seen));
+	if (seen.putIfAbsent("Prelude", true) == null)
+	    tasks.add(new ParseTask("Prelude", findPackageFile("Prelude"), seen));
+	long startTime = System.nanoTime();
+	for (ParseTask task: tasks)
+	    parsePool.execute(task);
+	for (ParseTask task: tasks)
+	    task.join();
+	System.err.println(String.format("parsed %d packages on %d threads in %.1f ms",
+					 seen.size() - alreadyParsed, parsePool.getParallelism(),
+					 (System.nanoTime() - startTime) / 1.0e6));
+    }
+
+    /*
+     * Parses the import closure of a package, if it has not been already,
+     * and finds the declarations reachable from topModule in it. If there is
+     * no such module, everything is analyzed and emitted.
+     */
+    void findReachable(String pkgName, String filename) throws IOException {
+	LinkedHashMap<String, BSVParser.PackagedefContext> trees = new LinkedHashMap<>();
+	parseForReachability(pkgName, filename, trees);
+	reachability = Reachability.compute(topModule, pkgName, trees);
+	staticAnalyzer.reachability = reachability;
+	if (reachability == null) {
+	    System.err.println(String.format("ERROR: module %s not found in %s or its imports; compiling all declarations",
+					     topModule, pkgName));
+	    return;
+	}
+	reachability.report();
+    }
+
+    private void parseForReachability(String pkgName, String filename, Map<String, BSVParser.PackagedefContext> trees)
+	throws IOException {
+	if (trees.containsKey(pkgName))
+	    return;
+	ParserRuleContext packagedef;
+	if (packages.containsKey(pkgName)) {
+	    // analyzed earlier in this session, or loaded from an interface and without a tree
+	    packagedef = packages.get(pkgName);
+	} else {
+	    packagedef = preparsed.get(pkgName);
+	    if (packagedef == null) {
+		packagedef = parseFile(pkgName, (filename != null) ? filename : findPackageFile(pkgName));
+		preparsed.put(pkgName, packagedef);
+	    }
+	}
+	trees.put(pkgName, (BSVParser.PackagedefContext)packagedef);
+	if (packagedef == null)
+	    return;
+	if (!pkgName.equals("Prelude"))
+	    parseForReachability("Prelude", null, trees);
+	for (String importedPkgName: importedPackages((BSVParser.PackagedefContext)packagedef))
+	    parseForReachability(importedPkgName, null, trees);
+    }
+
+    class ParseTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	final String pkgName;
+	final String filename;
+	final ConcurrentHashMap<String,Boolean> seen;
+
+	ParseTask(String pkgName, String filename, ConcurrentHashMap<String,Boolean> seen) {
+	    this.pkgName = pkgName;
+	    this.filename = filename;
+	    this.seen = seen;
+	}
+
+	@Override
+	protected void compute() {
+	    if (filename == null)
+		return;
+	    try {
+		ArrayList<ParseTask> imports = new ArrayList<>();
+		for (String importedPkgName: scanImports(filename)) {
+		    if (seen.putIfAbsent(importedPkgName, true) == null) {
+			String importedFilename = findPackageFile(importedPkgName);
+			ParseTask task = new ParseTask(importedPkgName, importedFilename, seen);
+			task.fork();
+			imports.add(task);
+		    }
+		}
+		preparsed.put(pkgName, parseFile(pkgName, filename));
+		for (ParseTask task: imports)
+		    task.join();
+	    } catch (IOException ex) {
+		logger.severe(String.format("Could not parse %s: %s", filename, ex));
+	    }
+	}
+    }
+
+    /*
+     * Parse with SLL prediction and a bail-out error strategy first. Only if
+     * that fails is the token stream rewound and parsed again with full LL
+     * prediction and the usual error reporting.
+     */
+    ParserRuleContext parseTwoStage(String filename, BSVParser parser) {
+	long startTime = System.nanoTime();
+	parser.removeErrorListeners();
+	parser.setErrorHandler(new BailErrorStrategy());
+	parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+	try {
+	    ParserRuleContext packagedef = parser.packagedef();
+	    sllParses.incrementAndGet();
+	    System.err.println(String.format("parse mode SLL %s %.1f ms",
+					     filename, (System.nanoTime() - startTime) / 1.0e6));
+	    return packagedef;
+	} catch (ParseCancellationException ex) {
+	    logger.fine(String.format("SLL parse of %s failed, retrying with LL: %s", filename, ex));
+	}
+
+	llFallbacks.incrementAndGet();
+	parser.reset();
+	parser.addErrorListener(new BSVErrorListener(parserProfile != null));
+	parser.setErrorHandler(new DefaultErrorStrategy());
+	parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+	ParserRuleContext packagedef = parser.packagedef();
+	System.err.println(String.format("parse mode LL fallback %s %.1f ms",
+					 filename, (System.nanoTime() - startTime) / 1.0e6));
+	return packagedef;
+    }
+
+    String findPackageFile(String pkgName) {
+	String filename = SearchPath.find(searchDirs, pkgName + ".bsv");
+	logger.fine(String.format("package %s found at %s", pkgName, filename));
+	assert filename != null : "No file found for package " + pkgName;
+	return filename;
+    }
+
+    BSVParser.PackagedefContext analyzePackage(String pkgName, String filename, boolean translateToKami) throws IOException {
+	packages.put(pkgName, null); // mark that we are working on this package
+	if (!packages.containsKey("Prelude")) {
+	    importPackage("Prelude");
+	}
+
+        System.err.println("STARTPACKAGE: " + pkgName);
+	System.err.println(String.format("parsePkg %s %s", pkgName, filename));
+	if (retainSources)
+	    sources.put(pkgName, readSource(filename));
+	ParserRuleContext ctx = parsePackage(pkgName, filename);
+	if (dotstream != null) {
+	    dotstream.println(String.format("    n%s[label=%s];",
+					    pkgName, pkgName));
+	}
+
+	BSVParser.PackagedefContext packagedef = (BSVParser.PackagedefContext)ctx;
+	analyzeImports(pkgName, packagedef.packagestmt());
+	visitPackage(staticAnalyzer, pkgName, packagedef);
+	//Evaluator evaluator = new Evaluator(staticAnalyzer);
+	//evaluator.evaluate(packagedef);
+	// Prelude has no IR
+	boolean generated = pkgName.equals("Prelude");
+	if (translateToKami) {
+	    generated = generateIR(pkgName, filename, packagedef);
+	}
+	// an importer that loads the interface does not regenerate the IR, so it must be there
+	if (useInterfaces && generated) {
+	    try {
+		PackageInterface.write(this, pkgName, filename, packageInputs.get(pkgName), importedPackages(packagedef),
+				       staticAnalyzer.packageScope(pkgName));
+	    } catch (IOException ex) {
+		logger.warning(String.format("Could not write the interface of %s: %s", pkgName, ex));
+	    }
+	}
+
+        System.err.println("ENDPACKAGE: " + pkgName);
+	packageFinished(pkgName, staticAnalyzer);
+	return packagedef;
+    }
+
+    /*
+     * Called once the IR of a package has been emitted, with the analyzer
+     * holding its scopes and types. Evicts the finished packages the heap
+     * budget says to.
+     */
+    void packageFinished(String pkgName, StaticAnalysis analyzer) {
+	if (heapBudget == null)
+	    return;
+	for (Map.Entry<String, StaticAnalysis> entry: heapBudget.finish(pkgName, analyzer).entrySet())
+	    evictPackage(entry.getKey(), entry.getValue());
+    }
+
+    /*
+     * Releases the parse tree of a finished package and the scopes and types
+     * of its contexts, keeping only its package scope. Afterwards it is
+     * treated like a package loaded from its interface file.
+     */
+    void evictPackage(String pkgName, StaticAnalysis analyzer) {
+	BSVParser.PackagedefContext packagedef = (BSVParser.PackagedefContext)packages.get(pkgName);
+	if (packagedef == null)
+	    return;
+	interfaceImports.put(pkgName, importedPackages(packagedef));
+	analyzer.forgetPackage(packagedef);
+	packages.put(pkgName, null);
+	sources.remove(pkgName);
+	logger.fine(String.format("evicted package %s", pkgName));
+    }
+
+    /*
+     * Makes a package that has not been seen yet available to importers:
+     * from the library snapshot bundled in the jar if its sources match,
+     * from its interface file if -interfaces is on and the file is up to
+     * date, and otherwise by analyzing it.
+     */
+    void importPackage(String pkgName) throws IOException {
+	if (packages.containsKey(pkgName))
+	    return;
+	String filename = findPackageFile(pkgName);
+	if (loadPackage(pkgName, filename) == null)
+	    analyzePackage(pkgName, filename, !pkgName.equals("Prelude"));
+    }
+
+    /*
+     * Returns the package scope of a package this compiler has already
+     * imported, or loads it from the library snapshot or its interface
+     * file as importPackage would. Returns null if it has to be analyzed
+     * from source. AnalysisScheduler and FrontendPipeline use it for the
+     * packages they import.
+     */
+    SymbolTable loadPackage(String pkgName, String filename) throws IOException {
+	if (packages.containsKey(pkgName))
+	    return staticAnalyzer.packageScope(pkgName);
+	// the bundled IR has every declaration in it
+	if (useSnapshot && reachability == null) {
+	    packages.put(pkgName, null);
+	    SymbolTable packageScope = StdlibSnapshot.load(this, pkgName, filename);
+	    if (packageScope != null) {
+		staticAnalyzer.addPackageScope(pkgName, packageScope);
+		snapshotPackages.add(pkgName);
+		if (!pkgName.equals("Prelude"))
+		    StdlibSnapshot.extractIR(this, pkgName, filename);
+		System.err.println(String.format("loaded %s from the library snapshot", pkgName));
+		return packageScope;
+	    }
+	    packages.remove(pkgName);
+	}
+	if (useInterfaces) {
+	    packages.put(pkgName, null);
+	    SymbolTable packageScope = PackageInterface.load(this, pkgName, filename);
+	    if (packageScope != null) {
+		staticAnalyzer.addPackageScope(pkgName, packageScope);
+		System.err.println(String.format("loaded interface of %s", pkgName));
+		return packageScope;
+	    }
+	    packages.remove(pkgName);
+	}
+	return null;
+    }
+
+    /*
+     * The packages a package imports explicitly, in order.
+     */
+    static List<String> importedPackages(BSVParser.PackagedefContext packagedef) {
+	ArrayList<String> imports = new ArrayList<>();
+	for (BSVParser.PackagestmtContext stmt: packagedef.packagestmt()) {
+	    BSVParser.ImportdeclContext importdecl = stmt.importdecl();
+	    if (importdecl == null)
+		continue;
+	    for (BSVParser.ImportitemContext importitem: importdecl.importitem())
+		imports.add(importitem.pkgname.getText());
+	}
+	return imports;
+    }
+
+    void analyzeImports(String pkgName, List<BSVParser.PackagestmtContext> stmts) throws IOException {
+	for (BSVParser.PackagestmtContext stmt: stmts) {
+	    BSVParser.ImportdeclContext importdecl = stmt.importdecl();
+	    if (importdecl != null) {
+		for (BSVParser.ImportitemContext importitem: importdecl.importitem()) {
+		    String importedPkgName = importitem.pkgname.getText();
+		    logger.fine(String.format("import %s %s at %s",
+					      importedPkgName,
+					      (packages.containsKey(importedPkgName) ? "previously seen" : "unseen"),
+					      StaticAnalysis.sourceLocation(importitem)));
+		    if (dotstream != null)
+			dotstream.println(String.format("    n%s -> n%s;", pkgName, importedPkgName));
+		    if (!packages.containsKey(importedPkgName)) {
+			importPackage(importedPkgName);
+		    }
+		}
+	    }
+	}
+    }
+
+    /*
+     * Runs both passes of the static analysis of a package, timing each for
+     * -phasereport.
+     */
+    void visitPackage(StaticAnalysis analyzer, String pkgName, BSVParser.PackagedefContext packagedef) {
+	visitDeclarations(analyzer, pkgName, packagedef);
+	visitBodies(analyzer, pkgName, packagedef);
+    }
+
+    /*
+     * The fresh type variable names of a package, to install with
+     * BSVType.use while analyzing or translating it.
+     */
+    BSVType.VariableNames variableNames(String pkgName) {
+	BSVType.VariableNames names = variableNames.get(pkgName);
+	if (names == null) {
+	    variableNames.putIfAbsent(pkgName, new BSVType.VariableNames(pkgName));
+	    names = variableNames.get(pkgName);
+	}
+	return names;
+    }
+
+    /*
+     * Drops an analyzed package, so that the next import or analyzePackage
+     * analyzes it from scratch, naming its type variables as a fresh run
+     * would.
+     */
+    void forgetPackage(String pkgName) {
+	BSVParser.PackagedefContext packagedef = (BSVParser.PackagedefContext)packages.remove(pkgName);
+	if (packagedef != null)
+	    staticAnalyzer.forgetPackage(packagedef);
+	variableNames.remove(pkgName);
+    }
+
+    void visitDeclarations(StaticAnalysis analyzer, String pkgName, BSVParser.PackagedefContext packagedef) {
+	PhaseReport.Span span = startPhase(pkgName, "declarations");
+	CompilerEvents.StaticAnalysisPass event = CompilerEvents.staticAnalysisPass();
+	BSVType.VariableNames previous = BSVType.use(variableNames(pkgName));
+	try {
+	    analyzer.visitPackageDeclarations(pkgName, packagedef);
+	} finally {
+	    BSVType.use(previous);
+	}
+	commitAnalysis(event, pkgName, "declarations", packagedef);
+	endPhase(span);
+    }
+
+    void visitBodies(StaticAnalysis analyzer, String pkgName, BSVParser.PackagedefContext packagedef) {
+	PhaseReport.Span span = startPhase(pkgName, "analysis");
+	CompilerEvents.StaticAnalysisPass event = CompilerEvents.staticAnalysisPass();
+	BSVType.VariableNames previous = BSVType.use(variableNames(pkgName));
+	try {
+	    analyzer.visitPackageBodies(pkgName, packagedef);
+	} finally {
+	    BSVType.use(previous);
+	}
+	commitAnalysis(event, pkgName, "bodies", packagedef);
+	endPhase(span);
+    }
+
+    private static void commitAnalysis(CompilerEvents.StaticAnalysisPass event, String pkgName, String pass,
+				       BSVParser.PackagedefContext packagedef) {
+	if (event == null)
+	    return;
+	event.end();
+	if (!event.shouldCommit())
+	    return;
+	event.pkgName = pkgName;
+	event.pass = pass;
+	event.nodes = CompilerEvents.nodeCount(packagedef);
+	event.commit();
+    }
+
+    boolean generateIR(String pkgName, String filename, BSVParser.PackagedefContext packagedef) {
+	return generateIR(pkgName, filename, packagedef, staticAnalyzer);
+    }
+
+    /*
+     * Writes the IR of a package, unless the build manifest says it is up to
+     * date. Returns false if translation failed.
+     */
+    boolean generateIR(String pkgName, String filename, BSVParser.PackagedefContext packagedef,
+			   StaticAnalysis analyzer) {
+	System.err.println(String.format("filename=%s", filename));
+	File file = new File(filename);
+	System.err.println(String.format("filename=%s file=%s", filename, file));
+	System.err.println(String.format("file.getParent()=%s", file.getParent()));
+	String dirname = (kamidir != null) ? kamidir : file.getParent();
+	System.err.println(String.format("kamidir=%s dirname=%s", kamidir, dirname));
+	File dir = new File(dirname);
+	if (!dir.exists()) {
+	    dir.mkdirs();
+	}
+	File ofile = new File(dirname, pkgName + ".generated.IR");
+	generatedIR.put(pkgName, ofile.getPath());
+	BuildManifest manifest = (kamidir != null) ? BuildManifest.forDirectory(dirname) : null;
+	String inputsHash = null;
+	if (manifest != null) {
+	    inputsHash = manifest.inputsHash(this, pkgName, packagedef);
+	    if (!rebuild && manifest.upToDate(pkgName, ofile, inputsHash)) {
+		System.err.println(String.format("%s is up to date", ofile));
+		return true;
+	    }
+	}
+	PhaseReport.Span span = startPhase(pkgName, "ir");
+	boolean generated = false;
+	BSVType.VariableNames previous = BSVType.use(variableNames(pkgName));
+	try {
+	    GenerateIR bsvToKami = new GenerateIR(pkgName, ofile, analyzer);
+	    bsvToKami.reachability = reachability;
+
+	    bsvToKami.visit(packagedef);
+	    if (manifest != null)
+		manifest.record(pkgName, inputsHash);
+	    generated = true;
+	} catch (Exception e) {
+	    String msg = String.format("Exception while translating file %s: %s", filename, e.toString());
+	    logger.severe(msg);
+	    System.err.println(msg);
+	    e.printStackTrace();
+	} catch (AssertionError e) {
+	    String msg = String.format("Assertion error while translating file %s: %s", filename, e.toString());
+	    logger.severe(msg);
+	    System.err.println(msg);
+	    e.printStackTrace();
+	} finally {
+	    BSVType.use(previous);
+	}
+	endPhase(span);
+	return generated;
+    }
+
+    static String readSource(String filename) throws IOException {
+	return new String(Files.readAllBytes(Paths.get(filename)), StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Brings an already analyzed package up to date with its source file.
+     * Only the top-level statements touched by the changes since it was last
+     * read are reparsed and reanalyzed, and the scopes of the others are kept.
+     * If the changes cannot be handled that way the package is parsed and
+     * analyzed from scratch.
+     */
+    BSVParser.PackagedefContext reanalyzePackage(String pkgName, String filename, boolean translateToKami) throws IOException {
+	BSVParser.PackagedefContext packagedef = (BSVParser.PackagedefContext)packages.get(pkgName);
+	String oldText = sources.get(pkgName);
+	String newText = readSource(filename);
+	IncrementalParser.Result result = null;
+	if (packagedef != null && oldText != null && !compactTrees)
+	    result = IncrementalParser.reparse(packagedef, oldText, newText, filename);
+	if (result == null) {
+	    System.err.println(String.format("reparsing all of %s", pkgName));
+	    packages.remove(pkgName);
+	    return analyzePackage(pkgName, filename, translateToKami);
+	}
+	sources.put(pkgName, newText);
+	System.err.println(String.format("reparsed %d of %d statements of %s",
+					 result.added.size(), packagedef.packagestmt().size(), pkgName));
+	if (result.removed.isEmpty() && result.added.isEmpty())
+	    return packagedef;
+
+	analyzeImports(pkgName, result.added);
+	staticAnalyzer.forgetPackageStatements(packagedef, result.removed);
+	List<BSVParser.PackagestmtContext> stmts = statementsToRevisit(packagedef, result);
+	if (stmts.size() > result.added.size())
+	    System.err.println(String.format("reanalyzing %d statements of %s that use changed declarations",
+					     stmts.size() - result.added.size(), pkgName));
+	staticAnalyzer.forgetPackageStatements(packagedef, stmts);
+	BSVType.VariableNames previous = BSVType.use(variableNames(pkgName));
+	try {
+	    staticAnalyzer.visitPackageStatements(pkgName, packagedef, stmts);
+	} finally {
+	    BSVType.use(previous);
+	}
+	if (translateToKami) {
+	    generateIR(pkgName, filename, packagedef);
+	}
+	return packagedef;
+    }
+
+    /*
+     * The added statements of a reparse, and the kept statements that
+     * refer, directly or through other such statements, to a name that
+     * a removed statement declared: their types were inferred from the
+     * old declaration. They are returned in package order.
+     */
+    private static List<BSVParser.PackagestmtContext> statementsToRevisit(BSVParser.PackagedefContext packagedef,
+									  IncrementalParser.Result result) {
+	Set<BSVParser.PackagestmtContext> revisit = new HashSet<>(result.added);
+	Set<String> changedNames = new HashSet<>();
+	for (BSVParser.PackagestmtContext stmt: result.removed)
+	    changedNames.addAll(Reachability.declaredNames(stmt));
+	boolean grew = !changedNames.isEmpty();
+	while (grew) {
+	    grew = false;
+	    for (BSVParser.PackagestmtContext stmt: packagedef.packagestmt()) {
+		if (revisit.contains(stmt)
+		    || Collections.disjoint(Reachability.referencedNames(stmt), changedNames))
+		    continue;
+		revisit.add(stmt);
+		changedNames.addAll(Reachability.declaredNames(stmt));
+		grew = true;
+	    }
+	}
+	List<BSVParser.PackagestmtContext> stmts = new ArrayList<>();
+	for (BSVParser.PackagestmtContext stmt: packagedef.packagestmt())
+	    if (revisit.contains(stmt))
+		stmts.add(stmt);
+	return stmts;
+    }
+}
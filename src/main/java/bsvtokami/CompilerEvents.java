@@ -0,0 +1,224 @@
+package bsvtokami;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+/*
+ * Java Flight Recorder events for the phases of a compile and for two hot
+ * operations, so that a recording of a production build can be read in
+ * terms of BSV packages, declarations and modules:
+ *
+ *   java -XX:StartFlightRecording=filename=build.jfr -jar bsvtokami.jar ...
+ *
+ * The events are disabled, and cost a branch each, unless a recording is
+ * running. BSVType.unify and symbol table lookups are far too frequent to
+ * record every call, so only one in SAMPLE_INTERVAL of them is timed and
+ * recorded, with its stack trace.
+ *
+ * On a runtime without the jdk.jfr module no event class can be loaded, so
+ * events are only made by the factories below, which return null there,
+ * and callers skip a null event.
+ */
+class CompilerEvents {
+    static final int SAMPLE_INTERVAL = 64;
+
+    static final boolean available = jfrAvailable();
+    // racy on purpose: a lost increment only moves a sample
+    private static int unifyCalls = 0;
+    private static int lookups = 0;
+
+    @Name("bsvtokami.PackageParse")
+    @Label("Package Parse")
+    @Category("bsvtokami")
+    @Description("Preprocessing and parsing of one package, or loading its tree from the parse cache")
+    static class PackageParse extends Event {
+        @Label("Package")
+        String pkgName;
+        @Label("File")
+        String filename;
+        @Label("Tokens")
+        int tokens;
+        @Label("Parse Tree Nodes")
+        int nodes;
+        @Label("From Parse Cache")
+        boolean cached;
+    }
+
+    @Name("bsvtokami.StaticAnalysis")
+    @Label("Static Analysis")
+    @Category("bsvtokami")
+    @Description("One StaticAnalysis pass over a package: declarations, or bodies")
+    static class StaticAnalysisPass extends Event {
+        @Label("Package")
+        String pkgName;
+        @Label("Pass")
+        String pass;
+        @Label("Parse Tree Nodes")
+        int nodes;
+    }
+
+    @Name("bsvtokami.DeclarationAnalysis")
+    @Label("Declaration Analysis")
+    @Category("bsvtokami")
+    @Description("StaticAnalysis of one top-level declaration and the BSVTypeVisitor type inference it drives")
+    static class DeclarationAnalysis extends Event {
+        @Label("Package")
+        String pkgName;
+        @Label("Declaration")
+        String declaration;
+        @Label("Kind")
+        String kind;
+        @Label("Pass")
+        String pass;
+        @Label("Parse Tree Nodes")
+        int nodes;
+    }
+
+    @Name("bsvtokami.IREmission")
+    @Label("IR Emission")
+    @Category("bsvtokami")
+    @Description("GenerateIR output for one top-level module, function or type declaration")
+    static class IREmission extends Event {
+        @Label("Package")
+        String pkgName;
+        @Label("Module")
+        String module;
+        @Label("Kind")
+        String kind;
+        @Label("Parse Tree Nodes")
+        int nodes;
+    }
+
+    @Name("bsvtokami.Unify")
+    @Label("Type Unification")
+    @Category("bsvtokami")
+    @Description("A sampled BSVType.unify call, including the unifications it recursed into")
+    static class Unify extends Event {
+        @Label("Left Type")
+        String left;
+        @Label("Right Type")
+        String right;
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("bsvtokami.SymbolLookup")
+    @Label("Symbol Lookup")
+    @Category("bsvtokami")
+    @Description("A sampled symbol table lookup, with the number of scopes searched")
+    static class SymbolLookup extends Event {
+        @Label("Name")
+        String key;
+        @Label("Scope")
+        String scope;
+        @Label("Type Namespace")
+        boolean typeNamespace;
+        @Label("Depth")
+        int depth;
+        @Label("Found")
+        boolean found;
+    }
+
+    // loaded only if JFR is available
+    private static class SampledTypes {
+        static final EventType unify = EventType.getEventType(Unify.class);
+        static final EventType lookup = EventType.getEventType(SymbolLookup.class);
+    }
+
+    private static boolean jfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, CompilerEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    static boolean sampleUnify() {
+        return available && SampledTypes.unify.isEnabled() && ++unifyCalls % SAMPLE_INTERVAL == 0;
+    }
+
+    static boolean sampleLookup() {
+        return available && SampledTypes.lookup.isEnabled() && ++lookups % SAMPLE_INTERVAL == 0;
+    }
+
+    /*
+     * Begun events, or null if JFR is not available.
+     */
+    static PackageParse packageParse() {
+        if (!available)
+            return null;
+        PackageParse event = new PackageParse();
+        event.begin();
+        return event;
+    }
+
+    static StaticAnalysisPass staticAnalysisPass() {
+        if (!available)
+            return null;
+        StaticAnalysisPass event = new StaticAnalysisPass();
+        event.begin();
+        return event;
+    }
+
+    static DeclarationAnalysis declarationAnalysis() {
+        if (!available)
+            return null;
+        DeclarationAnalysis event = new DeclarationAnalysis();
+        event.begin();
+        return event;
+    }
+
+    static IREmission irEmission() {
+        if (!available)
+            return null;
+        IREmission event = new IREmission();
+        event.begin();
+        return event;
+    }
+
+    /*
+     * Number of rule nodes in a parse tree, for the events' size fields.
+     */
+    static int nodeCount(ParseTree tree) {
+        if (!(tree instanceof ParserRuleContext))
+            return 0;
+        int count = 1;
+        for (int i = 0; i < tree.getChildCount(); i++)
+            count += nodeCount(tree.getChild(i));
+        return count;
+    }
+
+    /*
+     * The grammar rule of a top-level statement: moduledef, functiondef, ...
+     */
+    static String kind(BSVParser.PackagestmtContext stmt) {
+        ParseTree decl = (stmt.getChildCount() > 0) ? stmt.getChild(0) : stmt;
+        if (!(decl instanceof ParserRuleContext))
+            return "";
+        return BSVParser.ruleNames[((ParserRuleContext)decl).getRuleIndex()];
+    }
+
+    /*
+     * The name a top-level statement declares, or its source location if it is
+     * not a module, function, interface or type synonym.
+     */
+    static String declarationName(BSVParser.PackagestmtContext stmt) {
+        if (stmt.moduledef() != null)
+            return stmt.moduledef().moduleproto().name.getText();
+        if (stmt.functiondef() != null)
+            return stmt.functiondef().functionproto().name.getText();
+        if (stmt.interfacedecl() != null)
+            return stmt.interfacedecl().typedeftype().typeide().getText();
+        if (stmt.typedefsynonym() != null)
+            return stmt.typedefsynonym().typedeftype().typeide().getText();
+        return StaticAnalysis.sourceLocation(stmt);
+    }
+}
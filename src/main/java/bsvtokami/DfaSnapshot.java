@@ -0,0 +1,519 @@
+package bsvtokami;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.antlr.v4.runtime.atn.*;
+import org.antlr.v4.runtime.dfa.*;
+
+/*
+ * Saves and restores the DFA caches that the ANTLR lexer and parser build
+ * while they run, so that a run can start with the DFA that an earlier run
+ * built instead of warming it up from nothing.
+ *
+ * The DFA caches are static and shared by every BSVLexer and BSVParser, and
+ * every state keeps the ATN configurations it was computed from, since the
+ * simulators extend the DFA from them. A snapshot records the states, their
+ * configurations with their prediction contexts and semantic contexts, and
+ * the edges. It is only loaded if it was made from the same grammar.
+ *
+ * The build generates a snapshot from lib/*.bsv and bundles it in the jar
+ * as RESOURCE.
+ */
+class DfaSnapshot {
+    private static Logger logger = Logger.getGlobal();
+    static final String RESOURCE = "/bsvtokami/BSV.dfa";
+    private static final int MAGIC = 0x42535644;
+    private static final int VERSION = 1;
+    private static final int NULL_ID = -1;
+    private static final int EMPTY_CONTEXT = -2;
+    private static final int ERROR_STATE = -2;
+
+    private static final byte SINGLETON_CONTEXT = 0;
+    private static final byte ARRAY_CONTEXT = 1;
+    private static final byte NONE = 0;
+    private static final byte PREDICATE = 1;
+    private static final byte PRECEDENCE_PREDICATE = 2;
+    private static final byte AND = 3;
+    private static final byte OR = 4;
+
+    static String grammarHash() {
+        return ParseCache.hash((BSVLexer._serializedATN + BSVParser._serializedATN).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static int stateCount(DFA[] dfas) {
+        int count = 0;
+        for (DFA dfa: dfas)
+            count += dfa.states.size();
+        return count;
+    }
+
+    static void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(grammarHash());
+            new Writer(out).write();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Could not rename " + tmp + " to " + file);
+    }
+
+    /*
+     * Installs the snapshot if the DFA caches are still empty and the snapshot
+     * was made from this grammar. Returns whether it was installed.
+     */
+    static synchronized boolean load(InputStream stream) throws IOException {
+        if (stateCount(BSVParser._decisionToDFA) > 0 || stateCount(BSVLexer._decisionToDFA) > 0) {
+            logger.fine("DFA already warm, not loading snapshot");
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(stream)));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(grammarHash())) {
+            logger.warning("DFA snapshot was made from a different grammar, not loading it");
+            return false;
+        }
+        new Reader(in).read();
+        return true;
+    }
+
+    static boolean loadBundled() {
+        long startTime = System.nanoTime();
+        try (InputStream in = DfaSnapshot.class.getResourceAsStream(RESOURCE)) {
+            if (in == null) {
+                logger.warning("No DFA snapshot bundled at " + RESOURCE);
+                return false;
+            }
+            if (!load(in))
+                return false;
+        } catch (IOException e) {
+            logger.warning("Could not load DFA snapshot: " + e);
+            return false;
+        }
+        System.err.println(String.format("loaded DFA snapshot: %d parser states, %d lexer states in %.1f ms",
+                                         stateCount(BSVParser._decisionToDFA), stateCount(BSVLexer._decisionToDFA),
+                                         (System.nanoTime() - startTime) / 1.0e6));
+        return true;
+    }
+
+    private static Field field(Class<?> cls, String name) {
+        try {
+            Field field = cls.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final Field conflictingAlts = field(ATNConfigSet.class, "conflictingAlts");
+    private static final Field passedThroughNonGreedyDecision = field(LexerATNConfig.class, "passedThroughNonGreedyDecision");
+
+    private static class Writer {
+        private final DataOutputStream out;
+        private final HashMap<PredictionContext,Integer> contextIds = new HashMap<>();
+        private final ArrayList<PredictionContext> contexts = new ArrayList<>();
+        private final LexerAction[] lexerActions = BSVLexer._ATN.lexerActions;
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void write() throws IOException {
+            collectContexts(BSVParser._decisionToDFA);
+            collectContexts(BSVLexer._decisionToDFA);
+            out.writeInt(contexts.size());
+            for (PredictionContext context: contexts) {
+                if (context instanceof SingletonPredictionContext) {
+                    SingletonPredictionContext singleton = (SingletonPredictionContext)context;
+                    out.writeByte(SINGLETON_CONTEXT);
+                    out.writeInt(contextId(singleton.parent));
+                    out.writeInt(singleton.returnState);
+                } else {
+                    ArrayPredictionContext array = (ArrayPredictionContext)context;
+                    out.writeByte(ARRAY_CONTEXT);
+                    out.writeInt(array.returnStates.length);
+                    for (int i = 0; i < array.returnStates.length; i++) {
+                        out.writeInt(contextId(array.parents[i]));
+                        out.writeInt(array.returnStates[i]);
+                    }
+                }
+            }
+            writeDfas(BSVParser._decisionToDFA, false);
+            writeDfas(BSVLexer._decisionToDFA, true);
+        }
+
+        private void collectContexts(DFA[] dfas) {
+            for (DFA dfa: dfas)
+                for (DFAState state: dfa.states.keySet())
+                    for (ATNConfig config: state.configs)
+                        collectContext(config.context);
+        }
+
+        // parents are numbered before their children
+        private void collectContext(PredictionContext context) {
+            if (context == null || context == PredictionContext.EMPTY || contextIds.containsKey(context))
+                return;
+            for (int i = 0; i < context.size(); i++)
+                collectContext(context.getParent(i));
+            contextIds.put(context, contexts.size());
+            contexts.add(context);
+        }
+
+        private int contextId(PredictionContext context) {
+            if (context == null)
+                return NULL_ID;
+            if (context == PredictionContext.EMPTY)
+                return EMPTY_CONTEXT;
+            return contextIds.get(context);
+        }
+
+        private void writeDfas(DFA[] dfas, boolean lexer) throws IOException {
+            out.writeInt(dfas.length);
+            for (DFA dfa: dfas) {
+                ArrayList<DFAState> states = new ArrayList<>(dfa.states.keySet());
+                Collections.sort(states, new Comparator<DFAState>() {
+                        public int compare(DFAState a, DFAState b) {
+                            return Integer.compare(a.stateNumber, b.stateNumber);
+                        }
+                    });
+                IdentityHashMap<DFAState,Integer> ids = new IdentityHashMap<>();
+                for (DFAState state: states)
+                    ids.put(state, ids.size());
+
+                out.writeInt(states.size());
+                for (DFAState state: states) {
+                    writeConfigs(state.configs, lexer);
+                    out.writeBoolean(state.isAcceptState);
+                    out.writeInt(state.prediction);
+                    out.writeBoolean(state.requiresFullContext);
+                    writeExecutor(state.lexerActionExecutor);
+                    if (state.predicates == null) {
+                        out.writeInt(NULL_ID);
+                    } else {
+                        out.writeInt(state.predicates.length);
+                        for (DFAState.PredPrediction predicate: state.predicates) {
+                            writeSemanticContext(predicate.pred);
+                            out.writeInt(predicate.alt);
+                        }
+                    }
+                }
+                for (DFAState state: states)
+                    writeEdges(state, ids);
+
+                out.writeBoolean(dfa.isPrecedenceDfa());
+                if (dfa.isPrecedenceDfa())
+                    writeEdges(dfa.s0, ids);
+                else
+                    out.writeInt(dfa.s0 != null ? ids.get(dfa.s0) : NULL_ID);
+            }
+        }
+
+        private void writeEdges(DFAState state, IdentityHashMap<DFAState,Integer> ids) throws IOException {
+            int count = 0;
+            if (state.edges != null)
+                for (DFAState target: state.edges)
+                    if (target != null)
+                        count++;
+            out.writeInt(state.edges != null ? state.edges.length : NULL_ID);
+            out.writeInt(count);
+            for (int i = 0; state.edges != null && i < state.edges.length; i++) {
+                DFAState target = state.edges[i];
+                if (target == null)
+                    continue;
+                out.writeInt(i);
+                out.writeInt(target == ATNSimulator.ERROR ? ERROR_STATE : ids.get(target));
+            }
+        }
+
+        private void writeConfigs(ATNConfigSet configs, boolean lexer) throws IOException {
+            out.writeBoolean(configs instanceof OrderedATNConfigSet);
+            out.writeBoolean(configs.fullCtx);
+            out.writeInt(configs.uniqueAlt);
+            BitSet alts;
+            try {
+                alts = (BitSet)conflictingAlts.get(configs);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+            if (alts == null) {
+                out.writeInt(NULL_ID);
+            } else {
+                long[] words = alts.toLongArray();
+                out.writeInt(words.length);
+                for (long word: words)
+                    out.writeLong(word);
+            }
+            out.writeBoolean(configs.hasSemanticContext);
+            out.writeBoolean(configs.dipsIntoOuterContext);
+            out.writeInt(configs.size());
+            for (ATNConfig config: configs) {
+                out.writeInt(config.state.stateNumber);
+                out.writeInt(config.alt);
+                out.writeInt(contextId(config.context));
+                out.writeInt(config.reachesIntoOuterContext);
+                writeSemanticContext(config.semanticContext);
+                if (lexer) {
+                    LexerATNConfig lexerConfig = (LexerATNConfig)config;
+                    writeExecutor(lexerConfig.getLexerActionExecutor());
+                    out.writeBoolean(lexerConfig.hasPassedThroughNonGreedyDecision());
+                }
+            }
+        }
+
+        private void writeExecutor(LexerActionExecutor executor) throws IOException {
+            if (executor == null) {
+                out.writeInt(NULL_ID);
+                return;
+            }
+            LexerAction[] actions = executor.getLexerActions();
+            out.writeInt(actions.length);
+            for (LexerAction action: actions) {
+                if (action instanceof LexerIndexedCustomAction) {
+                    LexerIndexedCustomAction indexed = (LexerIndexedCustomAction)action;
+                    out.writeBoolean(true);
+                    out.writeInt(indexed.getOffset());
+                    out.writeInt(actionIndex(indexed.getAction()));
+                } else {
+                    out.writeBoolean(false);
+                    out.writeInt(actionIndex(action));
+                }
+            }
+        }
+
+        private int actionIndex(LexerAction action) {
+            for (int i = 0; i < lexerActions.length; i++)
+                if (lexerActions[i].equals(action))
+                    return i;
+            throw new IllegalStateException("Lexer action not in ATN: " + action);
+        }
+
+        private void writeSemanticContext(SemanticContext context) throws IOException {
+            if (context == null || context == SemanticContext.NONE) {
+                out.writeByte(NONE);
+            } else if (context instanceof SemanticContext.Predicate) {
+                SemanticContext.Predicate predicate = (SemanticContext.Predicate)context;
+                out.writeByte(PREDICATE);
+                out.writeInt(predicate.ruleIndex);
+                out.writeInt(predicate.predIndex);
+                out.writeBoolean(predicate.isCtxDependent);
+            } else if (context instanceof SemanticContext.PrecedencePredicate) {
+                out.writeByte(PRECEDENCE_PREDICATE);
+                out.writeInt(((SemanticContext.PrecedencePredicate)context).precedence);
+            } else {
+                SemanticContext.Operator operator = (SemanticContext.Operator)context;
+                out.writeByte(operator instanceof SemanticContext.AND ? AND : OR);
+                Collection<SemanticContext> operands = operator.getOperands();
+                out.writeInt(operands.size());
+                for (SemanticContext operand: operands)
+                    writeSemanticContext(operand);
+            }
+        }
+    }
+
+    private static class Reader {
+        private final DataInputStream in;
+        private PredictionContext[] contexts;
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        void read() throws IOException {
+            contexts = new PredictionContext[in.readInt()];
+            for (int i = 0; i < contexts.length; i++) {
+                byte kind = in.readByte();
+                if (kind == SINGLETON_CONTEXT) {
+                    PredictionContext parent = context(in.readInt());
+                    contexts[i] = SingletonPredictionContext.create(parent, in.readInt());
+                } else {
+                    int size = in.readInt();
+                    PredictionContext[] parents = new PredictionContext[size];
+                    int[] returnStates = new int[size];
+                    for (int j = 0; j < size; j++) {
+                        parents[j] = context(in.readInt());
+                        returnStates[j] = in.readInt();
+                    }
+                    contexts[i] = new ArrayPredictionContext(parents, returnStates);
+                }
+            }
+            readDfas(BSVParser._decisionToDFA, BSVParser._ATN, false);
+            readDfas(BSVLexer._decisionToDFA, BSVLexer._ATN, true);
+        }
+
+        private PredictionContext context(int id) {
+            if (id == NULL_ID)
+                return null;
+            if (id == EMPTY_CONTEXT)
+                return PredictionContext.EMPTY;
+            return contexts[id];
+        }
+
+        private void readDfas(DFA[] dfas, ATN atn, boolean lexer) throws IOException {
+            if (in.readInt() != dfas.length)
+                throw new IOException("DFA snapshot does not match the grammar");
+            for (DFA dfa: dfas) {
+                DFAState[] states = new DFAState[in.readInt()];
+                for (int i = 0; i < states.length; i++) {
+                    DFAState state = new DFAState(readConfigs(atn, lexer));
+                    state.stateNumber = i;
+                    state.isAcceptState = in.readBoolean();
+                    state.prediction = in.readInt();
+                    state.requiresFullContext = in.readBoolean();
+                    state.lexerActionExecutor = readExecutor(atn);
+                    int predicateCount = in.readInt();
+                    if (predicateCount != NULL_ID) {
+                        state.predicates = new DFAState.PredPrediction[predicateCount];
+                        for (int j = 0; j < predicateCount; j++) {
+                            SemanticContext pred = readSemanticContext();
+                            state.predicates[j] = new DFAState.PredPrediction(pred, in.readInt());
+                        }
+                    }
+                    states[i] = state;
+                }
+                for (DFAState state: states) {
+                    state.edges = readEdges(states);
+                    dfa.states.put(state, state);
+                }
+
+                if (in.readBoolean()) {
+                    DFAState[] startStates = readEdges(states);
+                    for (int precedence = 0; startStates != null && precedence < startStates.length; precedence++)
+                        if (startStates[precedence] != null)
+                            dfa.setPrecedenceStartState(precedence, startStates[precedence]);
+                } else {
+                    int s0 = in.readInt();
+                    dfa.s0 = (s0 != NULL_ID) ? states[s0] : null;
+                }
+            }
+        }
+
+        private DFAState[] readEdges(DFAState[] states) throws IOException {
+            int length = in.readInt();
+            int count = in.readInt();
+            if (length == NULL_ID)
+                return null;
+            DFAState[] edges = new DFAState[length];
+            for (int i = 0; i < count; i++) {
+                int index = in.readInt();
+                int target = in.readInt();
+                edges[index] = (target == ERROR_STATE) ? ATNSimulator.ERROR : states[target];
+            }
+            return edges;
+        }
+
+        private ATNConfigSet readConfigs(ATN atn, boolean lexer) throws IOException {
+            boolean ordered = in.readBoolean();
+            boolean fullCtx = in.readBoolean();
+            ATNConfigSet configs = ordered ? new OrderedATNConfigSet() : new ATNConfigSet(fullCtx);
+            int uniqueAlt = in.readInt();
+            BitSet alts = null;
+            int words = in.readInt();
+            if (words != NULL_ID) {
+                long[] bits = new long[words];
+                for (int i = 0; i < words; i++)
+                    bits[i] = in.readLong();
+                alts = BitSet.valueOf(bits);
+            }
+            boolean hasSemanticContext = in.readBoolean();
+            boolean dipsIntoOuterContext = in.readBoolean();
+            int count = in.readInt();
+            try {
+                for (int i = 0; i < count; i++) {
+                    ATNState state = atn.states.get(in.readInt());
+                    int alt = in.readInt();
+                    PredictionContext context = context(in.readInt());
+                    int reachesIntoOuterContext = in.readInt();
+                    SemanticContext semanticContext = readSemanticContext();
+                    ATNConfig config;
+                    if (lexer) {
+                        LexerATNConfig lexerConfig = new LexerATNConfig(state, alt, context, readExecutor(atn));
+                        passedThroughNonGreedyDecision.setBoolean(lexerConfig, in.readBoolean());
+                        config = lexerConfig;
+                    } else {
+                        config = new ATNConfig(state, alt, context, semanticContext);
+                    }
+                    config.reachesIntoOuterContext = reachesIntoOuterContext;
+                    configs.add(config);
+                }
+                configs.uniqueAlt = uniqueAlt;
+                conflictingAlts.set(configs, alts);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+            configs.hasSemanticContext = hasSemanticContext;
+            configs.dipsIntoOuterContext = dipsIntoOuterContext;
+            configs.setReadonly(true);
+            return configs;
+        }
+
+        private LexerActionExecutor readExecutor(ATN atn) throws IOException {
+            int count = in.readInt();
+            if (count == NULL_ID)
+                return null;
+            LexerAction[] actions = new LexerAction[count];
+            for (int i = 0; i < count; i++) {
+                if (in.readBoolean()) {
+                    int offset = in.readInt();
+                    actions[i] = new LexerIndexedCustomAction(offset, atn.lexerActions[in.readInt()]);
+                } else {
+                    actions[i] = atn.lexerActions[in.readInt()];
+                }
+            }
+            return new LexerActionExecutor(actions);
+        }
+
+        private SemanticContext readSemanticContext() throws IOException {
+            byte kind = in.readByte();
+            switch (kind) {
+            case NONE:
+                return SemanticContext.NONE;
+            case PREDICATE: {
+                int ruleIndex = in.readInt();
+                int predIndex = in.readInt();
+                return new SemanticContext.Predicate(ruleIndex, predIndex, in.readBoolean());
+            }
+            case PRECEDENCE_PREDICATE:
+                return new SemanticContext.PrecedencePredicate(in.readInt());
+            default: {
+                int count = in.readInt();
+                SemanticContext result = readSemanticContext();
+                for (int i = 1; i < count; i++) {
+                    SemanticContext operand = readSemanticContext();
+                    result = (kind == AND) ? new SemanticContext.AND(result, operand) : new SemanticContext.OR(result, operand);
+                }
+                return result;
+            }
+            }
+        }
+    }
+
+    /*
+     * Parses the given files and saves the DFA they leave behind.
+     * Usage: DfaSnapshot output.dfa file.bsv...
+     */
+    public static void main(String[] args) throws IOException {
+        Compiler compiler = new Compiler();
+        for (int i = 1; i < args.length; i++) {
+            File file = new File(args[i]);
+            compiler.addSearchDir((file.getParent() != null) ? file.getParent() : ".");
+        }
+        for (int i = 1; i < args.length; i++) {
+            String pkgName = new File(args[i]).getName().split("\\.")[0];
+            try {
+                compiler.parseFile(pkgName, args[i]);
+            } catch (Exception e) {
+                logger.warning(String.format("Could not parse %s: %s", args[i], e));
+            }
+        }
+        save(new File(args[0]));
+        System.err.println(String.format("saved DFA snapshot %s: %d parser states, %d lexer states",
+                                         args[0], stateCount(BSVParser._decisionToDFA), stateCount(BSVLexer._decisionToDFA)));
+    }
+}
@@ -58,10 +58,11 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
         isElaborating = true;
         finishCalled = false;
         pushScope(pkgdef);
-        logger.fine("evaluate module " + modulename + " scope " + scope);
+        Trace.fine(Trace.EVAL, "evaluate module %s scope %s", modulename, scope);
         SymbolTableEntry entry = scope.lookup(modulename);
-        logger.fine("evaluate module " + modulename + " scope " + scope + " entry " + entry
-                           + " constructor "  + ((entry != null) ? entry.value : "<null entry>"));
+        if (Trace.on(Trace.EVAL))
+            Trace.fine(Trace.EVAL, "evaluate module %s scope %s entry %s constructor %s",
+                                   modulename, scope, entry, ((entry != null) ? entry.value : "<null entry>"));
         if (entry == null) {
             finishCalled = true;
             return new VoidValue();
@@ -99,7 +100,7 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
         popScope();
         BoolValue bv = (BoolValue)v;
         if (bv == null) {
-            logger.fine("Expecting a BoolValue, got " + v);
+            Trace.fine(Trace.EVAL, "Expecting a BoolValue, got %s", v);
             return false;
         }
         return bv.value;
@@ -138,7 +139,7 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
                     commitRegisters();
                     fire_count += 1;
                 } catch (RuleNotReady ex) {
-                    logger.fine("Rule not ready " + ex);
+                    Trace.fine(Trace.EVAL, "Rule not ready %s", ex);
                 }
             }
         }
@@ -147,24 +148,24 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
 
     private void pushScope(ParserRuleContext ctx) {
         SymbolTable newScope = staticAnalyzer.getScope(ctx);
-        logger.fine(String.format("pushScope { %s-%s", newScope.name, newScope));
+        Trace.fine(Trace.SCOPES, "pushScope { %s-%s", newScope.name, newScope);
         pushScope(newScope);
     }
     private void pushScope(Rule rule) {
         SymbolTable newScope = rule.context;
-        logger.fine(String.format("pushScope rule %s{", rule.name));
+        Trace.fine(Trace.SCOPES, "pushScope rule %s{", rule.name);
         pushScope(newScope);
     }
     private void pushScope(SymbolTable newScope) {
 	assert newScope != null : "Evaluator.pushScope requires non-null scope";
-        logger.fine("Evaluator.pushScope " + newScope.name + " {");
+        Trace.fine(Trace.SCOPES, "Evaluator.pushScope %s {", newScope.name);
         scopeStack.push(newScope);
         typeVisitor.pushScope(newScope);
         scope = newScope;
     }
     private void popScope() {
         typeVisitor.popScope();
-        logger.fine("Evaluator.popScope " + scope.name + "}");
+        Trace.fine(Trace.SCOPES, "Evaluator.popScope %s}", scope.name);
         scope = scopeStack.pop();
     }
 
@@ -184,7 +185,7 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
          */
         @Override public Value visitPackagedef(BSVParser.PackagedefContext ctx) {
             pushScope(ctx);
-            logger.fine("packagedef scope " + scope);
+            Trace.fine(Trace.EVAL, "packagedef scope %s", scope);
             Value v = new VoidValue();
 	    for (BSVParser.PackagestmtContext stmt: ctx.packagestmt()) {
 		v = visit(stmt);
@@ -429,8 +430,9 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
 		    entry.value = visit(varinit.rhs);
 		}
 	    } catch (Exception e) {
-		logger.fine(String.format("ERROR: Failed to evaluate varbinding %s at %s: %s",
-					  ctx.getText(), StaticAnalysis.sourceLocation(ctx), e));
+		if (Trace.on(Trace.EVAL))
+		    Trace.fine(Trace.EVAL, "ERROR: Failed to evaluate varbinding %s at %s: %s",
+                                           ctx.getText(), StaticAnalysis.sourceLocation(ctx), e);
 		e.printStackTrace();
 	    }
 	    return new VoidValue();
@@ -439,11 +441,12 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
         @Override public Value visitActionBinding(BSVParser.ActionBindingContext ctx) {
             String var = ctx.var.getText();
             SymbolTableEntry entry = scope.lookup(var);
-            logger.fine("action bind var " + var + " scope " + scope + " entry " + entry);
+            Trace.fine(Trace.EVAL, "action bind var %s scope %s entry %s", var, scope, entry);
             Value v = null;
             if (ctx.rhs != null) {
                 v = visit(ctx.rhs);
-                logger.fine("  rhs " + ctx.rhs.getText() + " has value " + v);
+                if (Trace.on(Trace.EVAL))
+                    Trace.fine(Trace.EVAL, "  rhs %s has value %s", ctx.rhs.getText(), v);
             }
             if (isElaborating) {
                 // module monad
@@ -467,11 +470,12 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
         @Override public Value visitLetBinding(BSVParser.LetBindingContext ctx) {
             String var = ctx.lowerCaseIdentifier().get(0).getText();
             SymbolTableEntry entry = scope.lookup(var);
-            logger.fine("let var " + var + " scope " + scope + " entry " + entry);
+            Trace.fine(Trace.EVAL, "let var %s scope %s entry %s", var, scope, entry);
             Value v = null;
             if (ctx.rhs != null) {
                 v = visit(ctx.rhs);
-                logger.fine("  " + ctx.getText() + " has value " + v);
+                if (Trace.on(Trace.EVAL))
+                    Trace.fine(Trace.EVAL, "  %s has value %s", ctx.getText(), v);
                 entry.setValue(v);
             }
             return v;
@@ -492,11 +496,12 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
         @Override public Value visitVarinit(BSVParser.VarinitContext ctx) {
             String var = ctx.var.getText();
             SymbolTableEntry entry = scope.lookup(var);
-            logger.fine("var " + var + " scope " + scope + " entry " + entry);
+            Trace.fine(Trace.EVAL, "var %s scope %s entry %s", var, scope, entry);
             Value v = null;
             if (ctx.rhs != null) {
                 v = visit(ctx.rhs);
-                logger.fine("  " + ctx.getText() + " has value " + v);
+                if (Trace.on(Trace.EVAL))
+                    Trace.fine(Trace.EVAL, "  %s has value %s", ctx.getText(), v);
                 entry.setValue(v);
             } else {
                 // undefined
@@ -523,7 +528,7 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
                 if (functionproto != null) {
                     SymbolTable functionScope = staticAnalyzer.getScope(ctx);
                     String functionName = StaticAnalysis.unescape(functionproto.name.getText());
-                    logger.fine("function " + functionName + " scope " + functionScope);
+                    Trace.fine(Trace.EVAL, "function %s scope %s", functionName, functionScope);
                     int argCount = (functionproto.methodprotoformals() != null) ? functionproto.methodprotoformals().methodprotoformal().size() : 0;
                     FunctionValue function = new FunctionValue(functionName, argCount, functionScope, scope);
                     scope.lookup(functionName).setValue(function);
@@ -589,10 +594,9 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
          */
         @Override public Value visitModuledef(BSVParser.ModuledefContext ctx) {
             String moduleName = ctx.moduleproto().name.getText();
-	    logger.fine(String.format("Evaluating module def %s %s:%d",
-				      moduleName,
-				      ctx.start.getTokenSource().getSourceName(),
-				      ctx.start.getLine()));
+	    if (Trace.on(Trace.EVAL))
+	        Trace.fine(Trace.EVAL, "Evaluating module def %s %s:%d",
+                                       moduleName, ctx.start.getTokenSource().getSourceName(), ctx.start.getLine());
             SymbolTable moduleScope = staticAnalyzer.getScope(ctx); //.copy(scope);
             FunctionValue constructor = new FunctionValue(moduleName, ctx, moduleScope, scope);
             SymbolTableEntry entry = scope.lookup(moduleName);
@@ -603,7 +607,7 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
 
     public Value instantiateModule(String instanceName, FunctionValue constructor) {
 	assert constructor != null;
-        logger.fine("Instantiating module " + constructor.name);
+        Trace.fine(Trace.EVAL, "Instantiating module %s", constructor.name);
         if (constructor.name.equals("mkReg")) {
             RegValue reg = new RegValue(instanceName, constructor.args.get(0));
             registers.add(reg);
@@ -666,7 +670,7 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
         @Override public Value visitMethoddef(BSVParser.MethoddefContext ctx) {
             SymbolTable methodScope = staticAnalyzer.getScope(ctx);
             String methodName = ctx.name.getText();
-            logger.fine("method " + methodName + " scope " + methodScope);
+            Trace.fine(Trace.EVAL, "method %s scope %s", methodName, methodScope);
             FunctionValue function = new FunctionValue(methodName, ctx, methodScope, scope);
             scope.lookup(methodName).setValue(function);
             return function;
@@ -724,11 +728,12 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
         @Override public Value visitFunctiondef(BSVParser.FunctiondefContext ctx) {
             SymbolTable functionScope = staticAnalyzer.getScope(ctx);
             String functionName = StaticAnalysis.unescape(ctx.functionproto().name.getText());
-            logger.fine("function " + functionName + " scope " + functionScope);
+            Trace.fine(Trace.EVAL, "function %s scope %s", functionName, functionScope);
             FunctionValue function = new FunctionValue(functionName, ctx, functionScope, scope);
             SymbolTableEntry entry = scope.lookup(functionName);
 	    if (entry == null)
-		logger.fine(ctx.functionproto().getText());
+		if (Trace.on(Trace.EVAL))
+		    Trace.fine(Trace.EVAL, "%s", ctx.functionproto().getText());
 	    assert entry != null : String.format("No entry for %s at %s", functionName, StaticAnalysis.sourceLocation(ctx));
 	    entry.setValue(function);
             return function;
@@ -786,7 +791,8 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
             } else if (ctx.lsb != null) {
                 return lvalue.sub(visit(ctx.msb).read(), visit(ctx.lsb).read());
             } else if (ctx.lowerCaseIdentifier() != null) {
-                logger.fine("Error: Unhandled field access: " + ctx.getText());
+                if (Trace.on(Trace.EVAL))
+                    Trace.fine(Trace.EVAL, "Error: Unhandled field access: %s", ctx.getText());
                 return null;
             }
             return lvalue;
@@ -852,11 +858,12 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
         @Override public Value visitBinopexpr(BSVParser.BinopexprContext ctx) {
             if (ctx.left == null)
                 return visit(ctx.unopexpr());
-            logger.fine("visitBinop " + ctx.getText());
+            if (Trace.on(Trace.EVAL))
+                Trace.fine(Trace.EVAL, "visitBinop %s", ctx.getText());
             Value left = visit(ctx.left).read();
             Value right = visit(ctx.right).read();
             String op = ctx.op.getText();
-            logger.fine(String.format("    %s %s %s", left, op, right));
+            Trace.fine(Trace.EVAL, "    %s %s %s", left, op, right);
             return left.binop(op, right);
         }
         /**
@@ -896,9 +903,9 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
             } else {
                 entry = scope.lookup(varName);
             }
-            logger.fine("var '" + varName + "' entry " + entry + " " + scope + " parent " + scope.parent);
+            Trace.fine(Trace.EVAL, "var '%s' entry %s %s parent %s", varName, entry, scope, scope.parent);
             if (entry != null)
-                logger.fine("    entry.value " + entry.value);
+                Trace.fine(Trace.EVAL, "    entry.value %s", entry.value);
             return entry.value;
         }
         /**
@@ -985,7 +992,8 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
          */
         @Override public Value visitReturnexpr(BSVParser.ReturnexprContext ctx) {
             Value v = visit(ctx.expression());
-            logger.fine("return (" + ctx.expression().getText() + ") = " + v);
+            if (Trace.on(Trace.EVAL))
+                Trace.fine(Trace.EVAL, "return (%s) = %s", ctx.expression().getText(), v);
             return v;
         }
         /**
@@ -997,11 +1005,11 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
         @Override public Value visitFieldexpr(BSVParser.FieldexprContext ctx) {
             Value v = visit(ctx.exprprimary());
             String fieldName = ctx.field.getText();
-            logger.fine("field expr " + v + " . " + fieldName);
+            Trace.fine(Trace.EVAL, "field expr %s . %s", v, fieldName);
             ModuleInstance instance = (ModuleInstance)v;
             SymbolTableEntry entry = instance.context.lookup(fieldName);
             if (entry != null) {
-                logger.fine("  method " + entry.value);
+                Trace.fine(Trace.EVAL, "  method %s", entry.value);
                 return entry.value;
             }
             return v;
@@ -1073,7 +1081,7 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
             }
             ParserRuleContext defcontext = (closure.function != null) ? closure.function : closure.method;
             SymbolTable functionScope = staticAnalyzer.getScope(defcontext);
-            logger.fine("calling " + closure.name + " fcn (" + closure.name + ") scope " + scope);
+            Trace.fine(Trace.EVAL, "calling %s fcn (%s) scope %s", closure.name, closure.name, scope);
             //functionScope = functionScope.copy(closure.parentFrame);
             pushScope(defcontext);
 	    if (closure.provisos() != null) {
@@ -1091,7 +1099,7 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
                     String varName = formalVars.get(argnum);
                     SymbolTableEntry entry = scope.lookup(varName);
                     if (entry == null) {
-                        logger.fine("Did not find entry for function " + closure.name + " var " + varName);
+                        Trace.fine(Trace.EVAL, "Did not find entry for function %s var %s", closure.name, varName);
                     }
                     entry.value = argValue;
                     argnum += 1;
@@ -1141,28 +1149,28 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
 
     BSVType evaluateType(BSVType bsvtype) {
 	System.err.println("evaluateType " + bsvtype + " in scope " + scope.name);
-	logger.fine("evaluateType " + bsvtype + " in scope " + scope.name);
+	Trace.fine(Trace.EVAL, "evaluateType %s in scope %s", bsvtype, scope.name);
 	typeVisitor.pushScope(scope);
 	bsvtype = typeVisitor.dereferenceTypedef(bsvtype);
 	typeVisitor.popScope();
 	if (bsvtype.name.equals("TLog")) {
 	    assert bsvtype.params.size() == 1;
 	    BSVType paramtype = evaluateType(bsvtype.params.get(0));
-	    logger.fine("TLog " + paramtype);
+	    Trace.fine(Trace.EVAL, "TLog %s", paramtype);
 	    if (paramtype.numeric) {
 		long v = paramtype.asLong();
 		long log2v = log2(v);
-		logger.fine(String.format("log2(%d) = %d", v, log2v));
+		Trace.fine(Trace.EVAL, "log2(%d) = %d", v, log2v);
 		return new BSVType(log2v);
 	    }
 	} else if (bsvtype.name.equals("TExp")) {
 	    assert bsvtype.params.size() == 1;
 	    BSVType paramtype = evaluateType(bsvtype.params.get(0));
-	    logger.fine("TExp " + paramtype);
+	    Trace.fine(Trace.EVAL, "TExp %s", paramtype);
 	    if (paramtype.numeric) {
 		long v = paramtype.asLong();
 		long exp2v = exp2(v);
-		logger.fine(String.format("exp2(%d) = %d", v, exp2v));
+		Trace.fine(Trace.EVAL, "exp2(%d) = %d", v, exp2v);
 		return new BSVType(exp2v);
 	    }
 	} else if (bsvtype.name.equals("TDiv")) {
@@ -1170,7 +1178,8 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
 	    BSVType numtype = evaluateType(bsvtype.params.get(0));
 	    BSVType denomtype = evaluateType(bsvtype.params.get(1));
 	    long div = numtype.asLong() / denomtype.asLong();
-	    logger.fine(String.format("TDiv(%d, %d) = %d", numtype.asLong(), denomtype.asLong(), div));
+	    if (Trace.on(Trace.EVAL))
+	        Trace.fine(Trace.EVAL, "TDiv(%d, %d) = %d", numtype.asLong(), denomtype.asLong(), div);
 	    return new BSVType(div);
 	}
 	return bsvtype;
@@ -1190,8 +1199,9 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
             assert !bsvtype.isVar
 		: String.format("%s has type %s at %s",
 				ctx.getText(), bsvtype, StaticAnalysis.sourceLocation(ctx));
-	    logger.fine(String.format("eval valueOf(%s) with type %s at %s",
-					     ctx.bsvtype().getText(), bsvtype, StaticAnalysis.sourceLocation(ctx)));
+	    if (Trace.on(Trace.EVAL))
+	        Trace.fine(Trace.EVAL, "eval valueOf(%s) with type %s at %s",
+                                       ctx.bsvtype().getText(), bsvtype, StaticAnalysis.sourceLocation(ctx));
             return new IntValue((int)Long.parseLong(bsvtype.name));
         }
         /**
@@ -1260,12 +1270,12 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
         @Override public Value visitBeginendblock(BSVParser.BeginendblockContext block) {
             pushScope(block);
 
-            logger.fine("entering block scope " + scope + " {");
+            Trace.fine(Trace.SCOPES, "entering block scope %s {", scope);
             Value v = null;
             for (BSVParser.StmtContext stmt: block.stmt()) {
                 v = visit(stmt);
             }
-            logger.fine("} exited block");
+            Trace.fine(Trace.EVAL, "} exited block");
 
             popScope();
             return v;
@@ -1549,10 +1559,9 @@ public class Evaluator extends AbstractParseTreeVisitor<Value> implements BSVVis
 	}
         @Override public Value visitImportbvi(BSVParser.ImportbviContext ctx) {
             String moduleName = ctx.moduleproto().name.getText();
-	    logger.fine(String.format("Evaluating module def %s %s:%d",
-				      moduleName,
-				      ctx.start.getTokenSource().getSourceName(),
-				      ctx.start.getLine()));
+	    if (Trace.on(Trace.EVAL))
+	        Trace.fine(Trace.EVAL, "Evaluating module def %s %s:%d",
+                                       moduleName, ctx.start.getTokenSource().getSourceName(), ctx.start.getLine());
             SymbolTable moduleScope = staticAnalyzer.getScope(ctx); //.copy(scope);
 	    int argCount = (ctx.moduleproto().methodprotoformals() == null) ? 0 : ctx.moduleproto().methodprotoformals().methodprotoformal().size();
 	    // fixme
@@ -0,0 +1,345 @@
+package bsvtokami;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/*
+ * Compiles the import closure of a package as a pipeline of four stages,
+ * each on its own thread and connected by bounded queues:
+ *
+ *   parse         preprocess and parse, imports before their importers
+ *   declarations  the StaticAnalysis pass binding top-level names
+ *   analysis      the StaticAnalysis pass over the bodies
+ *   ir            GenerateIR
+ *
+ * so that while one package is being analyzed the next is being parsed and
+ * the previous one emitted. Each package has its own StaticAnalysis; they
+ * share the map of package scopes imports are resolved from, as with
+ * AnalysisScheduler. A package's declaration pass waits until the packages
+ * it imports have been fully analyzed, so along a chain of imports only
+ * parsing and IR generation overlap with analysis. Imports that the
+ * compiler can load from the library snapshot or their interface files,
+ * as importPackage would, are loaded by the parse stage and go no further.
+ *
+ * At the end of each compile the time each stage spent working, waiting
+ * for input, waiting for the next stage's queue and waiting for imports is
+ * printed, with the depth of its input queue; the stage with the most
+ * work, and the queue in front of it, show the bottleneck.
+ */
+class FrontendPipeline {
+    private static Logger logger = Logger.getGlobal();
+    static final int QUEUE_CAPACITY = 4;
+
+    private static class PackageNode {
+        final String pkgName;
+        String filename;
+        final boolean translateToKami;
+        final ArrayList<PackageNode> imports = new ArrayList<>();
+        final CountDownLatch analyzed = new CountDownLatch(1);
+        BSVParser.PackagedefContext packagedef;
+        StaticAnalysis analyzer;
+        volatile boolean failed;
+
+        PackageNode(String pkgName, String filename, boolean translateToKami) {
+            this.pkgName = pkgName;
+            this.filename = filename;
+            this.translateToKami = translateToKami;
+        }
+    }
+
+    // marks the end of the packages of one compile in each queue
+    private static final PackageNode END = new PackageNode("<end>", null, false);
+
+    private final Compiler compiler;
+    private final Map<String, SymbolTable> packageScopes = new ConcurrentHashMap<>();
+    // every package seen by this session's pipeline; touched only by the parse stage
+    private final HashMap<String, PackageNode> nodes = new HashMap<>();
+
+    FrontendPipeline(Compiler compiler) {
+        this.compiler = compiler;
+    }
+
+    BSVParser.PackagedefContext compile(String pkgName, String filename) throws InterruptedException {
+        BlockingQueue<PackageNode> parsed = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<PackageNode> declared = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        BlockingQueue<PackageNode> analyzed = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        ParseStage parseStage = new ParseStage(pkgName, filename, parsed);
+        Stage[] stages = {
+            parseStage,
+            new DeclarationStage(parsed, declared),
+            new AnalysisStage(declared, analyzed),
+            new IRStage(analyzed)
+        };
+
+        long startTime = System.nanoTime();
+        ExecutorService workers = Executors.newFixedThreadPool(stages.length);
+        CompletionService<Void> completions = new ExecutorCompletionService<>(workers);
+        try {
+            for (Stage stage: stages)
+                completions.submit(stage);
+            // in the order they finish, so that a stage that dies does not leave the others blocked
+            for (int i = 0; i < stages.length; i++) {
+                try {
+                    completions.take().get();
+                } catch (ExecutionException ex) {
+                    throw new RuntimeException(ex.getCause());
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+            // so that a later compile importing a package stranded here does not wait for it
+            for (PackageNode node: nodes.values()) {
+                if (node.analyzed.getCount() > 0) {
+                    node.failed = true;
+                    node.analyzed.countDown();
+                }
+            }
+        }
+        report(stages, System.nanoTime() - startTime);
+        PackageNode root = nodes.get(pkgName);
+        if (root != null && root.packagedef != null)
+            return root.packagedef;
+        return (BSVParser.PackagedefContext)compiler.packages.get(pkgName);
+    }
+
+    private static void report(Stage[] stages, long nanos) {
+        System.err.println(String.format("pipeline: %d packages in %.1f ms", stages[0].packages, nanos / 1.0e6));
+        System.err.println(String.format("%-14s %8s %10s %10s %10s %10s %9s %9s",
+                                         "stage", "packages", "busy ms", "starved ms", "blocked ms", "imports ms",
+                                         "queue max", "queue avg"));
+        for (Stage stage: stages) {
+            System.err.println(String.format("%-14s %8d %10.1f %10.1f %10.1f %10.1f %9d %9.2f",
+                                             stage.name, stage.packages, stage.busyNanos / 1.0e6,
+                                             stage.starvedNanos / 1.0e6, stage.blockedNanos / 1.0e6,
+                                             stage.importNanos / 1.0e6, stage.maxDepth,
+                                             (stage.takes > 0) ? (double)stage.depthSum / stage.takes : 0.0));
+        }
+    }
+
+    /*
+     * One stage: takes packages from its input queue, works on those that
+     * have not failed, and passes every package on, ending with END.
+     */
+    private abstract class Stage implements Callable<Void> {
+        final String name;
+        final BlockingQueue<PackageNode> in;
+        final BlockingQueue<PackageNode> out;
+        int packages;
+        long busyNanos;
+        long starvedNanos;
+        long blockedNanos;
+        long importNanos;
+        int maxDepth;
+        long depthSum;
+        int takes;
+
+        Stage(String name, BlockingQueue<PackageNode> in, BlockingQueue<PackageNode> out) {
+            this.name = name;
+            this.in = in;
+            this.out = out;
+        }
+
+        abstract void process(PackageNode node) throws Exception;
+
+        // called for every package, failed or not, once the stage is done with it
+        void done(PackageNode node) {
+        }
+
+        @Override
+        public Void call() throws Exception {
+            while (true) {
+                int depth = in.size();
+                maxDepth = Math.max(maxDepth, depth);
+                depthSum += depth;
+                takes++;
+                long startTime = System.nanoTime();
+                PackageNode node = in.take();
+                starvedNanos += System.nanoTime() - startTime;
+                if (node == END) {
+                    pass(END);
+                    return null;
+                }
+                packages++;
+                startTime = System.nanoTime();
+                if (!node.failed) {
+                    try {
+                        process(node);
+                    } catch (Exception | AssertionError e) {
+                        node.failed = true;
+                        logger.severe(String.format("%s of package %s failed: %s", name, node.pkgName, e));
+                        e.printStackTrace();
+                    }
+                }
+                done(node);
+                busyNanos += System.nanoTime() - startTime;
+                pass(node);
+            }
+        }
+
+        void pass(PackageNode node) throws InterruptedException {
+            if (out == null)
+                return;
+            long startTime = System.nanoTime();
+            out.put(node);
+            blockedNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    /*
+     * Parses the root package and, depth first, the packages it imports,
+     * passing each on after the packages it imports.
+     */
+    private class ParseStage extends Stage {
+        final String pkgName;
+        final String filename;
+
+        ParseStage(String pkgName, String filename, BlockingQueue<PackageNode> out) {
+            super("parse", null, out);
+            this.pkgName = pkgName;
+            this.filename = filename;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            try {
+                parse(pkgName, filename, true);
+            } finally {
+                pass(END);
+            }
+            return null;
+        }
+
+        // filename is null for imports, which are looked up in the search path
+        private PackageNode parse(String pkgName, String filename, boolean translateToKami) throws InterruptedException {
+            PackageNode node = nodes.get(pkgName);
+            if (node != null)
+                return node;
+            node = new PackageNode(pkgName, filename, translateToKami);
+            nodes.put(pkgName, node);
+            packages++;
+            long startTime = System.nanoTime();
+            List<String> imports = new ArrayList<>();
+            try {
+                if (filename == null) {
+                    node.filename = filename = compiler.findPackageFile(pkgName);
+                    if (load(node)) {
+                        busyNanos += System.nanoTime() - startTime;
+                        return node;
+                    }
+                }
+                node.packagedef = (BSVParser.PackagedefContext)compiler.takeParse(pkgName, filename);
+                if (compiler.dotstream != null)
+                    compiler.dotstream.println(String.format("    n%s[label=%s];", pkgName, pkgName));
+                if (!pkgName.equals("Prelude"))
+                    imports.add("Prelude");
+                for (String importedPkgName: Compiler.importedPackages(node.packagedef)) {
+                    if (compiler.dotstream != null)
+                        compiler.dotstream.println(String.format("    n%s -> n%s;", pkgName, importedPkgName));
+                    imports.add(importedPkgName);
+                }
+            } catch (IOException | RuntimeException | AssertionError e) {
+                node.failed = true;
+                logger.severe(String.format("parse of package %s failed: %s", pkgName, e));
+                e.printStackTrace();
+            }
+            busyNanos += System.nanoTime() - startTime;
+            for (String importedPkgName: imports)
+                node.imports.add(parse(importedPkgName, null, !importedPkgName.equals("Prelude")));
+            pass(node);
+            return node;
+        }
+
+        /*
+         * Loads an import without analyzing it, if the compiler can, and
+         * marks it analyzed. Otherwise holds its place in compiler.packages,
+         * so that loading an interface that imports it meanwhile does not
+         * analyze it on this thread as well.
+         */
+        private boolean load(PackageNode node) throws IOException {
+            synchronized (compiler) {
+                SymbolTable packageScope = compiler.loadPackage(node.pkgName, node.filename);
+                if (packageScope == null) {
+                    compiler.packages.put(node.pkgName, null);
+                    return false;
+                }
+                packageScopes.put(node.pkgName, packageScope);
+            }
+            node.analyzed.countDown();
+            return true;
+        }
+
+        @Override
+        void process(PackageNode node) {
+        }
+    }
+
+    private class DeclarationStage extends Stage {
+        DeclarationStage(BlockingQueue<PackageNode> in, BlockingQueue<PackageNode> out) {
+            super("declarations", in, out);
+        }
+
+        @Override
+        void process(PackageNode node) throws InterruptedException {
+            long startTime = System.nanoTime();
+            for (PackageNode imported: node.imports) {
+                imported.analyzed.await();
+                if (imported.failed) {
+                    System.err.println(String.format("ERROR: skipping package %s: import %s failed", node.pkgName, imported.pkgName));
+                    node.failed = true;
+                }
+            }
+            importNanos += System.nanoTime() - startTime;
+            busyNanos -= System.nanoTime() - startTime;
+            if (node.failed)
+                return;
+            System.err.println("STARTPACKAGE: " + node.pkgName);
+            node.analyzer = new StaticAnalysis(packageScopes);
+            node.analyzer.reachability = compiler.reachability;
+            compiler.visitDeclarations(node.analyzer, node.pkgName, node.packagedef);
+        }
+    }
+
+    private class AnalysisStage extends Stage {
+        AnalysisStage(BlockingQueue<PackageNode> in, BlockingQueue<PackageNode> out) {
+            super("analysis", in, out);
+        }
+
+        @Override
+        void process(PackageNode node) {
+            compiler.visitBodies(node.analyzer, node.pkgName, node.packagedef);
+        }
+
+        @Override
+        void done(PackageNode node) {
+            node.analyzed.countDown();
+        }
+    }
+
+    private class IRStage extends Stage {
+        IRStage(BlockingQueue<PackageNode> in) {
+            super("ir", in, null);
+        }
+
+        @Override
+        void process(PackageNode node) {
+            // the build manifest finds the trees of imports here, which the parse stage loads into
+            synchronized (compiler) {
+                compiler.packages.put(node.pkgName, node.packagedef);
+                // so that interfaces loaded later can import it
+                compiler.staticAnalyzer.addPackageScope(node.pkgName, node.analyzer.packageScope(node.pkgName));
+                if (node.translateToKami)
+                    compiler.generateIR(node.pkgName, node.filename, node.packagedef, node.analyzer);
+                System.err.println("ENDPACKAGE: " + node.pkgName);
+                compiler.packageFinished(node.pkgName, node.analyzer);
+            }
+            if (compiler.heapBudget != null) {
+                // compiler.packages and the heap budget hold them until they are evicted
+                node.packagedef = null;
+                node.analyzer = null;
+            }
+        }
+    }
+}
@@ -57,6 +57,8 @@ public class GenerateIR extends BSVBaseVisitor<String>
     private boolean inModule;
     // for modules and rules
     private LetBindings letBindings;
+    // with -top, only the reachable top-level statements are emitted
+    Reachability reachability;
     private LetBindings methodBindings;
     private ArrayList<String> statements;
     private ArrayList<String> nextMethod;
@@ -64,7 +66,7 @@ public class GenerateIR extends BSVBaseVisitor<String>
     private TreeMap<String,String> mSizeRelationshipProvisos;
     private String blockCondition;
     private static boolean traceCallm = false;
-    private static int forIndex = 1;
+    private int forIndex = 1;
     private static boolean traceModInst = false;
     private static boolean traceArgNotAction = false;
 
@@ -103,7 +105,7 @@ public class GenerateIR extends BSVBaseVisitor<String>
 
     @Override
     public String visitPackagedef(BSVParser.PackagedefContext ctx) {
-        logger.fine("Package " + pkgName);
+        Trace.fine(Trace.IR, "Package %s", pkgName);
 
         printstream.println();
 
@@ -111,7 +113,8 @@ public class GenerateIR extends BSVBaseVisitor<String>
 	typeVisitor.pushScope(scope);
         if (ctx.packagedecl() != null) {
             if (!pkgName.equals(ctx.packagedecl().pkgname.getText())) {
-                logger.fine("Expected " + pkgName + " found " + ctx.packagedecl().pkgname.getText());
+                if (Trace.on(Trace.IR))
+                    Trace.fine(Trace.IR, "Expected %s found %s", pkgName, ctx.packagedecl().pkgname.getText());
             }
         }
         visitChildren(ctx);
@@ -121,6 +124,9 @@ public class GenerateIR extends BSVBaseVisitor<String>
 
     @Override
     public String visitPackagestmt(BSVParser.PackagestmtContext ctx) {
+	if (reachability != null && !reachability.isReachable(ctx))
+	    return null;
+	CompilerEvents.IREmission event = CompilerEvents.irEmission();
 	statements = new ArrayList<>();
 	letBindings = new LetBindings();
 	visitChildren(ctx);
@@ -130,6 +136,16 @@ public class GenerateIR extends BSVBaseVisitor<String>
 	for (String letBinding: letBindings) {
 	    printstream.println(String.format("DEFINITION %s", letBinding));
 	}
+	if (event != null) {
+	    event.end();
+	    if (event.shouldCommit()) {
+		event.pkgName = pkgName;
+		event.module = CompilerEvents.declarationName(ctx);
+		event.kind = CompilerEvents.kind(ctx);
+		event.nodes = CompilerEvents.nodeCount(ctx);
+		event.commit();
+	    }
+	}
 	return null;
     }
 
@@ -145,7 +161,9 @@ public class GenerateIR extends BSVBaseVisitor<String>
 
 	StringBuilder paramsStringBuilder = new StringBuilder();
         for (BSVType freeType: interfaceType.params) {
-	    logger.fine("Ifc decl: Free type variable " + freeType + (freeType.numeric ? " nat" : " interface type"));
+	    if (Trace.on(Trace.IR))
+	        Trace.fine(Trace.IR, "Ifc decl: Free type variable %s%s",
+                                     freeType, (freeType.numeric ? " nat" : " interface type"));
 	    paramsStringBuilder.append(String.format(" (%s ZZIZ: %s)",
 						     freeType.name,
 						     (freeType.numeric ? "nat" : "Kind")));
@@ -452,8 +470,8 @@ public class GenerateIR extends BSVBaseVisitor<String>
 	String interfaceName = moduleName;
 	BSVType moduleType = typeVisitor.visit(ctx.moduleproto());
 	TreeMap<String,BSVType> freeTypeVariables = moduleType.getFreeVariables();
-	logger.fine(String.format("module %s type %s free vars %d",
-				  moduleName, moduleType, freeTypeVariables.size()));
+	if (Trace.on(Trace.IR))
+	    Trace.fine(Trace.IR, "module %s type %s free vars %d", moduleName, moduleType, freeTypeVariables.size());
 	BSVType interfaceType;
 	if (ctx.moduleproto().moduleinterface != null) {
 	    // FIXME
@@ -497,7 +515,7 @@ public class GenerateIR extends BSVBaseVisitor<String>
 	    }
 	}
 
-        logger.fine("module " + moduleName);
+        Trace.fine(Trace.IR, "module %s", moduleName);
 	printstream.println("MODULE " + moduleName + " {");
         if (!iname.equals("Empty"))
 	    printstream.println("    INTERFACE " + interfaceType.toString());
@@ -507,7 +525,9 @@ public class GenerateIR extends BSVBaseVisitor<String>
 	    // FIXME: heuristic
 	    if (freeType.name.startsWith("Num") || freeType.name.endsWith("sz") || freeType.name.endsWith("Sz") || freeType.name.equals("xlen"))
 		isNumeric = true;
-	    logger.fine("Module def: Free type variable " + freeType + (isNumeric ? " numeric" : " interface type"));
+	    if (Trace.on(Trace.IR))
+	        Trace.fine(Trace.IR, "Module def: Free type variable %s%s",
+                                     freeType, (isNumeric ? " numeric" : " interface type"));
 	}
         boolean wasInModule = inModule;
         inModule = true;
@@ -565,7 +585,7 @@ public class GenerateIR extends BSVBaseVisitor<String>
 	typeVisitor.popScope();
         scope = scopes.popScope();
         moduleDef = null;
-        logger.fine("endmodule : " + moduleName);
+        Trace.fine(Trace.IR, "endmodule : %s", moduleName);
         inModule = wasInModule;
 
 	methodBindings = parentMethodBindings;
@@ -600,7 +620,7 @@ public class GenerateIR extends BSVBaseVisitor<String>
 		try {
 		    rhsType.unify(varType);
 		} catch (InferenceError e) {
-		    logger.fine(e.toString());
+		    Trace.fine(Trace.IR, "%s", e);
 		    System.err.println(e.toString() + " at " + StaticAnalysis.sourceLocation(ctx));
 		}
                 BSVParser.CallexprContext call = getCall(rhs);
@@ -798,14 +818,16 @@ public class GenerateIR extends BSVBaseVisitor<String>
             statement.append("FIELD " + bsvTypeToKami(paramtype) + varName + " <- ");
             BSVParser.CallexprContext call = getCall(ctx.rhs);
 	    if (call != null)
-		logger.fine("Register " + call.getText() + " fcn " + ((call.fcn != null) ? call.fcn.getText() : "")
-			    + " at " + StaticAnalysis.sourceLocation(call));
+		if (Trace.on(Trace.IR))
+		    Trace.fine(Trace.IR, "Register %s fcn %s at %s",
+                                         call.getText(), ((call.fcn != null) ? call.fcn.getText() : ""), StaticAnalysis.sourceLocation(call));
 
             if (call != null && call.fcn != null && call.fcn.getText().equals("mkReg")) {
-		logger.fine("mkReg " + call.expression().get(0).getText());
+		if (Trace.on(Trace.IR))
+		    Trace.fine(Trace.IR, "mkReg %s", call.expression().get(0).getText());
                 statement.append(visit(call.expression().get(0)));
 	    } else if (call != null && call.fcn != null && call.fcn.getText().equals("mkRegU")) {
-		logger.fine("mkRegU");
+		Trace.fine(Trace.IR, "mkRegU");
                 statement.append("Default");
             } else {
                 statement.append(visit(ctx.rhs));
@@ -842,7 +864,7 @@ public class GenerateIR extends BSVBaseVisitor<String>
 	    try {
 		interfaceType.unify(bsvtype);
 	    } catch (InferenceError e) {
-		logger.fine(e.toString());
+		Trace.fine(Trace.IR, "%s", e);
 	    }
             if (interfaceType.name.equals("Reg"))
                 interfaceType = interfaceType.params.get(0).instance;
@@ -861,7 +883,7 @@ public class GenerateIR extends BSVBaseVisitor<String>
 		try {
 		    t.params.get(0).unify(argType);
 		} catch (InferenceError e) {
-		    logger.fine(e.toString());
+		    Trace.fine(Trace.IR, "%s", e);
 		}
 if (t.params.size() < 2) { //jca
 System.err.println("paramsizeless2 " + t.params.size());
@@ -910,7 +932,8 @@ break;
             //instances.add(String.format("%s(\"%s\")", call.fcn.getText(), instanceName));
         } else {
             statement.append(String.format("        6Call %s (* here *) <- %s(", varName, calleeInstanceName));
-            logger.fine("generic call " + ctx.rhs.getRuleIndex() + " " + ctx.rhs.getText());
+            if (Trace.on(Trace.IR))
+                Trace.fine(Trace.IR, "generic call %s %s", ctx.rhs.getRuleIndex(), ctx.rhs.getText());
             BSVParser.CallexprContext call = getCall(ctx.rhs);
             String sep = "";
             for (BSVParser.ExpressionContext expr: call.expression()) {
@@ -958,7 +981,7 @@ break;
 	    try {
 		rulecondtype.unify(new BSVType("Bool"));
 	    } catch (InferenceError e) {
-		logger.fine(e.toString());
+		Trace.fine(Trace.IR, "%s", e);
 		System.err.println(e.toString() + " at " + StaticAnalysis.sourceLocation(rulecond));
 	    }
 	    //if (modulevarbindings.size() > 0) {
@@ -1043,7 +1066,9 @@ break;
             // FIXME: heuristic
             if (freeType.name.endsWith("sz") || freeType.name.endsWith("Sz") || freeType.name.equals("xlen"))
                 isNumeric = true;
-            logger.fine("Function def: Free type variable " + freeType + (isNumeric ? " numeric" : " interface type"));
+            if (Trace.on(Trace.IR))
+                Trace.fine(Trace.IR, "Function def: Free type variable %s%s",
+                                     freeType, (isNumeric ? " numeric" : " interface type"));
             //printstream.println(String.format("    %s %s",
                        //(isNumeric ? "nat" : "Kind"), entry.getKey()));
         }
@@ -1514,7 +1539,8 @@ break;
 	typeVisitor.pushScope(scope);
 
         int branchnum = 0;
-        logger.fine("visitCasestmt " + ctx.getText());
+        if (Trace.on(Trace.IR))
+            Trace.fine(Trace.IR, "visitCasestmt %s", ctx.getText());
 	BSVType matchType = typeVisitor.visit(ctx.expression());
 	StringBuilder statement = new StringBuilder();
         for (BSVParser.CasestmtpatitemContext patitem: ctx.casestmtpatitem()) {
@@ -1645,7 +1671,8 @@ break;
         scope = scopes.pushScope(ctx);
 	typeVisitor.popScope();
 
-	logger.fine(String.format("For stmt at %s", StaticAnalysis.sourceLocation(ctx)));
+	if (Trace.on(Trace.IR))
+	    Trace.fine(Trace.IR, "For stmt at %s", StaticAnalysis.sourceLocation(ctx));
 
         BSVParser.FornewinitContext init = ctx.forinit().fornewinit();
         assert init != null : "Only supports new-style for loop init";
@@ -1707,7 +1734,7 @@ break;
 	    //FIXME: Not handling TAdd#, etc...
 	    params.add(bsvtype.getText());
 	}
-	logger.fine(String.format("proviso name=%s", name));
+	Trace.fine(Trace.IR, "proviso name=%s", name);
 
 	if (mSizeRelationshipProvisos.containsKey(name)) {
 	    assert params.size() >= 2 : String.format("Unexpected proviso %s %d params %s at %s",
@@ -1907,7 +1934,7 @@ break;
 	try {
 	    tagtype.unify(exprtype);
 	} catch (InferenceError e) {
-	    logger.fine(e.toString());
+	    Trace.fine(Trace.IR, "%s", e);
 	    System.err.println(e.toString() + " at " + StaticAnalysis.sourceLocation(ctx));
 	}
 
@@ -1995,7 +2022,7 @@ break;
 	StringBuilder expression = new StringBuilder();
         if (ctx.anyidentifier() != null) {
             String varName = ctx.anyidentifier().getText();
-            logger.fine("var " + varName + " scope " + scope);
+            Trace.fine(Trace.IR, "var %s scope %s", varName, scope);
             if (scope.containsKey(varName)) {
                 SymbolTableEntry entry = scope.lookup(varName);
 		String prefix = "";//#";
@@ -2012,7 +2039,7 @@ break;
 		if (!actionContext)
 		    prefix = "";
 
-                logger.fine("found binding " + varName + " " + entry.type);
+                Trace.fine(Trace.IR, "found binding %s %s", varName, entry.type);
                 if (entry.type.name.equals("Reg")) {
                     expression.append(varName);
 		} else if (varName.equals("True")) {
@@ -2125,7 +2152,7 @@ break;
 	    try {
 		argType.unify(paramType);
 	    } catch (InferenceError e) {
-		    logger.fine(e.toString());
+		    Trace.fine(Trace.IR, "%s", e);
 	    }
 	    functionType = functionType.params.get(1).prune();
 	}
@@ -2133,7 +2160,7 @@ break;
 	try {
 	    functionType.unify(resultType);
 	} catch (InferenceError e) {
-	    logger.fine(e.toString());
+	    Trace.fine(Trace.IR, "%s", e);
 	}
     }
 
@@ -2394,7 +2421,9 @@ break;
     String bsvTypeSize(BSVType bsvtype, ParserRuleContext ctx) {
 	typeVisitor.pushScope(scope);
 	BSVType dereftype = typeVisitor.dereferenceTypedef(bsvtype);
-        logger.fine(String.format("bsvtypesize %s dereftype %s at %s", bsvtype, dereftype, StaticAnalysis.sourceLocation(ctx)));
+        if (Trace.on(Trace.IR))
+            Trace.fine(Trace.IR, "bsvtypesize %s dereftype %s at %s",
+                                 bsvtype, dereftype, StaticAnalysis.sourceLocation(ctx));
 	if (bsvtype.params.size() > 0)
 	    dereftype = dereftype.instantiate(dereftype.params, bsvtype.params);
 	//System.err.println(String.format("bsvTypeSize %s deref %s", bsvtype, dereftype));
@@ -2447,7 +2476,9 @@ break;
 	typeVisitor.pushScope(scope);
 	bsvtype = bsvtype.prune();
 	BSVType dereftype = typeVisitor.dereferenceTypedef(bsvtype);
-        logger.fine(String.format("bsvtypevalue %s dereftype %s at %s", bsvtype, dereftype, StaticAnalysis.sourceLocation(ctx)));
+        if (Trace.on(Trace.IR))
+            Trace.fine(Trace.IR, "bsvtypevalue %s dereftype %s at %s",
+                                 bsvtype, dereftype, StaticAnalysis.sourceLocation(ctx));
 	if (bsvtype.params.size() > 0)
 	    dereftype = dereftype.instantiate(dereftype.params, bsvtype.params);
 	//System.err.println(String.format("bsvTypeSize %s deref %s", bsvtype, dereftype));
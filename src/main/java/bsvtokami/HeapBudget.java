@@ -0,0 +1,56 @@
+package bsvtokami;
+
+import java.util.*;
+
+/*
+ * Decides, for -evictpackages and -heapbudget, when finished packages are
+ * evicted: their parse trees, inner scopes and types are released and only
+ * their package scopes kept, which is all that importers need.
+ *
+ * With no budget every package is evicted as soon as its IR is emitted.
+ * With a budget, finished packages are kept until the used heap goes over
+ * it after a package finishes, and then all of them are evicted, oldest
+ * first. Used heap includes garbage not yet collected, so eviction may
+ * start before the live data reaches the budget.
+ */
+class HeapBudget {
+    // in bytes, or 0 to evict every package as soon as it is finished
+    final long budget;
+    // finished packages not yet evicted, with the analyzers holding their scopes and types
+    private final LinkedHashMap<String, StaticAnalysis> finished = new LinkedHashMap<>();
+    private int finishedPackages;
+    private int evictedPackages;
+    private long peakUsed;
+
+    HeapBudget(long budget) {
+        this.budget = budget;
+    }
+
+    /*
+     * Records that a package is finished, and returns the finished packages
+     * to evict now, with their analyzers.
+     */
+    synchronized Map<String, StaticAnalysis> finish(String pkgName, StaticAnalysis analyzer) {
+        finished.put(pkgName, analyzer);
+        finishedPackages++;
+        long used = usedHeap();
+        peakUsed = Math.max(peakUsed, used);
+        if (budget > 0 && used <= budget)
+            return Collections.emptyMap();
+        LinkedHashMap<String, StaticAnalysis> evicted = new LinkedHashMap<>(finished);
+        finished.clear();
+        evictedPackages += evicted.size();
+        return evicted;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    synchronized void report() {
+        System.err.println(String.format("heap budget %s: evicted %d of %d finished packages, peak heap %.1f MB",
+                                         (budget > 0) ? String.format("%d MB", budget / (1024 * 1024)) : "none",
+                                         evictedPackages, finishedPackages, peakUsed / 1048576.0));
+    }
+}
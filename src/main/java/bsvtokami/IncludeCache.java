@@ -0,0 +1,209 @@
+package bsvtokami;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.antlr.v4.runtime.*;
+
+/*
+ * Lexes each `include file once per run and replays its tokens for every
+ * later inclusion. A file is lexed in full, inactive `ifdef regions
+ * included, so that one token list serves every set of defines; the
+ * preprocessor skips inactive regions of a replayed file by token instead
+ * of by character.
+ *
+ * Replayed tokens are copies that keep the include file as their token
+ * source, so diagnostics name the include file and its line numbers as
+ * they would after lexing it. An entry is dropped when the file's size or
+ * modification time changes.
+ *
+ * If a directory is given, the token lists are also stored there, keyed by
+ * the content hash of the include file and the build of bsvtokami and its
+ * grammar, and later runs load them instead of lexing.
+ */
+class IncludeCache {
+    private static Logger logger = Logger.getGlobal();
+    private static final int MAGIC = 0x6273696e; // "bsin"
+    private static final int VERSION = 1;
+
+    private static class Entry {
+        final long lastModified;
+        final long length;
+        final List<Token> tokens;
+
+        Entry(long lastModified, long length, List<Token> tokens) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.tokens = tokens;
+        }
+    }
+
+    private static final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<>();
+    private static File cacheDir;
+    private static final AtomicLong lexed = new AtomicLong();
+    private static final AtomicLong loaded = new AtomicLong();
+    private static final AtomicLong replayed = new AtomicLong();
+
+    static void setCacheDir(String dirname) {
+        cacheDir = new File(dirname);
+        if (!cacheDir.exists())
+            cacheDir.mkdirs();
+    }
+
+    /*
+     * Returns a token source producing the tokens of filename, lexing it only
+     * if it has not been seen in this run or has changed since.
+     */
+    static TokenSource tokenSource(String filename) throws IOException {
+        File file = new File(filename);
+        long lastModified = file.lastModified();
+        long length = file.length();
+        Entry entry = entries.get(filename);
+        if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+            replayed.incrementAndGet();
+        } else {
+            entry = new Entry(lastModified, length, tokens(filename));
+            entries.put(filename, entry);
+        }
+        return new ReplayTokenSource(entry.tokens, filename);
+    }
+
+    private static List<Token> tokens(String filename) throws IOException {
+        if (cacheDir == null)
+            return lex(filename);
+        String key = ParseCache.hash((BuildManifest.toolStamp() + " " + ParseCache.hashFile(filename))
+                                     .getBytes(StandardCharsets.UTF_8));
+        File cacheFile = new File(cacheDir, key + ".tokens");
+        if (cacheFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(cacheFile))))) {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                    List<Token> tokens = new TokenCodec(filename).readTokens(in);
+                    loaded.incrementAndGet();
+                    return tokens;
+                }
+            } catch (IOException ex) {
+                logger.warning(String.format("Ignoring unreadable include cache entry %s for %s: %s", cacheFile, filename, ex));
+            }
+        }
+        List<Token> tokens = lex(filename);
+        // write to a temporary file so that a concurrent reader never sees a partial entry
+        File tmpFile = File.createTempFile(key, ".tmp", cacheDir);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            new TokenCodec(filename).writeTokens(out, tokens);
+        }
+        if (!tmpFile.renameTo(cacheFile))
+            tmpFile.delete();
+        return tokens;
+    }
+
+    private static List<Token> lex(String filename) throws IOException {
+        Lexer lexer = new BSVLexer(MappedCharStream.fromFileName(filename));
+        ArrayList<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = lexer.nextToken();
+            tokens.add(token);
+        } while (token.getType() != Token.EOF);
+        tokens.trimToSize();
+        lexed.incrementAndGet();
+        logger.fine(String.format("include cache: lexed %d tokens of %s", tokens.size(), filename));
+        return tokens;
+    }
+
+    static void report() {
+        if (lexed.get() + loaded.get() + replayed.get() == 0)
+            return;
+        System.err.println(String.format("include cache: %d files lexed, %d loaded, %d inclusions replayed",
+                                         lexed.get(), loaded.get(), replayed.get()));
+    }
+
+    /*
+     * Produces copies of a cached token list: the token stream the
+     * preprocessor feeds assigns each token its index, and the cached tokens
+     * are shared by every inclusion and every parsing thread.
+     */
+    static class ReplayTokenSource implements TokenSource {
+        private final List<Token> tokens;
+        private final String sourceName;
+        private int next = 0;
+
+        ReplayTokenSource(List<Token> tokens, String sourceName) {
+            this.tokens = tokens;
+            this.sourceName = sourceName;
+        }
+
+        private Token peek() {
+            return tokens.get(Math.min(next, tokens.size() - 1));
+        }
+
+        @Override
+        public Token nextToken() {
+            Token token = new CommonToken(peek());
+            if (next < tokens.size() - 1)
+                next++;
+            return token;
+        }
+
+        /*
+         * Advances to the `else, `elsif or `endif ending the current inactive
+         * region, stepping over nested `ifdef/`ifndef ... `endif blocks.
+         */
+        int skipInactive() {
+            int start = next;
+            int depth = 0;
+            for (; next < tokens.size() - 1; next++) {
+                Token token = tokens.get(next);
+                if (token.getChannel() != 2)
+                    continue;
+                String text = token.getText();
+                if (text.equals("`ifdef") || text.equals("`ifndef")) {
+                    depth++;
+                } else if (text.equals("`endif")) {
+                    if (depth == 0)
+                        break;
+                    depth--;
+                } else if ((text.equals("`else") || text.equals("`elsif")) && depth == 0) {
+                    break;
+                }
+            }
+            return next - start;
+        }
+
+        @Override
+        public int getLine() {
+            return peek().getLine();
+        }
+
+        @Override
+        public int getCharPositionInLine() {
+            return peek().getCharPositionInLine();
+        }
+
+        @Override
+        public CharStream getInputStream() {
+            return peek().getInputStream();
+        }
+
+        @Override
+        public String getSourceName() {
+            return sourceName;
+        }
+
+        @Override
+        public void setTokenFactory(TokenFactory<?> factory) {
+        }
+
+        @Override
+        public TokenFactory<?> getTokenFactory() {
+            return CommonTokenFactory.DEFAULT;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package bsvtokami;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.tree.*;
+
+/*
+ * Reparses only the top-level package statements touched by an edit and
+ * splices the new statements into the existing PackagedefContext.
+ *
+ * The edit is the span between the longest common prefix and suffix of the
+ * old and new source text. The statements overlapping it are re-lexed and
+ * reparsed from the new text, starting right after the last untouched
+ * statement before the edit. Tokens of the untouched statements after the
+ * edit are shifted to their new positions.
+ *
+ * reparse returns null whenever the edit cannot be handled this way, and the
+ * caller should then reparse the whole file: when the affected text contains
+ * preprocessor directives, when it touches the package declaration or
+ * endpackage, when statements contain tokens from included files, or when
+ * relexing does not line up with the start of the next untouched statement
+ * (e.g. an unterminated comment).
+ */
+class IncrementalParser {
+    private static Logger logger = Logger.getGlobal();
+
+    static class Result {
+        final List<BSVParser.PackagestmtContext> removed;
+        final List<BSVParser.PackagestmtContext> added;
+
+        Result(List<BSVParser.PackagestmtContext> removed, List<BSVParser.PackagestmtContext> added) {
+            this.removed = removed;
+            this.added = added;
+        }
+    }
+
+    static Result reparse(BSVParser.PackagedefContext packagedef, String oldText, String newText, String sourceName) {
+        int oldLength = oldText.length();
+        int newLength = newText.length();
+        int prefix = 0;
+        while (prefix < oldLength && prefix < newLength && oldText.charAt(prefix) == newText.charAt(prefix))
+            prefix++;
+        int suffix = 0;
+        while (suffix < oldLength - prefix && suffix < newLength - prefix
+               && oldText.charAt(oldLength - 1 - suffix) == newText.charAt(newLength - 1 - suffix))
+            suffix++;
+        if (prefix == oldLength && prefix == newLength)
+            return new Result(new ArrayList<BSVParser.PackagestmtContext>(), new ArrayList<BSVParser.PackagestmtContext>());
+
+        // the edit replaces old [prefix, oldEnd) with new [prefix, newEnd)
+        int oldEnd = oldLength - suffix;
+        int newEnd = newLength - suffix;
+        int delta = newLength - oldLength;
+
+        // children are: packagedecl? packagestmt* endpackage? EOF
+        List<ParseTree> children = packagedef.children;
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < children.size(); i++) {
+            ParseTree child = children.get(i);
+            Token start = startToken(child);
+            Token stop = stopToken(child);
+            if (!(child instanceof BSVParser.PackagestmtContext)) {
+                if (child instanceof BSVParser.PackagedeclContext && stop.getStopIndex() + 1 >= prefix)
+                    return null;
+                if (child instanceof BSVParser.EndpackageContext && start.getStartIndex() <= oldEnd)
+                    return null;
+                continue;
+            }
+            if (!isFrom(start, sourceName) || !isFrom(stop, sourceName))
+                return null;
+            if (stop.getStopIndex() + 1 < prefix) {
+                // untouched, before the edit
+                continue;
+            }
+            if (start.getStartIndex() > oldEnd) {
+                // untouched, after the edit
+                break;
+            }
+            if (first < 0)
+                first = i;
+            last = i;
+        }
+        if (first < 0) {
+            // the edit falls between two statements
+            int insertAt = 0;
+            while (insertAt < children.size() && !(children.get(insertAt) instanceof TerminalNode)
+                   && (children.get(insertAt) instanceof BSVParser.PackagedeclContext
+                       || stopToken(children.get(insertAt)).getStopIndex() + 1 < prefix))
+                insertAt++;
+            first = insertAt;
+            last = insertAt - 1;
+        }
+
+        int regionStart = (first > 0) ? stopToken(children.get(first - 1)).getStopIndex() + 1 : 0;
+        ParseTree next = children.get(last + 1);
+        Token boundary = startToken(next);
+        int oldRegionEnd = (boundary.getType() == Token.EOF) ? oldLength : boundary.getStartIndex();
+        int regionEnd = oldRegionEnd + delta;
+        if (regionEnd < newEnd || regionStart > prefix)
+            return null;
+        if (newText.substring(regionStart, regionEnd).indexOf('`') >= 0
+            || oldText.substring(regionStart, oldRegionEnd).indexOf('`') >= 0) {
+            logger.fine(String.format("incremental reparse of %s falls back: preprocessor directive in edited region", sourceName));
+            return null;
+        }
+
+        int[] startPosition = position(newText, regionStart);
+        CharStream charStream = CharStreams.fromString(newText, sourceName);
+        BSVLexer lexer = new BSVLexer(charStream);
+        charStream.seek(regionStart);
+        lexer.setLine(startPosition[0]);
+        lexer.setCharPositionInLine(startPosition[1]);
+        RegionTokenSource regionSource = new RegionTokenSource(lexer, regionEnd);
+
+        CommonTokenStream tokens = new CommonTokenStream(regionSource);
+        BSVParser parser = ParserPool.acquire(tokens, false);
+        parser.addErrorListener(new BSVErrorListener(false));
+
+        ArrayList<BSVParser.PackagestmtContext> added = new ArrayList<>();
+        while (tokens.LA(1) != Token.EOF) {
+            int index = tokens.index();
+            BSVParser.PackagestmtContext stmt = parser.packagestmt();
+            added.add(stmt);
+            if (tokens.index() == index)
+                tokens.consume();
+        }
+        ParserPool.release(parser);
+        if (!regionSource.aligned) {
+            logger.fine(String.format("incremental reparse of %s falls back: relexing did not end at a statement boundary", sourceName));
+            return null;
+        }
+
+        // shift the tokens that follow the edit
+        int[] oldEndPosition = position(oldText, oldRegionEnd);
+        int[] newEndPosition = position(newText, regionEnd);
+        int lineDelta = newEndPosition[0] - oldEndPosition[0];
+        int columnDelta = newEndPosition[1] - oldEndPosition[1];
+        Set<Token> shifted = Collections.newSetFromMap(new IdentityHashMap<Token,Boolean>());
+        for (int i = last + 1; i < children.size(); i++)
+            shiftTokens(children.get(i), sourceName, oldRegionEnd, oldEndPosition[0], delta, lineDelta, columnDelta, shifted);
+
+        ArrayList<BSVParser.PackagestmtContext> removed = new ArrayList<>();
+        for (int i = first; i <= last; i++)
+            removed.add((BSVParser.PackagestmtContext)children.get(i));
+        children.subList(first, last + 1).clear();
+        children.addAll(first, added);
+        for (BSVParser.PackagestmtContext stmt: added)
+            stmt.parent = packagedef;
+        if (first == 0)
+            packagedef.start = startToken(children.get(0));
+
+        logger.fine(String.format("incremental reparse of %s: replaced %d statements with %d",
+                                  sourceName, removed.size(), added.size()));
+        return new Result(removed, added);
+    }
+
+    private static boolean isFrom(Token token, String sourceName) {
+        return token.getTokenSource() != null && sourceName.equals(token.getTokenSource().getSourceName());
+    }
+
+    private static Token startToken(ParseTree tree) {
+        return (tree instanceof TerminalNode) ? ((TerminalNode)tree).getSymbol() : ((ParserRuleContext)tree).start;
+    }
+
+    private static Token stopToken(ParseTree tree) {
+        return (tree instanceof TerminalNode) ? ((TerminalNode)tree).getSymbol() : ((ParserRuleContext)tree).stop;
+    }
+
+    /*
+     * Line (1-based) and column (0-based) of a character offset.
+     */
+    private static int[] position(String text, int offset) {
+        int line = 1;
+        int lineStart = 0;
+        for (int i = 0; i < offset; i++) {
+            if (text.charAt(i) == '\n') {
+                line++;
+                lineStart = i + 1;
+            }
+        }
+        return new int[] { line, offset - lineStart };
+    }
+
+    private static void shiftToken(Token token, String sourceName, int oldRegionEnd, int boundaryLine,
+                                   int delta, int lineDelta, int columnDelta, Set<Token> shifted) {
+        // `define values are shared tokens positioned at their definition, which precedes the edit
+        if (token == null || !(token instanceof CommonToken) || token.getStartIndex() < oldRegionEnd
+            || !isFrom(token, sourceName) || !shifted.add(token))
+            return;
+        CommonToken writable = (CommonToken)token;
+        if (token.getLine() == boundaryLine)
+            writable.setCharPositionInLine(token.getCharPositionInLine() + columnDelta);
+        writable.setLine(token.getLine() + lineDelta);
+        writable.setStartIndex(token.getStartIndex() + delta);
+        writable.setStopIndex(token.getStopIndex() + delta);
+    }
+
+    private static void shiftTokens(ParseTree tree, String sourceName, int oldRegionEnd, int boundaryLine,
+                                    int delta, int lineDelta, int columnDelta, Set<Token> shifted) {
+        if (tree instanceof TerminalNode) {
+            shiftToken(((TerminalNode)tree).getSymbol(), sourceName, oldRegionEnd, boundaryLine, delta, lineDelta, columnDelta, shifted);
+            return;
+        }
+        ParserRuleContext ctx = (ParserRuleContext)tree;
+        shiftToken(ctx.start, sourceName, oldRegionEnd, boundaryLine, delta, lineDelta, columnDelta, shifted);
+        shiftToken(ctx.stop, sourceName, oldRegionEnd, boundaryLine, delta, lineDelta, columnDelta, shifted);
+        for (int i = 0; i < ctx.getChildCount(); i++)
+            shiftTokens(ctx.getChild(i), sourceName, oldRegionEnd, boundaryLine, delta, lineDelta, columnDelta, shifted);
+    }
+
+    /*
+     * Returns the lexer's tokens up to the end of the edited region, then EOF.
+     * Records whether the region ended exactly at the start of a token, which
+     * is the first token of the untouched text that follows.
+     */
+    static class RegionTokenSource implements TokenSource {
+        private final Lexer lexer;
+        private final int regionEnd;
+        boolean aligned = false;
+        private Token eof;
+
+        RegionTokenSource(Lexer lexer, int regionEnd) {
+            this.lexer = lexer;
+            this.regionEnd = regionEnd;
+        }
+
+        @Override
+        public Token nextToken() {
+            if (eof != null)
+                return eof;
+            Token token = lexer.nextToken();
+            if (token.getType() != Token.EOF && token.getStopIndex() < regionEnd)
+                return token;
+            aligned = (token.getStartIndex() == regionEnd);
+            Pair<TokenSource,CharStream> source = new Pair<TokenSource,CharStream>(this, lexer.getInputStream());
+            eof = lexer.getTokenFactory().create(source, Token.EOF, "<EOF>", Token.DEFAULT_CHANNEL,
+                                                 regionEnd, regionEnd - 1, token.getLine(), token.getCharPositionInLine());
+            return eof;
+        }
+
+        @Override
+        public int getLine() {
+            return lexer.getLine();
+        }
+
+        @Override
+        public int getCharPositionInLine() {
+            return lexer.getCharPositionInLine();
+        }
+
+        @Override
+        public CharStream getInputStream() {
+            return lexer.getInputStream();
+        }
+
+        @Override
+        public String getSourceName() {
+            return lexer.getSourceName();
+        }
+
+        @Override
+        public void setTokenFactory(TokenFactory<?> factory) {
+            lexer.setTokenFactory(factory);
+        }
+
+        @Override
+        public TokenFactory<?> getTokenFactory() {
+            return lexer.getTokenFactory();
+        }
+    }
+}
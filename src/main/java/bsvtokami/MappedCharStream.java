@@ -0,0 +1,132 @@
+package bsvtokami;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Interval;
+
+/*
+ * A CharStream that reads an ASCII source file through a memory-mapped
+ * buffer instead of copying it into a code point array on the heap.
+ *
+ * Small files, and files containing non-ASCII bytes (which need UTF-8
+ * decoding), are read with CharStreams.fromFileName as before.
+ */
+class MappedCharStream implements CharStream {
+    private static Logger logger = Logger.getGlobal();
+    static long minMappedSize = 1 << 20;
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final String name;
+    private int p = 0;
+
+    private MappedCharStream(ByteBuffer buffer, int size, String name) {
+        this.buffer = buffer;
+        this.size = size;
+        this.name = name;
+    }
+
+    static CharStream fromFileName(String filename) throws IOException {
+        File file = new File(filename);
+        long length = file.length();
+        if (length < minMappedSize || length > Integer.MAX_VALUE)
+            return CharStreams.fromFileName(filename);
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        if (!isAscii(buffer, (int)length)) {
+            logger.fine(String.format("%s is not ASCII, reading it into the heap", filename));
+            return CharStreams.fromFileName(filename);
+        }
+        logger.fine(String.format("mapped %s (%d bytes)", filename, length));
+        return new MappedCharStream(buffer, (int)length, filename);
+    }
+
+    private static boolean isAscii(ByteBuffer buffer, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if ((buffer.getLong(i) & 0x8080808080808080L) != 0)
+                return false;
+        }
+        for (; i < length; i++) {
+            if ((buffer.get(i) & 0x80) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void consume() {
+        if (p >= size) {
+            assert LA(1) == IntStream.EOF;
+            throw new IllegalStateException("cannot consume EOF");
+        }
+        p++;
+    }
+
+    @Override
+    public int LA(int i) {
+        if (i == 0)
+            return 0; // undefined
+        int index = (i > 0) ? p + i - 1 : p + i;
+        if (index < 0 || index >= size)
+            return IntStream.EOF;
+        return buffer.get(index) & 0xff;
+    }
+
+    @Override
+    public int mark() {
+        return -1;
+    }
+
+    @Override
+    public void release(int marker) {
+    }
+
+    @Override
+    public int index() {
+        return p;
+    }
+
+    @Override
+    public void seek(int index) {
+        p = Math.min(index, size);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String getSourceName() {
+        return (name == null || name.isEmpty()) ? UNKNOWN_SOURCE_NAME : name;
+    }
+
+    @Override
+    public String getText(Interval interval) {
+        int start = Math.min(interval.a, size);
+        int stop = Math.min(interval.b, size - 1);
+        if (stop < start)
+            return "";
+        byte[] bytes = new byte[stop - start + 1];
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public String toString() {
+        return getText(Interval.of(0, size - 1));
+    }
+}
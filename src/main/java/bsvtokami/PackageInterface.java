@@ -0,0 +1,386 @@
+package bsvtokami;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Reads and writes package interface files (<pkg>.bki, next to the
+ * package's .generated.IR): the package scope that importers copy their
+ * bindings from, with everything reachable from its entries -- types,
+ * symbol kinds, interface and tagged union mappings, type class instances
+ * and enum and union tag values.
+ *
+ * The file also records the build of bsvtokami that wrote it (see
+ * BuildManifest.toolStamp), the package's source and included files, with
+ * their content hashes, and the packages it imports. It is used in place of
+ * the source only if it was written by this build, and is newer than all of
+ * those files and than the interface files of its imports, which are
+ * brought up to date first. It is written only once the package's IR has
+ * been, since importers that load it do not regenerate the IR.
+ * StdlibSnapshot bundles these files for lib/ in the jar, which are from
+ * the jar's own build, and checks the hashes instead.
+ *
+ * Entries, scopes and types are written once and then referred to by
+ * index, so sharing and cycles (an interface's methods point back to the
+ * interface) survive the round trip. A scope whose parent is not written
+ * is read back without a parent; the package scope's parent is a fresh
+ * scope holding the bindings of its imports.
+ */
+class PackageInterface {
+    private static Logger logger = Logger.getGlobal();
+    private static final int MAGIC = 0x42534b49;
+    private static final int VERSION = 3;
+    private static final int NULL_REF = -1;
+    private static final int NEW_REF = -2;
+    private static final int IMPORTS_SCOPE = -3;
+    private static final byte NO_VALUE = 0;
+    private static final byte INT_VALUE = 1;
+
+    static File interfaceFile(Compiler compiler, String pkgName, String filename) {
+        String dirname = (compiler.kamidir != null) ? compiler.kamidir : new File(filename).getParent();
+        return new File(dirname, pkgName + ".bki");
+    }
+
+    static void write(Compiler compiler, String pkgName, String filename, List<String> inputs, List<String> imports,
+                      SymbolTable packageScope) throws IOException {
+        File file = interfaceFile(compiler, pkgName, filename);
+        file.getParentFile().mkdirs();
+        File tmpfile = File.createTempFile(pkgName + ".bki", ".tmp", file.getParentFile());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpfile))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(BuildManifest.toolStamp());
+            writeStrings(out, inputs);
+            ArrayList<String> hashes = new ArrayList<>();
+            for (String input: inputs)
+                hashes.add(ParseCache.hashFile(input));
+            writeStrings(out, hashes);
+            writeStrings(out, imports);
+            new Writer(out, packageScope).writeTable(packageScope);
+        }
+        if (!tmpfile.renameTo(file)) {
+            file.delete();
+            if (!tmpfile.renameTo(file))
+                throw new IOException("Could not replace " + file);
+        }
+        logger.fine(String.format("wrote interface of %s to %s", pkgName, file));
+    }
+
+    /*
+     * Returns the package scope of pkgName from its interface file, or null
+     * if there is no usable, up to date interface file. Imports the packages
+     * it depends on, by interface or by analysis, through the compiler's
+     * importPackage, and imports their bindings with its analyzer.
+     */
+    static SymbolTable load(Compiler compiler, String pkgName, String filename) throws IOException {
+        File file = interfaceFile(compiler, pkgName, filename);
+        if (!file.exists())
+            return null;
+        long lastModified = file.lastModified();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            List<List<String>> header = readHeader(in);
+            if (header == null)
+                return null;
+            if (!header.get(3).get(0).equals(BuildManifest.toolStamp())) {
+                logger.fine(String.format("interface of %s was written by another build of bsvtokami", pkgName));
+                return null;
+            }
+            // the hashes are for bundled interfaces, which cannot go by modification times
+            List<String> inputs = header.get(0);
+            List<String> imports = header.get(2);
+            if (inputs.isEmpty() || !new File(inputs.get(0)).getCanonicalPath().equals(new File(filename).getCanonicalPath()))
+                return null;
+            for (String input: inputs) {
+                File inputFile = new File(input);
+                if (!inputFile.exists() || inputFile.lastModified() >= lastModified) {
+                    logger.fine(String.format("interface of %s is older than %s", pkgName, input));
+                    return null;
+                }
+            }
+            for (String importedPkgName: imports) {
+                compiler.importPackage(importedPkgName);
+                // still being analyzed, here or by AnalysisScheduler or FrontendPipeline
+                if (compiler.staticAnalyzer.packageScope(importedPkgName) == null) {
+                    logger.fine(String.format("interface of %s imports %s, which is being analyzed", pkgName, importedPkgName));
+                    return null;
+                }
+                File importedFile = interfaceFile(compiler, importedPkgName, compiler.findPackageFile(importedPkgName));
+                if (!importedFile.exists() || importedFile.lastModified() > lastModified) {
+                    logger.fine(String.format("interface of %s is older than that of %s", pkgName, importedPkgName));
+                    return null;
+                }
+            }
+            return readScope(compiler, pkgName, inputs, imports, in);
+        } catch (IOException | IllegalArgumentException ex) {
+            logger.warning(String.format("Ignoring unreadable interface file %s: %s", file, ex));
+            return null;
+        }
+    }
+
+    /*
+     * Reads the header of an interface file: its inputs, their hashes, its
+     * imports and, alone in a list, the tool stamp of the build that wrote
+     * it, in that order. Returns null if it is not an interface file of this
+     * version.
+     */
+    static List<List<String>> readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            return null;
+        String toolStamp = in.readUTF();
+        List<List<String>> header = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            header.add(readStrings(in));
+        header.add(Collections.singletonList(toolStamp));
+        return header;
+    }
+
+    /*
+     * Reads the package scope that follows the header, once the imports
+     * have been brought in, and records the inputs and imports of the
+     * package for the build manifest.
+     */
+    static SymbolTable readScope(Compiler compiler, String pkgName, List<String> inputs, List<String> imports,
+                                 DataInputStream in) throws IOException {
+        StaticAnalysis analyzer = compiler.staticAnalyzer;
+        SymbolTable importScope = new SymbolTable(null, SymbolTable.ScopeType.Package, pkgName + "-imports");
+        if (!pkgName.equals("Prelude"))
+            analyzer.importPackage(importScope, "Prelude");
+        for (String importedPkgName: imports)
+            analyzer.importPackage(importScope, importedPkgName);
+        SymbolTable packageScope = new Reader(in, importScope).readTable();
+        compiler.packageInputs.put(pkgName, inputs);
+        compiler.interfaceImports.put(pkgName, imports);
+        return packageScope;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String s: strings)
+            out.writeUTF(s);
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        ArrayList<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            strings.add(in.readUTF());
+        return strings;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static class Writer {
+        private final DataOutputStream out;
+        private final SymbolTable packageScope;
+        private final IdentityHashMap<Object,Integer> ids = new IdentityHashMap<>();
+        private final IdentityHashMap<Object,Boolean> written = new IdentityHashMap<>();
+
+        Writer(DataOutputStream out, SymbolTable packageScope) {
+            this.out = out;
+            this.packageScope = packageScope;
+            collectTables(packageScope);
+        }
+
+        // the scopes that will be written, so that parents outside them are dropped
+        private void collectTables(SymbolTable table) {
+            if (table == null || written.containsKey(table))
+                return;
+            written.put(table, true);
+            for (SymbolTableEntry entry: table.bindings.values())
+                collectTables(entry);
+            for (SymbolTableEntry entry: table.typeBindings.values())
+                collectTables(entry);
+        }
+
+        private void collectTables(SymbolTableEntry entry) {
+            if (entry == null || written.containsKey(entry))
+                return;
+            written.put(entry, true);
+            collectTables(entry.mappings);
+            if (entry.instances != null)
+                for (SymbolTableEntry instance: entry.instances)
+                    collectTables(instance);
+            collectTables(entry.parent);
+        }
+
+        private boolean startRef(Object o) throws IOException {
+            if (o == null) {
+                out.writeInt(NULL_REF);
+                return false;
+            }
+            Integer id = ids.get(o);
+            if (id != null) {
+                out.writeInt(id);
+                return false;
+            }
+            ids.put(o, ids.size());
+            out.writeInt(NEW_REF);
+            return true;
+        }
+
+        void writeTable(SymbolTable table) throws IOException {
+            if (table != packageScope && table != null && table == packageScope.parent) {
+                out.writeInt(IMPORTS_SCOPE);
+                return;
+            }
+            if (!startRef(table))
+                return;
+            if (table == packageScope)
+                out.writeInt(IMPORTS_SCOPE);
+            else
+                writeTable(written.containsKey(table.parent) ? table.parent : null);
+            out.writeUTF(table.name);
+            out.writeUTF(table.scopeType.name());
+            writeBindings(table.bindings);
+            writeBindings(table.typeBindings);
+        }
+
+        private void writeBindings(Map<String,SymbolTableEntry> bindings) throws IOException {
+            out.writeInt(bindings.size());
+            for (Map.Entry<String,SymbolTableEntry> binding: bindings.entrySet()) {
+                out.writeUTF(binding.getKey());
+                writeEntry(binding.getValue());
+            }
+        }
+
+        private void writeEntry(SymbolTableEntry entry) throws IOException {
+            if (!startRef(entry))
+                return;
+            out.writeUTF(entry.name);
+            writeType(entry.type);
+            out.writeUTF(entry.symbolType.name());
+            writeTable(entry.mappings);
+            out.writeInt((entry.instances != null) ? entry.instances.size() : -1);
+            if (entry.instances != null)
+                for (SymbolTableEntry instance: entry.instances)
+                    writeEntry(instance);
+            if (entry.value instanceof IntValue) {
+                out.writeByte(INT_VALUE);
+                out.writeLong(((IntValue)entry.value).value);
+            } else {
+                if (entry.value != null)
+                    logger.fine(String.format("interface: not writing value %s of %s", entry.value, entry.name));
+                out.writeByte(NO_VALUE);
+            }
+            writeString(out, entry.instanceName);
+            writeString(out, entry.pkgName);
+            writeEntry(entry.parent);
+            out.writeBoolean(entry.isConstT);
+        }
+
+        private void writeType(BSVType type) throws IOException {
+            if (!startRef(type))
+                return;
+            out.writeUTF(type.name);
+            out.writeBoolean(type.numeric);
+            out.writeBoolean(type.isVar);
+            out.writeInt(type.params.size());
+            for (BSVType param: type.params)
+                writeType(param);
+            writeType(type.instance);
+        }
+    }
+
+    private static class Reader {
+        private final DataInputStream in;
+        private final SymbolTable importScope;
+        private final ArrayList<Object> objects = new ArrayList<>();
+
+        Reader(DataInputStream in, SymbolTable importScope) {
+            this.in = in;
+            this.importScope = importScope;
+        }
+
+        SymbolTable readTable() throws IOException {
+            int ref = in.readInt();
+            if (ref == NULL_REF)
+                return null;
+            if (ref == IMPORTS_SCOPE)
+                return importScope;
+            if (ref != NEW_REF)
+                return (SymbolTable)objects.get(ref);
+            int id = objects.size();
+            objects.add(null);
+            SymbolTable parent = readTable();
+            String name = in.readUTF();
+            SymbolTable.ScopeType scopeType = SymbolTable.ScopeType.valueOf(in.readUTF());
+            SymbolTable table = new SymbolTable(parent, scopeType, name);
+            objects.set(id, table);
+            readBindings(table.bindings);
+            readBindings(table.typeBindings);
+            return table;
+        }
+
+        private void readBindings(Map<String,SymbolTableEntry> bindings) throws IOException {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                bindings.put(key, readEntry());
+            }
+        }
+
+        private SymbolTableEntry readEntry() throws IOException {
+            int ref = in.readInt();
+            if (ref == NULL_REF)
+                return null;
+            if (ref != NEW_REF)
+                return (SymbolTableEntry)objects.get(ref);
+            int id = objects.size();
+            objects.add(null);
+            String name = in.readUTF();
+            // registered before its fields are read, since they can refer back to it
+            SymbolTableEntry entry = new SymbolTableEntry(name, null);
+            objects.set(id, entry);
+            entry.type = readType();
+            entry.symbolType = SymbolType.valueOf(in.readUTF());
+            entry.mappings = readTable();
+            int instanceCount = in.readInt();
+            if (instanceCount >= 0) {
+                entry.instances = new ArrayList<>();
+                for (int i = 0; i < instanceCount; i++)
+                    entry.instances.add(readEntry());
+            }
+            if (in.readByte() == INT_VALUE)
+                entry.value = new IntValue(in.readLong());
+            entry.instanceName = readString(in);
+            entry.pkgName = readString(in);
+            entry.parent = readEntry();
+            entry.isConstT = in.readBoolean();
+            return entry;
+        }
+
+        private BSVType readType() throws IOException {
+            int ref = in.readInt();
+            if (ref == NULL_REF)
+                return null;
+            if (ref != NEW_REF)
+                return (BSVType)objects.get(ref);
+            int id = objects.size();
+            objects.add(null);
+            String name = in.readUTF();
+            // fresh type variables, tvarN or tvarN$Pkg, are named again, so that they
+            // cannot collide with those of packages analyzed in this session
+            BSVType type = name.matches("tvar[0-9]+(\\$.*)?") ? new BSVType() : new BSVType(name);
+            objects.set(id, type);
+            type.numeric = in.readBoolean();
+            type.isVar = in.readBoolean();
+            int paramCount = in.readInt();
+            type.params = new ArrayList<>(paramCount);
+            for (int i = 0; i < paramCount; i++)
+                type.params.add(readType());
+            type.instance = readType();
+            return type;
+        }
+    }
+}
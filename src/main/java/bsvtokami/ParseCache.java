@@ -0,0 +1,340 @@
+package bsvtokami;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.*;
+
+/*
+ * On-disk cache of preprocessed token streams and parse trees.
+ *
+ * Entries are keyed by the hash of the package source, the set of
+ * preprocessor symbols defined before it is read, and the build of
+ * bsvtokami and its grammar (see BuildManifest.toolStamp), so a rebuilt
+ * parser does not load trees of an older grammar. Each entry also records
+ * the hashes of the files it included, and is ignored if any of them changed.
+ */
+class ParseCache {
+    private static Logger logger = Logger.getGlobal();
+    private static final int MAGIC = 0x42534b50;
+    private static final int VERSION = 2;
+    private static final byte RULE_NODE = 0;
+    private static final byte TERMINAL_NODE = 1;
+    private static final byte ERROR_NODE = 2;
+    private static final byte TOKEN_LABEL = 0;
+    private static final byte CONTEXT_LABEL = 1;
+
+    private static final HashMap<Class<?>,Field[]> labelFields = new HashMap<>();
+    private static final HashMap<String,Constructor<?>[]> constructors = new HashMap<>();
+
+    private final File cacheDir;
+    private int hits;
+    private int misses;
+    private long hitNanos;
+    private long missNanos;
+
+    ParseCache(String dirname) {
+        cacheDir = new File(dirname);
+        if (!cacheDir.exists())
+            cacheDir.mkdirs();
+    }
+
+    static String hash(byte[] bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b: digest.digest(bytes))
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    static String hashFile(String filename) throws IOException {
+        return hash(Files.readAllBytes(new File(filename).toPath()));
+    }
+
+    /*
+     * The cache key for a file: the bsvtokami build and grammar, the file's
+     * content hash and the preprocessor symbols (and their values) defined
+     * before the file is read.
+     */
+    static String key(String filename, Map<String,Token> defines) throws IOException {
+        StringBuilder key = new StringBuilder(BuildManifest.toolStamp());
+        key.append(" ").append(hashFile(filename));
+        for (String define: new TreeSet<>(defines.keySet())) {
+            Token value = defines.get(define);
+            key.append(String.format(" %s=%s", define, (value != null) ? value.getText() : ""));
+        }
+        return hash(key.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private File entryFile(String key) {
+        return new File(cacheDir, key + ".parse");
+    }
+
+    /*
+     * Returns the cached parse tree for this key and adds the files it
+     * included to includes, or returns null if there is no usable entry.
+     */
+    ParserRuleContext load(String key, String filename, List<String> includes) {
+        File file = entryFile(key);
+        if (!file.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            TokenCodec codec = new TokenCodec(filename);
+            ArrayList<String> included = new ArrayList<>();
+            int includeCount = in.readInt();
+            for (int i = 0; i < includeCount; i++) {
+                String include = codec.readString(in);
+                String includeHash = codec.readString(in);
+                if (!new File(include).exists() || !hashFile(include).equals(includeHash)) {
+                    logger.fine(String.format("parse cache entry for %s is stale: %s changed", filename, include));
+                    return null;
+                }
+                included.add(include);
+            }
+            List<Token> tokens = codec.readTokens(in);
+            ParserRuleContext tree = (ParserRuleContext)readTree(in, codec, tokens, null);
+            includes.addAll(included);
+            return tree;
+        } catch (IOException | ReflectiveOperationException | ClassCastException ex) {
+            logger.warning(String.format("Ignoring unreadable parse cache entry %s for %s: %s", file, filename, ex));
+            return null;
+        }
+    }
+
+    void store(String key, String filename, ParserRuleContext tree, List<Token> tokens, List<String> includes) {
+        File file = entryFile(key);
+        try {
+            File tmpfile = File.createTempFile(key, ".tmp", cacheDir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpfile))))) {
+                TokenCodec codec = new TokenCodec(filename);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(includes.size());
+                for (String include: includes) {
+                    codec.writeString(out, include);
+                    codec.writeString(out, hashFile(include));
+                }
+
+                // the token stream can hold the same token more than once (`define substitutions)
+                IdentityHashMap<Token,Integer> tokenIds = new IdentityHashMap<>();
+                ArrayList<Token> uniqueTokens = new ArrayList<>();
+                for (Token token: tokens)
+                    addToken(token, tokenIds, uniqueTokens);
+                collectTokens(tree, tokenIds, uniqueTokens);
+
+                codec.writeTokens(out, uniqueTokens);
+                writeTree(out, codec, tree, tokenIds);
+            }
+            Files.move(tmpfile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | ReflectiveOperationException ex) {
+            logger.warning(String.format("Could not write parse cache entry %s for %s: %s", file, filename, ex));
+        }
+    }
+
+    synchronized void hit(String filename, long nanos) {
+        hits++;
+        hitNanos += nanos;
+        System.err.println(String.format("parse cache hit %s %.1f ms", filename, nanos / 1.0e6));
+    }
+
+    synchronized void miss(String filename, long nanos) {
+        misses++;
+        missNanos += nanos;
+        System.err.println(String.format("parse cache miss %s %.1f ms", filename, nanos / 1.0e6));
+    }
+
+    synchronized void report() {
+        System.err.println(String.format("parse cache: %d warm (%.1f ms) %d cold (%.1f ms)",
+                                         hits, hitNanos / 1.0e6, misses, missNanos / 1.0e6));
+    }
+
+    private static void addToken(Token token, IdentityHashMap<Token,Integer> tokenIds, ArrayList<Token> uniqueTokens) {
+        if (token != null && !tokenIds.containsKey(token)) {
+            tokenIds.put(token, uniqueTokens.size());
+            uniqueTokens.add(token);
+        }
+    }
+
+    private static void collectTokens(ParseTree tree, IdentityHashMap<Token,Integer> tokenIds, ArrayList<Token> uniqueTokens)
+        throws ReflectiveOperationException {
+        if (tree instanceof TerminalNode) {
+            addToken(((TerminalNode)tree).getSymbol(), tokenIds, uniqueTokens);
+            return;
+        }
+        ParserRuleContext ctx = (ParserRuleContext)tree;
+        addToken(ctx.start, tokenIds, uniqueTokens);
+        addToken(ctx.stop, tokenIds, uniqueTokens);
+        for (Field field: labelFields(ctx.getClass())) {
+            Object value = field.get(ctx);
+            if (value instanceof Token)
+                addToken((Token)value, tokenIds, uniqueTokens);
+        }
+        for (int i = 0; i < ctx.getChildCount(); i++)
+            collectTokens(ctx.getChild(i), tokenIds, uniqueTokens);
+    }
+
+    /*
+     * The public Token and context fields that the generated parser sets for
+     * labeled elements, e.g. left, op and right of binopexpr.
+     */
+    static Field[] labelFields(Class<?> cls) {
+        synchronized (labelFields) {
+            Field[] fields = labelFields.get(cls);
+            if (fields == null) {
+                ArrayList<Field> list = new ArrayList<>();
+                for (Field field: cls.getFields()) {
+                    Class<?> declaringClass = field.getDeclaringClass();
+                    if (declaringClass == ParserRuleContext.class || declaringClass == RuleContext.class
+                        || Modifier.isStatic(field.getModifiers()))
+                        continue;
+                    if (Token.class.isAssignableFrom(field.getType())
+                        || ParserRuleContext.class.isAssignableFrom(field.getType()))
+                        list.add(field);
+                }
+                fields = list.toArray(new Field[list.size()]);
+                labelFields.put(cls, fields);
+            }
+            return fields;
+        }
+    }
+
+    private static int tokenId(Token token, IdentityHashMap<Token,Integer> tokenIds) {
+        return (token != null) ? tokenIds.get(token) : -1;
+    }
+
+    private static void writeTree(DataOutputStream out, TokenCodec codec, ParseTree tree, IdentityHashMap<Token,Integer> tokenIds)
+        throws IOException, ReflectiveOperationException {
+        if (tree instanceof TerminalNode) {
+            out.writeByte((tree instanceof ErrorNode) ? ERROR_NODE : TERMINAL_NODE);
+            out.writeInt(tokenId(((TerminalNode)tree).getSymbol(), tokenIds));
+            return;
+        }
+        ParserRuleContext ctx = (ParserRuleContext)tree;
+        out.writeByte(RULE_NODE);
+        codec.writeString(out, ctx.getClass().getName());
+        out.writeInt(ctx.invokingState);
+        out.writeInt(tokenId(ctx.start, tokenIds));
+        out.writeInt(tokenId(ctx.stop, tokenIds));
+
+        Field[] fields = labelFields(ctx.getClass());
+        int labelCount = 0;
+        for (Field field: fields)
+            if (field.get(ctx) != null)
+                labelCount++;
+        out.writeInt(labelCount);
+        for (Field field: fields) {
+            Object value = field.get(ctx);
+            if (value == null)
+                continue;
+            codec.writeString(out, field.getName());
+            if (value instanceof Token) {
+                out.writeByte(TOKEN_LABEL);
+                out.writeInt(tokenId((Token)value, tokenIds));
+            } else {
+                int childIndex = -1;
+                for (int i = 0; i < ctx.getChildCount(); i++)
+                    if (ctx.getChild(i) == value)
+                        childIndex = i;
+                out.writeByte(CONTEXT_LABEL);
+                out.writeInt(childIndex);
+            }
+        }
+
+        out.writeInt(ctx.getChildCount());
+        for (int i = 0; i < ctx.getChildCount(); i++)
+            writeTree(out, codec, ctx.getChild(i), tokenIds);
+    }
+
+    private static Token token(int id, List<Token> tokens) {
+        return (id >= 0) ? tokens.get(id) : null;
+    }
+
+    private static ParseTree readTree(DataInputStream in, TokenCodec codec, List<Token> tokens, ParserRuleContext parent)
+        throws IOException, ReflectiveOperationException {
+        byte kind = in.readByte();
+        if (kind == TERMINAL_NODE)
+            return new TerminalNodeImpl(token(in.readInt(), tokens));
+        if (kind == ERROR_NODE)
+            return new ErrorNodeImpl(token(in.readInt(), tokens));
+
+        ParserRuleContext ctx = newContext(codec.readString(in), parent, in.readInt());
+        ctx.start = token(in.readInt(), tokens);
+        ctx.stop = token(in.readInt(), tokens);
+
+        int labelCount = in.readInt();
+        String[] labelNames = new String[labelCount];
+        byte[] labelKinds = new byte[labelCount];
+        int[] labelValues = new int[labelCount];
+        for (int i = 0; i < labelCount; i++) {
+            labelNames[i] = codec.readString(in);
+            labelKinds[i] = in.readByte();
+            labelValues[i] = in.readInt();
+        }
+
+        int childCount = in.readInt();
+        for (int i = 0; i < childCount; i++) {
+            ParseTree child = readTree(in, codec, tokens, ctx);
+            if (child instanceof ErrorNode)
+                ctx.addErrorNode((ErrorNode)child);
+            else if (child instanceof TerminalNode)
+                ctx.addChild((TerminalNode)child);
+            else
+                ctx.addChild((RuleContext)child);
+        }
+
+        for (int i = 0; i < labelCount; i++) {
+            Field field = ctx.getClass().getField(labelNames[i]);
+            if (labelKinds[i] == TOKEN_LABEL)
+                field.set(ctx, token(labelValues[i], tokens));
+            else if (labelValues[i] >= 0)
+                field.set(ctx, ctx.getChild(labelValues[i]));
+        }
+        return ctx;
+    }
+
+    /*
+     * Rule contexts are constructed from (parent, invokingState). Contexts of
+     * labeled alternatives (e.g. #condexpr) are instead constructed by copying
+     * a context of their rule.
+     */
+    private static ParserRuleContext newContext(String className, ParserRuleContext parent, int invokingState)
+        throws ReflectiveOperationException {
+        Constructor<?>[] ctors;
+        synchronized (constructors) {
+            ctors = constructors.get(className);
+            if (ctors == null) {
+                Class<?> cls = Class.forName(className);
+                try {
+                    ctors = new Constructor<?>[] { cls.getConstructor(ParserRuleContext.class, int.class) };
+                } catch (NoSuchMethodException ex) {
+                    Class<?> ruleClass = cls.getSuperclass();
+                    ctors = new Constructor<?>[] { ruleClass.getConstructor(ParserRuleContext.class, int.class),
+                                                   cls.getConstructor(ruleClass) };
+                }
+                constructors.put(className, ctors);
+            }
+        }
+        Object ctx = ctors[0].newInstance(parent, invokingState);
+        if (ctors.length > 1)
+            ctx = ctors[1].newInstance(ctx);
+        return (ParserRuleContext)ctx;
+    }
+}
@@ -0,0 +1,52 @@
+package bsvtokami;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
+import org.antlr.v4.runtime.atn.PredictionMode;
+
+/*
+ * Reuses BSVParser instances, with their ATN simulators and parse
+ * listeners, across the files parsed in one run. The DFA cache itself is
+ * static and shared by every parser already; see DfaSnapshot for starting
+ * it warm.
+ *
+ * Lexers are not pooled: every token keeps its lexer as its token source,
+ * which is where source locations get the file name from.
+ */
+class ParserPool {
+    private static final ConcurrentLinkedQueue<BSVParser> parsers = new ConcurrentLinkedQueue<>();
+
+    /*
+     * Returns a parser reading from tokens, with default error handling, LL
+     * prediction, no error listeners, and profiling enabled if requested.
+     */
+    static BSVParser acquire(TokenStream tokens, boolean profile) {
+        BSVParser parser = parsers.poll();
+        if (parser == null) {
+            parser = new BSVParser(tokens);
+            BinopexprFolder.attach(parser);
+        } else {
+            parser.setTokenStream(tokens);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+        }
+        parser.removeErrorListeners();
+        // a new profiling simulator starts with empty statistics
+        parser.setProfile(false);
+        if (profile)
+            parser.setProfile(true);
+        return parser;
+    }
+
+    static void release(BSVParser parser) {
+        // drop the token stream so the pool does not keep it alive
+        parser.setTokenStream(null);
+        // the simulator still holds the last input and outer context it
+        // predicted in, so give the parser a fresh one over the shared DFA
+        parser.setInterpreter(new ParserATNSimulator(parser, parser.getATN(),
+                                                     BSVParser._decisionToDFA, BSVParser._sharedContextCache));
+        parsers.add(parser);
+    }
+}
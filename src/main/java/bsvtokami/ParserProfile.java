@@ -0,0 +1,96 @@
+package bsvtokami;
+
+import java.io.PrintStream;
+import java.util.*;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.*;
+
+/*
+ * Accumulates the per-decision statistics collected by ANTLR's profiling
+ * ATN simulator over every package parsed in a run.
+ */
+class ParserProfile {
+    static class DecisionStats {
+        final int decision;
+        final String ruleName;
+        long invocations;
+        long timeInPrediction;
+        long sllTotalLook;
+        long sllMaxLook;
+        long llFallback;
+        long llTotalLook;
+        long llMaxLook;
+        long ambiguities;
+        long contextSensitivities;
+        long errors;
+
+        DecisionStats(int decision, String ruleName) {
+            this.decision = decision;
+            this.ruleName = ruleName;
+        }
+    }
+
+    private final TreeMap<Integer,DecisionStats> decisions = new TreeMap<>();
+    private int parses;
+
+    synchronized void add(Parser parser) {
+        ParseInfo parseInfo = parser.getParseInfo();
+        if (parseInfo == null)
+            return;
+        parses++;
+        ATN atn = parser.getATN();
+        String[] ruleNames = parser.getRuleNames();
+        for (DecisionInfo info: parseInfo.getDecisionInfo()) {
+            if (info.invocations == 0)
+                continue;
+            DecisionStats stats = decisions.get(info.decision);
+            if (stats == null) {
+                DecisionState decisionState = atn.getDecisionState(info.decision);
+                stats = new DecisionStats(info.decision, ruleNames[decisionState.ruleIndex]);
+                decisions.put(info.decision, stats);
+            }
+            stats.invocations += info.invocations;
+            stats.timeInPrediction += info.timeInPrediction;
+            stats.sllTotalLook += info.SLL_TotalLook;
+            stats.sllMaxLook = Math.max(stats.sllMaxLook, info.SLL_MaxLook);
+            stats.llFallback += info.LL_Fallback;
+            stats.llTotalLook += info.LL_TotalLook;
+            stats.llMaxLook = Math.max(stats.llMaxLook, info.LL_MaxLook);
+            stats.ambiguities += info.ambiguities.size();
+            stats.contextSensitivities += info.contextSensitivities.size();
+            stats.errors += info.errors.size();
+        }
+    }
+
+    /*
+     * Prints one line per decision that was reached, most expensive first.
+     */
+    synchronized void report(PrintStream out) {
+        ArrayList<DecisionStats> sorted = new ArrayList<>(decisions.values());
+        Collections.sort(sorted, new Comparator<DecisionStats>() {
+                public int compare(DecisionStats a, DecisionStats b) {
+                    return Long.compare(b.timeInPrediction, a.timeInPrediction);
+                }
+            });
+        long totalTime = 0;
+        for (DecisionStats stats: sorted)
+            totalTime += stats.timeInPrediction;
+
+        out.println(String.format("parser profile: %d parses, %d decisions, %.1f ms in prediction",
+                                  parses, sorted.size(), totalTime / 1.0e6));
+        out.println(String.format("%-24s %8s %11s %10s %8s %8s %9s %8s %8s %6s %6s",
+                                  "rule", "decision", "invocations", "time(ms)",
+                                  "SLL avg", "SLL max", "LL fallbk", "LL avg", "LL max", "ambig", "ctxsen"));
+        for (DecisionStats stats: sorted) {
+            out.println(String.format("%-24s %8d %11d %10.2f %8.2f %8d %9d %8.2f %8d %6d %6d",
+                                      stats.ruleName, stats.decision, stats.invocations,
+                                      stats.timeInPrediction / 1.0e6,
+                                      (double)stats.sllTotalLook / stats.invocations, stats.sllMaxLook,
+                                      stats.llFallback,
+                                      (stats.llFallback > 0) ? (double)stats.llTotalLook / stats.llFallback : 0.0,
+                                      stats.llMaxLook,
+                                      stats.ambiguities, stats.contextSensitivities));
+        }
+    }
+}
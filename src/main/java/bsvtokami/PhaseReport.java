@@ -0,0 +1,183 @@
+package bsvtokami;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/*
+ * Accumulates, for -phasereport, the wall time, CPU time, allocated bytes
+ * and heap use change of each phase of each package:
+ *
+ *   preprocess    lexing, `include and `ifdef, or reading a -tokendir file
+ *   parse         parsing, or loading the tree from the parse cache
+ *   declarations  the StaticAnalysis pass binding top-level names
+ *   analysis      the StaticAnalysis pass over the bodies
+ *   inference     BSVTypeVisitor, wherever it is called from
+ *   ir            GenerateIR
+ *
+ * Phases do not overlap: time spent in type inference is taken out of the
+ * phase it was called from. CPU time and allocated bytes are those of the
+ * thread doing the work, from its ThreadMXBean. The heap change is the
+ * difference in used heap, so it includes garbage not yet collected and is
+ * negative across a collection; that of type inference is left in the
+ * phase it was called from.
+ *
+ * The report is written as JSON, and summarized as a table on stderr.
+ */
+class PhaseReport {
+    static final String[] PHASES = { "preprocess", "parse", "declarations", "analysis", "inference", "ir" };
+    private static final int INFERENCE = 4;
+    private static final int WALL = 0;
+    private static final int CPU = 1;
+    private static final int ALLOCATED = 2;
+    private static final int HEAP = 3;
+    private static final int METRICS = 4;
+
+    // set once a report is made, so that BSVTypeVisitor only samples when someone is listening
+    static volatile boolean enabled = false;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    // the type inference measured on each thread, which phases subtract from themselves
+    private static final ThreadLocal<long[]> inference = new ThreadLocal<long[]>() {
+            @Override protected long[] initialValue() {
+                return new long[METRICS];
+            }
+        };
+
+    static class Span {
+        final String pkgName;
+        final int phase;
+        final long[] start;
+        final long[] inferenceAtStart;
+
+        Span(String pkgName, int phase) {
+            this.pkgName = pkgName;
+            this.phase = phase;
+            this.inferenceAtStart = inference.get().clone();
+            this.start = sample(true);
+        }
+    }
+
+    private final File file;
+    // metrics by package, then phase
+    private final LinkedHashMap<String, long[][]> packages = new LinkedHashMap<>();
+
+    PhaseReport(String filename) {
+        file = new File(filename);
+        enabled = true;
+    }
+
+    Span start(String pkgName, String phase) {
+        return new Span(pkgName, Arrays.asList(PHASES).indexOf(phase));
+    }
+
+    void stop(Span span) {
+        long[] end = sample(true);
+        long[] inferenceNow = inference.get();
+        long[] spent = new long[METRICS];
+        long[] inferred = new long[METRICS];
+        for (int i = 0; i < METRICS; i++) {
+            inferred[i] = inferenceNow[i] - span.inferenceAtStart[i];
+            spent[i] = end[i] - span.start[i] - inferred[i];
+        }
+        synchronized (this) {
+            long[][] phases = packages.get(span.pkgName);
+            if (phases == null) {
+                phases = new long[PHASES.length][METRICS];
+                packages.put(span.pkgName, phases);
+            }
+            for (int i = 0; i < METRICS; i++) {
+                phases[span.phase][i] += spent[i];
+                phases[INFERENCE][i] += inferred[i];
+            }
+        }
+    }
+
+    static long[] sample(boolean heap) {
+        long[] metrics = new long[METRICS];
+        metrics[WALL] = System.nanoTime();
+        if (threads.isCurrentThreadCpuTimeSupported())
+            metrics[CPU] = threads.getCurrentThreadCpuTime();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            metrics[ALLOCATED] = ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        if (heap)
+            metrics[HEAP] = memory.getHeapMemoryUsage().getUsed();
+        return metrics;
+    }
+
+    /*
+     * Adds the type inference done on this thread since start, a sample
+     * taken when the outermost BSVTypeVisitor.visit was entered.
+     */
+    static void addInference(long[] start) {
+        long[] end = sample(false);
+        long[] totals = inference.get();
+        for (int i = 0; i < METRICS; i++) {
+            if (i != HEAP)
+                totals[i] += end[i] - start[i];
+        }
+    }
+
+    synchronized void report() {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writeJson(out);
+        } catch (IOException ex) {
+            System.err.println(String.format("Could not write phase report %s: %s", file, ex));
+        }
+
+        System.err.println(String.format("phase report: %d packages, written to %s (wall ms, allocated MB in total)", packages.size(), file));
+        StringBuilder header = new StringBuilder(String.format("%-24s", "package"));
+        for (String phase: PHASES)
+            header.append(String.format(" %12s", phase));
+        header.append(String.format(" %12s %10s", "total", "alloc MB"));
+        System.err.println(header);
+        long[][] totals = new long[PHASES.length][METRICS];
+        for (Map.Entry<String, long[][]> entry: packages.entrySet()) {
+            long[][] phases = entry.getValue();
+            for (int p = 0; p < PHASES.length; p++)
+                for (int i = 0; i < METRICS; i++)
+                    totals[p][i] += phases[p][i];
+            System.err.println(summaryLine(entry.getKey(), phases));
+        }
+        System.err.println(summaryLine("total", totals));
+    }
+
+    private static String summaryLine(String name, long[][] phases) {
+        StringBuilder line = new StringBuilder(String.format("%-24s", name));
+        long wall = 0;
+        long allocated = 0;
+        for (long[] metrics: phases) {
+            line.append(String.format(" %12.1f", metrics[WALL] / 1.0e6));
+            wall += metrics[WALL];
+            allocated += metrics[ALLOCATED];
+        }
+        line.append(String.format(" %12.1f %10.1f", wall / 1.0e6, allocated / 1048576.0));
+        return line.toString();
+    }
+
+    private void writeJson(PrintWriter out) {
+        out.println("{");
+        out.println("  \"packages\": [");
+        int n = 0;
+        for (Map.Entry<String, long[][]> entry: packages.entrySet()) {
+            out.println("    {");
+            out.println(String.format("      \"package\": \"%s\",", entry.getKey()));
+            out.println("      \"phases\": {");
+            long[][] phases = entry.getValue();
+            for (int p = 0; p < PHASES.length; p++) {
+                long[] metrics = phases[p];
+                out.println(String.format("        \"%s\": { \"wallNanos\": %d, \"cpuNanos\": %d, \"allocatedBytes\": %d, \"heapDeltaBytes\": %d }%s",
+                                          PHASES[p], metrics[WALL], metrics[CPU], metrics[ALLOCATED], metrics[HEAP],
+                                          (p + 1 < PHASES.length) ? "," : ""));
+            }
+            out.println("      }");
+            out.println(String.format("    }%s", (++n < packages.size()) ? "," : ""));
+        }
+        out.println("  ]");
+        out.println("}");
+    }
+}
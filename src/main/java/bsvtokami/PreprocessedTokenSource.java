@@ -0,0 +1,301 @@
+package bsvtokami;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Logger;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Interval;
+
+class PreprocessedTokenSource implements TokenSource {
+    private static Logger logger = Logger.getGlobal();
+    Stack<TokenSource> tokenSources = new Stack<>();
+    Stack<Boolean> condStack = new Stack<>();
+    Stack<Boolean> validStack = new Stack<>();
+    HashMap<String,Token> defines = new HashMap<>();
+    ArrayList<String> includedFiles = new ArrayList<>();
+    TokenSource tokenSource = null;
+    final List<String> searchDirs;
+    
+    PreprocessedTokenSource(List<String> searchDirs) {
+	this.searchDirs = searchDirs;
+	condStack.push(true);
+	validStack.push(true);
+	Map<String,String> env = System.getenv();
+    }
+    void define(String ident) {
+	defines.put(ident, null);
+    }
+    void push(TokenSource tokenSource) {
+	logger.fine(String.format("pushing token source %s", tokenSource.getSourceName()));
+	this.tokenSource = tokenSource;
+	tokenSources.push(tokenSource);
+    }
+    void pop() {
+	assert tokenSources.size() > 1;
+	tokenSources.pop();
+	tokenSource = tokenSources.peek();
+	logger.fine(String.format("popped to source %s", tokenSource.getSourceName()));
+    }
+
+    String findIncludeFile(String includeName) {
+	String filename = SearchPath.find(searchDirs, includeName);
+	assert filename != null : "No file found for include " + includeName;
+	return filename;
+    }
+
+    /*
+     * Skips an inactive `ifdef region without lexing it: scans the characters
+     * for the `else, `elsif or `endif that ends it, stepping over nested
+     * `ifdef/`ifndef ... `endif blocks, comments and string literals, and
+     * leaves the lexer positioned at that directive. Include files replayed
+     * from the IncludeCache are skipped by token instead.
+     */
+    void skipInactive() {
+	if (tokenSource instanceof IncludeCache.ReplayTokenSource) {
+	    int skipped = ((IncludeCache.ReplayTokenSource)tokenSource).skipInactive();
+	    logger.fine(String.format("preprocessor skipped %d tokens of %s to line %d",
+				      skipped, tokenSource.getSourceName(), tokenSource.getLine()));
+	    return;
+	}
+	if (!(tokenSource instanceof Lexer))
+	    return;
+	Lexer lexer = (Lexer)tokenSource;
+	CharStream input = lexer.getInputStream();
+	int start = input.index();
+	int line = lexer.getLine();
+	int column = lexer.getCharPositionInLine();
+	int depth = 0;
+	while (true) {
+	    int c = input.LA(1);
+	    if (c == IntStream.EOF)
+		break;
+	    if (c == '`') {
+		int length = 1;
+		while (isIdentifierChar(input.LA(length + 1)))
+		    length++;
+		String directive = input.getText(Interval.of(input.index(), input.index() + length - 1));
+		if (directive.equals("`ifdef") || directive.equals("`ifndef")) {
+		    depth++;
+		} else if (directive.equals("`endif")) {
+		    if (depth == 0)
+			break;
+		    depth--;
+		} else if ((directive.equals("`else") || directive.equals("`elsif")) && depth == 0) {
+		    break;
+		}
+		for (int i = 0; i < length; i++)
+		    input.consume();
+		column += length;
+		continue;
+	    }
+	    int next = input.LA(2);
+	    int end = -1;
+	    if (c == '/' && next == '/') {
+		end = '\n';
+	    } else if (c == '/' && next == '*') {
+		end = '*';
+	    } else if (c == '"') {
+		end = '"';
+	    }
+	    input.consume();
+	    if (c == '\n') {
+		line++;
+		column = 0;
+	    } else {
+		column++;
+	    }
+	    if (end < 0)
+		continue;
+	    if (end == '*') {
+		input.consume();
+		column++;
+	    }
+	    // skip to the end of the comment or string literal; a newline ends a string
+	    while ((c = input.LA(1)) != IntStream.EOF) {
+		if (end == '*' && c == '*' && input.LA(2) == '/') {
+		    input.consume();
+		    input.consume();
+		    column += 2;
+		    break;
+		}
+		input.consume();
+		if (c == '\n') {
+		    line++;
+		    column = 0;
+		    if (end != '*')
+			break;
+		} else {
+		    column++;
+		    if (end == '"' && c == '"')
+			break;
+		}
+	    }
+	}
+	lexer.setLine(line);
+	lexer.setCharPositionInLine(column);
+	logger.fine(String.format("preprocessor skipped %d characters of %s to line %d",
+				  input.index() - start, lexer.getSourceName(), line));
+    }
+
+    private static boolean isIdentifierChar(int c) {
+	return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /*
+     * Reads every token up to and including EOF.
+     */
+    List<Token> readAll() {
+	ArrayList<Token> tokens = new ArrayList<>();
+	Token token;
+	do {
+	    token = nextToken();
+	    tokens.add(token);
+	} while (token.getType() != Token.EOF);
+	return tokens;
+    }
+
+    static String sourceLocation(Token token) {
+	TokenSource source = token.getTokenSource();
+	return String.format("%s:%d", source.getSourceName(), token.getLine());
+    }
+
+    @Override
+    public int getCharPositionInLine() {
+	return tokenSource.getCharPositionInLine();
+    }
+    @Override
+    public CharStream getInputStream() {
+	return tokenSource.getInputStream();
+    }
+    @Override
+    public int getLine() {
+	return tokenSource.getLine();
+    }
+    @Override
+    public String getSourceName() {
+	return tokenSource.getSourceName();
+    }
+    @Override
+    public TokenFactory<?> getTokenFactory() {
+	return tokenSource.getTokenFactory();
+    }
+    @Override
+    public Token nextToken() {
+	while (true) {
+	    Token token = tokenSource.nextToken();
+	    //logger.fine(String.format("token.type %d %s %s:%d", token.getType(), token.getText(), token.getTokenSource().getSourceName(), token.getLine()));
+//System.err.println(String.format("token.type %d %s %s:%d", token.getType(), token.getText(), token.getTokenSource().getSourceName(), token.getLine()));
+	    if (token.getType() == Token.EOF && tokenSources.size() > 1) {
+		pop();
+		continue;
+	    }
+	    if (token.getChannel() == 2) {
+		String text = token.getText();
+		while (text != null && text.equals("`define")) {
+		    Token identtoken = tokenSource.nextToken();
+		    String identtext = identtoken.getText();
+		    Token valtoken = tokenSource.nextToken();
+		    if (identtoken.getLine() == valtoken.getLine()) {
+			logger.fine(String.format("Defining preprocessor symbol %s %s", identtext, valtoken.getText()));
+			defines.put(identtext, valtoken);
+			token = null;
+			text = null;
+		    } else {
+			logger.fine(String.format("Defining preprocessor symbol %s", identtext));
+			defines.put(identtext, null);
+			if (valtoken.getChannel() != 2)
+			    return valtoken;
+			token = valtoken;
+			text = valtoken.getText();
+		    }
+		}
+		if (token == null)
+		    continue;
+
+		//logger.fine(String.format("preprocessor channel %d token %s", token.getChannel(), text));
+		if (text.equals("`ifdef") || text.equals("`ifndef")) {
+		    Token ident = tokenSource.nextToken();
+		    String identText = ident.getText();
+
+		    condStack.push(defines.containsKey(identText));
+		    if (text.equals("`ifdef"))
+			validStack.push(condStack.peek() && validStack.peek());
+		    else
+			validStack.push(!condStack.peek() && validStack.peek());
+
+		    logger.fine(String.format("preprocessor %s %d %s cond %s valid %s %d",
+					      text, ident.getChannel(), identText, condStack.peek(), validStack.peek(), validStack.size()));
+		    if (!validStack.peek())
+			skipInactive();
+		} else if (text.equals("`else")) {
+
+		    condStack.push(!condStack.pop());
+		    validStack.pop();
+		    validStack.push(condStack.peek() && validStack.peek());
+
+		    logger.fine(String.format("preprocessor `else cond %s valid %s %d",
+						     condStack.peek(), validStack.peek(), validStack.size()));
+		    if (!validStack.peek())
+			skipInactive();
+		} else if (text.equals("`elsif")) {
+
+		    condStack.pop();
+		    validStack.pop();
+
+		    Token ident = tokenSource.nextToken();
+		    String identText = ident.getText();
+		    condStack.push(defines.containsKey(identText));
+		    validStack.push(condStack.peek() && validStack.peek());
+
+		    logger.fine(String.format("preprocessor `elsif %s cond %s valid %s %d",
+					      identText, condStack.peek(), validStack.peek(), validStack.size()));
+		    if (!validStack.peek())
+			skipInactive();
+		} else if (text.equals("`endif")) {
+		    condStack.pop();
+		    validStack.pop();
+		    logger.fine(String.format("preprocessor `endif cond %s valid %s %d",
+						     condStack.peek(), validStack.peek(), validStack.size()));
+		} else if (text.equals("`include")) {
+		    Token filenameToken = tokenSource.nextToken();
+		    String include = filenameToken.getText();
+
+		    if (!validStack.peek()) {
+			logger.fine("preprocessor skipping include " + include);
+			continue;
+		    }
+
+		    include = include.substring(1,include.length()-1);
+		    String filename = findIncludeFile(include);
+		    assert filename != null: String.format("Include %s not found", include);
+		    assert !filename.equals("null"): String.format("Include %s not found", include);
+		    logger.fine(String.format("preprocessor including %s: %s", include, filename));
+		    includedFiles.add(filename);
+		    try {
+			push(IncludeCache.tokenSource(filename));
+		    } catch (IOException ex) {
+			logger.severe(ex.toString());
+			System.err.println(String.format("Include %s not found", include));
+		    }
+		} else if (validStack.peek()) {
+		    // substitute
+		    String identifier = token.getText().substring(1);
+		    //logger.fine(String.format("defined %s %s", identifier, defines.containsKey(identifier)));
+		    assert defines.containsKey(identifier) : String.format("No definition for %s at %s",
+									   identifier, sourceLocation(token));
+		    Token valtoken = defines.get(identifier);
+		    return valtoken;
+		}
+	    } else if (!validStack.peek()) {
+		continue;
+	    } else {
+		return token;
+	    }
+	}
+    }
+    @Override
+    public void setTokenFactory(TokenFactory<?> factory) {
+	tokenSource.setTokenFactory(factory);
+    }
+}
@@ -0,0 +1,89 @@
+package bsvtokami;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.antlr.v4.runtime.*;
+
+/*
+ * Directory of preprocessed token streams, as written by -E: every token of
+ * a package after `include expansion, `define substitution and `ifdef
+ * selection, on all channels, ending with EOF. Parsing from such a file
+ * skips the lexer and preprocessor entirely.
+ *
+ * Files are keyed like parse cache entries, by the hash of the package
+ * source and the preprocessor symbols defined before it is read, and record
+ * the hashes of the files it included so that a stale file is ignored.
+ */
+class PreprocessedTokens {
+    private static Logger logger = Logger.getGlobal();
+    private static final int MAGIC = 0x4253504b;
+    private static final int VERSION = 1;
+
+    private final File dir;
+
+    PreprocessedTokens(String dirname) {
+        dir = new File(dirname);
+        if (!dir.exists())
+            dir.mkdirs();
+    }
+
+    private File tokenFile(String key) {
+        return new File(dir, key + ".pp");
+    }
+
+    void store(String key, String filename, List<Token> tokens, List<String> includes) throws IOException {
+        File file = tokenFile(key);
+        File tmpfile = File.createTempFile(key, ".tmp", dir);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpfile))))) {
+            TokenCodec codec = new TokenCodec(filename);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(includes.size());
+            for (String include: includes) {
+                codec.writeString(out, include);
+                codec.writeString(out, ParseCache.hashFile(include));
+            }
+            codec.writeTokens(out, tokens);
+        }
+        Files.move(tmpfile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        logger.fine(String.format("wrote %d preprocessed tokens of %s to %s", tokens.size(), filename, file));
+    }
+
+    /*
+     * Returns the preprocessed tokens of filename and adds the files it
+     * included to includes, or returns null if there is no usable file.
+     */
+    List<Token> load(String key, String filename, List<String> includes) {
+        File file = tokenFile(key);
+        if (!file.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            TokenCodec codec = new TokenCodec(filename);
+            ArrayList<String> included = new ArrayList<>();
+            int includeCount = in.readInt();
+            for (int i = 0; i < includeCount; i++) {
+                String include = codec.readString(in);
+                String includeHash = codec.readString(in);
+                if (!new File(include).exists() || !ParseCache.hashFile(include).equals(includeHash)) {
+                    logger.fine(String.format("preprocessed tokens of %s are stale: %s changed", filename, include));
+                    return null;
+                }
+                included.add(include);
+            }
+            List<Token> tokens = codec.readTokens(in);
+            includes.addAll(included);
+            return tokens;
+        } catch (IOException ex) {
+            logger.warning(String.format("Ignoring unreadable preprocessed token file %s for %s: %s", file, filename, ex));
+            return null;
+        }
+    }
+}
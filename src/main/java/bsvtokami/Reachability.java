@@ -0,0 +1,318 @@
+package bsvtokami;
+
+import java.util.*;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/*
+ * The top-level declarations reachable from a top module, for -top: only
+ * their bodies are analyzed and only their IR is emitted. Declarations are
+ * still all bound, so that the package scope is complete.
+ *
+ * Reachability is computed on the parse trees, before analysis. Every
+ * identifier in a reachable declaration reaches the declarations of that
+ * name in its own package, in Prelude and in the packages it imports, so a
+ * local variable with the name of a top-level declaration reaches that
+ * declaration too; the set may be larger than needed but not smaller. An
+ * instance is reachable once its typeclass and the types it is declared
+ * for are. Operators are used without naming them, so declarations of
+ * operators are always reachable, as are imports and exports.
+ */
+class Reachability {
+    final String topModule;
+    final String topPackage;
+    private final Set<ParserRuleContext> reachable = new HashSet<>();
+    // the top-level statements of each package, in package order
+    private final LinkedHashMap<String, List<BSVParser.PackagestmtContext>> statements = new LinkedHashMap<>();
+    // the declarations of each top-level name, by package
+    private final HashMap<String, HashMap<String, List<BSVParser.PackagestmtContext>>> declarations = new HashMap<>();
+    private final HashMap<String, List<String>> visiblePackages = new HashMap<>();
+    private final HashMap<BSVParser.PackagestmtContext, String> packageOf = new HashMap<>();
+
+    private Reachability(String topModule, String topPackage) {
+        this.topModule = topModule;
+        this.topPackage = topPackage;
+    }
+
+    /*
+     * Computes the declarations reachable from module topModule, which is
+     * looked for in rootPkgName and then in the other packages. Returns null
+     * if there is no such module.
+     */
+    static Reachability compute(String topModule, String rootPkgName, Map<String, BSVParser.PackagedefContext> trees) {
+        ArrayList<String> pkgNames = new ArrayList<>(trees.keySet());
+        pkgNames.remove(rootPkgName);
+        pkgNames.add(0, rootPkgName);
+        BSVParser.PackagestmtContext top = null;
+        String topPackage = null;
+        for (String pkgName: pkgNames) {
+            BSVParser.PackagedefContext packagedef = trees.get(pkgName);
+            if (packagedef == null)
+                continue;
+            for (BSVParser.PackagestmtContext stmt: packagedef.packagestmt()) {
+                if (stmt.moduledef() != null && stmt.moduledef().moduleproto().name.getText().equals(topModule)) {
+                    top = stmt;
+                    topPackage = pkgName;
+                    break;
+                }
+            }
+            if (top != null)
+                break;
+        }
+        if (top == null)
+            return null;
+
+        Reachability reachability = new Reachability(topModule, topPackage);
+        for (Map.Entry<String, BSVParser.PackagedefContext> entry: trees.entrySet()) {
+            if (entry.getValue() != null)
+                reachability.index(entry.getKey(), entry.getValue());
+        }
+        reachability.propagate(top);
+        return reachability;
+    }
+
+    private void index(String pkgName, BSVParser.PackagedefContext packagedef) {
+        List<BSVParser.PackagestmtContext> stmts = packagedef.packagestmt();
+        statements.put(pkgName, stmts);
+        HashMap<String, List<BSVParser.PackagestmtContext>> names = new HashMap<>();
+        for (BSVParser.PackagestmtContext stmt: stmts) {
+            packageOf.put(stmt, pkgName);
+            for (String name: declaredNames(stmt)) {
+                List<BSVParser.PackagestmtContext> decls = names.get(name);
+                if (decls == null) {
+                    decls = new ArrayList<>();
+                    names.put(name, decls);
+                }
+                decls.add(stmt);
+            }
+        }
+        declarations.put(pkgName, names);
+        ArrayList<String> visible = new ArrayList<>();
+        visible.add(pkgName);
+        if (!pkgName.equals("Prelude"))
+            visible.add("Prelude");
+        visible.addAll(Compiler.importedPackages(packagedef));
+        visiblePackages.put(pkgName, visible);
+    }
+
+    private void propagate(BSVParser.PackagestmtContext top) {
+        ArrayDeque<BSVParser.PackagestmtContext> pending = new ArrayDeque<>();
+        ArrayList<BSVParser.PackagestmtContext> instances = new ArrayList<>();
+        pending.add(top);
+        for (List<BSVParser.PackagestmtContext> stmts: statements.values()) {
+            for (BSVParser.PackagestmtContext stmt: stmts) {
+                if (stmt.importdecl() != null || stmt.exportdecl() != null)
+                    reachable.add(stmt);
+                else if (stmt.typeclassinstance() != null)
+                    instances.add(stmt);
+                else if (declaresOperator(stmt))
+                    pending.add(stmt);
+            }
+        }
+
+        while (!pending.isEmpty()) {
+            while (!pending.isEmpty()) {
+                BSVParser.PackagestmtContext stmt = pending.remove();
+                if (!reachable.add(stmt))
+                    continue;
+                String pkgName = packageOf.get(stmt);
+                for (String name: referencedNames(stmt))
+                    pending.addAll(resolve(pkgName, name));
+            }
+            // instances whose typeclass and types have been reached since the last round
+            Iterator<BSVParser.PackagestmtContext> iterator = instances.iterator();
+            while (iterator.hasNext()) {
+                BSVParser.PackagestmtContext stmt = iterator.next();
+                if (instanceReachable(stmt)) {
+                    iterator.remove();
+                    pending.add(stmt);
+                }
+            }
+        }
+    }
+
+    private boolean instanceReachable(BSVParser.PackagestmtContext stmt) {
+        BSVParser.TypeclassinstanceContext instance = stmt.typeclassinstance();
+        String pkgName = packageOf.get(stmt);
+        List<BSVParser.PackagestmtContext> typeclasses = resolve(pkgName, instance.typeclasside(0).getText());
+        if (!typeclasses.isEmpty() && !anyReachable(typeclasses))
+            return false;
+        for (BSVParser.TctypeContext tctype: instance.tctype()) {
+            for (String name: referencedNames(tctype)) {
+                List<BSVParser.PackagestmtContext> decls = resolve(pkgName, name);
+                if (!decls.isEmpty() && !anyReachable(decls))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean anyReachable(List<BSVParser.PackagestmtContext> stmts) {
+        for (BSVParser.PackagestmtContext stmt: stmts)
+            if (reachable.contains(stmt))
+                return true;
+        return false;
+    }
+
+    /*
+     * The declarations a name used in package pkgName may refer to.
+     */
+    private List<BSVParser.PackagestmtContext> resolve(String pkgName, String name) {
+        ArrayList<BSVParser.PackagestmtContext> decls = new ArrayList<>();
+        for (String visiblePkgName: visiblePackages.get(pkgName)) {
+            HashMap<String, List<BSVParser.PackagestmtContext>> names = declarations.get(visiblePkgName);
+            if (names != null && names.containsKey(name))
+                decls.addAll(names.get(name));
+        }
+        return decls;
+    }
+
+    boolean isReachable(BSVParser.PackagestmtContext stmt) {
+        return reachable.contains(stmt);
+    }
+
+    /*
+     * The reachable declarations of a package, as one string, for the build
+     * manifest: the IR of a package depends on which of them are emitted.
+     */
+    String reachableDeclarations(String pkgName) {
+        StringBuilder decls = new StringBuilder("top " + topModule);
+        List<BSVParser.PackagestmtContext> stmts = statements.get(pkgName);
+        if (stmts == null)
+            return decls.toString();
+        for (BSVParser.PackagestmtContext stmt: stmts) {
+            if (reachable.contains(stmt))
+                decls.append(" ").append(CompilerEvents.declarationName(stmt));
+        }
+        return decls.toString();
+    }
+
+    /*
+     * Prints, for each package, how many top-level declarations are
+     * reachable and the names of those that are skipped.
+     */
+    void report() {
+        int total = 0;
+        int reached = 0;
+        for (Map.Entry<String, List<BSVParser.PackagestmtContext>> entry: statements.entrySet()) {
+            List<String> skipped = new ArrayList<>();
+            int declared = 0;
+            for (BSVParser.PackagestmtContext stmt: entry.getValue()) {
+                if (stmt.importdecl() != null || stmt.exportdecl() != null)
+                    continue;
+                declared++;
+                if (!reachable.contains(stmt))
+                    skipped.add(CompilerEvents.declarationName(stmt));
+            }
+            total += declared;
+            reached += declared - skipped.size();
+            System.err.println(String.format("reachability: %s: %d of %d declarations reachable",
+                                             entry.getKey(), declared - skipped.size(), declared));
+            if (!skipped.isEmpty())
+                System.err.println(String.format("reachability: %s: skipped %s", entry.getKey(), String.join(" ", skipped)));
+        }
+        System.err.println(String.format("reachability from %s::%s: %d of %d declarations in %d packages",
+                                         topPackage, topModule, reached, total, statements.size()));
+    }
+
+    /*
+     * The top-level names a statement declares, including enum and union
+     * tags and the methods of a typeclass.
+     */
+    static List<String> declaredNames(BSVParser.PackagestmtContext stmt) {
+        ArrayList<String> names = new ArrayList<>();
+        if (stmt.moduledef() != null) {
+            names.add(stmt.moduledef().moduleproto().name.getText());
+        } else if (stmt.functiondef() != null) {
+            names.add(stmt.functiondef().functionproto().name.getText());
+        } else if (stmt.interfacedecl() != null) {
+            names.add(typeName(stmt.interfacedecl().typedeftype()));
+        } else if (stmt.typedefsynonym() != null) {
+            names.add(typeName(stmt.typedefsynonym().typedeftype()));
+        } else if (stmt.typedefenum() != null) {
+            names.add(stmt.typedefenum().upperCaseIdentifier().getText());
+            for (BSVParser.TypedefenumelementContext element: stmt.typedefenum().typedefenumelement())
+                names.add(element.tag.getText());
+        } else if (stmt.typedefstruct() != null) {
+            names.add(typeName(stmt.typedefstruct().typedeftype()));
+        } else if (stmt.typedeftaggedunion() != null) {
+            names.add(typeName(stmt.typedeftaggedunion().typedeftype()));
+            addTags(stmt.typedeftaggedunion().unionmember(), names);
+        } else if (stmt.typeclassdecl() != null) {
+            names.add(stmt.typeclassdecl().typeclasside(0).getText());
+            for (BSVParser.OverloadeddeclContext decl: stmt.typeclassdecl().overloadeddecl()) {
+                if (decl.functionproto() != null)
+                    names.add(decl.functionproto().name.getText());
+                else if (decl.moduleproto() != null)
+                    names.add(decl.moduleproto().name.getText());
+                else if (decl.varbinding() != null)
+                    addVariables(decl.varbinding(), names);
+            }
+        } else if (stmt.externcimport() != null) {
+            List<BSVParser.LowerCaseIdentifierContext> identifiers = stmt.externcimport().lowerCaseIdentifier();
+            names.add(identifiers.get(identifiers.size() - 1).getText());
+        } else if (stmt.varbinding() != null) {
+            addVariables(stmt.varbinding(), names);
+        }
+        return names;
+    }
+
+    private static String typeName(BSVParser.TypedeftypeContext typedeftype) {
+        BSVParser.TypeideContext typeide = typedeftype.typeide();
+        return (typeide.name != null) ? typeide.name.getText() : typeide.getText();
+    }
+
+    private static void addTags(List<BSVParser.UnionmemberContext> members, List<String> names) {
+        for (BSVParser.UnionmemberContext member: members) {
+            names.add(member.upperCaseIdentifier().getText());
+            if (member.subunion() != null)
+                addTags(member.subunion().unionmember(), names);
+        }
+    }
+
+    private static void addVariables(BSVParser.VarbindingContext varbinding, List<String> names) {
+        for (BSVParser.VarinitContext varinit: varbinding.varinit()) {
+            if (varinit.var != null)
+                names.add(varinit.var.getText());
+            else if (varinit.tuplebind() != null)
+                names.addAll(referencedNames(varinit.tuplebind()));
+        }
+    }
+
+    private static boolean declaresOperator(BSVParser.PackagestmtContext stmt) {
+        for (String name: declaredNames(stmt))
+            if (name.startsWith("\\"))
+                return true;
+        return false;
+    }
+
+    /*
+     * Every identifier in a tree.
+     */
+    static Set<String> referencedNames(ParseTree tree) {
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        addIdentifiers(tree, names);
+        return names;
+    }
+
+    private static void addIdentifiers(ParseTree tree, Set<String> names) {
+        if (tree instanceof TerminalNode) {
+            Token token = ((TerminalNode)tree).getSymbol();
+            switch (token.getType()) {
+            case BSVParser.UpperCaseIdentifier:
+            case BSVParser.LowerCaseIdentifier:
+            case BSVParser.EscapedOperator:
+                names.add(token.getText());
+                break;
+            default:
+                break;
+            }
+            return;
+        }
+        for (int i = 0; i < tree.getChildCount(); i++)
+            addIdentifiers(tree.getChild(i), names);
+    }
+}
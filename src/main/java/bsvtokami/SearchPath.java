@@ -0,0 +1,107 @@
+package bsvtokami;
+
+import java.io.File;
+import java.util.*;
+import java.util.logging.Logger;
+
+/*
+ * Answers "which search directory holds this file" from an in-memory
+ * listing of each directory instead of a File.exists call per directory
+ * per lookup.
+ *
+ * Each directory is listed the first time it is searched. A lookup that
+ * finds nothing rechecks the modification time of the directories and
+ * lists again the ones that changed before giving up. A long-running
+ * process should call revalidate before each build so that files added
+ * since the last build shadow later directories as they would on disk.
+ */
+class SearchPath {
+    private static Logger logger = Logger.getGlobal();
+
+    private static class DirIndex {
+        final long lastModified;
+        final HashSet<String> names;
+
+        DirIndex(long lastModified, HashSet<String> names) {
+            this.lastModified = lastModified;
+            this.names = names;
+        }
+    }
+
+    private static final HashMap<String,DirIndex> indexes = new HashMap<>();
+    private static long lookups;
+    private static long fsCalls;
+    private static long fsCallsSaved;
+
+    /*
+     * Returns dir/name for the first dir in dirs containing name, or null.
+     */
+    static synchronized String find(List<String> dirs, String name) {
+        lookups++;
+        // the old search did one File.exists per directory up to the one holding the file
+        int probes = dirs.size();
+        long callsBefore = fsCalls;
+        String found = null;
+        if (name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0) {
+            // names with directory components are not in the listings
+            probes = 0;
+            for (String dir: dirs) {
+                probes++;
+                fsCalls++;
+                if (new File(dir, name).exists()) {
+                    found = String.format("%s/%s", dir, name);
+                    break;
+                }
+            }
+        } else {
+            int i = indexOf(dirs, name, false);
+            if (i < 0)
+                i = indexOf(dirs, name, true);
+            if (i >= 0) {
+                probes = i + 1;
+                found = String.format("%s/%s", dirs.get(i), name);
+            }
+        }
+        fsCallsSaved += probes - (fsCalls - callsBefore);
+        return found;
+    }
+
+    private static int indexOf(List<String> dirs, String name, boolean recheck) {
+        for (int i = 0; i < dirs.size(); i++) {
+            DirIndex index = index(dirs.get(i), recheck);
+            if (index.names.contains(name))
+                return i;
+        }
+        return -1;
+    }
+
+    private static DirIndex index(String dir, boolean recheck) {
+        DirIndex index = indexes.get(dir);
+        if (index != null && !recheck)
+            return index;
+        File file = new File(dir);
+        fsCalls++;
+        long lastModified = file.lastModified();
+        if (index != null && index.lastModified == lastModified)
+            return index;
+        fsCalls++;
+        String[] names = file.list();
+        index = new DirIndex(lastModified, new HashSet<String>(names != null ? Arrays.asList(names) : Collections.<String>emptyList()));
+        logger.fine(String.format("search path: listed %s, %d entries", dir, index.names.size()));
+        indexes.put(dir, index);
+        return index;
+    }
+
+    /*
+     * Rechecks the modification time of every directory listed so far.
+     */
+    static synchronized void revalidate() {
+        for (String dir: new ArrayList<String>(indexes.keySet()))
+            index(dir, true);
+    }
+
+    static synchronized void report() {
+        System.err.println(String.format("search path: %d lookups, %d filesystem calls, %d saved",
+                                         lookups, fsCalls, fsCallsSaved));
+    }
+}
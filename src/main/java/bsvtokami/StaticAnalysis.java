@@ -12,57 +12,107 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
     private String packageName;
     private SymbolTable symbolTable;
     private HashMap<ParserRuleContext, SymbolTable> scopes;
-    private HashMap<String, SymbolTable> packages;
+    private Map<String, SymbolTable> packages;
+    // package-level names bound by each top-level statement
+    private HashMap<ParserRuleContext, List<String>> declaredBindings = new HashMap<>();
+    private HashMap<ParserRuleContext, List<String>> declaredTypeBindings = new HashMap<>();
     private Stack<SymbolTable> scopeStack = new Stack<>();
-    private Stack<String> sourceLocationStack = new Stack<>();
+    // the context of each scope pushed, or null, rendered only when scopes are traced
+    private Stack<ParserRuleContext> sourceLocationStack = new Stack<>();
     final BSVTypeVisitor typeVisitor;
     private boolean declOnly;
+    // with -top, the bodies of top-level statements that are not reachable are not analyzed
+    Reachability reachability;
     private static Logger logger = Logger.getGlobal();
     private static boolean callUnify = false;
 
     StaticAnalysis() {
+        this(new HashMap<String, SymbolTable>());
+    }
+
+    /*
+     * An analyzer with its own scopes and types that imports packages from,
+     * and adds its package to, a map of package scopes shared with other
+     * analyzers, so that packages can be analyzed on different threads.
+     */
+    StaticAnalysis(Map<String, SymbolTable> packages) {
         scopes = new HashMap<ParserRuleContext, SymbolTable>();
-        packages = new HashMap<String, SymbolTable>();
+        this.packages = packages;
         typeVisitor = new BSVTypeVisitor(this);
         symbolTable = new SymbolTable(null, SymbolTable.ScopeType.Package, "<unusedscope>");
         typeVisitor.pushScope(symbolTable);
     }
 
     public void visitPackage(String packageName, ParserRuleContext ctx) {
+        visitPackageDeclarations(packageName, ctx);
+        visitPackageBodies(packageName, ctx);
+    }
+
+    /*
+     * The first pass of visitPackage: imports and top-level bindings only.
+     */
+    void visitPackageDeclarations(String packageName, ParserRuleContext ctx) {
         this.packageName = packageName;
         declOnly = true;
         visit(ctx);
+    }
+
+    /*
+     * The second pass of visitPackage, over the bodies of the declarations.
+     */
+    void visitPackageBodies(String packageName, ParserRuleContext ctx) {
+        this.packageName = packageName;
         declOnly = false;
         visit(ctx);
     }
 
     private void importPackage(String pkgname) {
-        SymbolTable importScope = symbolTable.parent;
-        SymbolTable pkgscope = packages.get(pkgname);
         if (!declOnly)
             return;
+        importPackage(symbolTable.parent, pkgname);
+    }
+
+    /*
+     * Binds the top-level names of package pkgname in importScope.
+     */
+    void importPackage(SymbolTable importScope, String pkgname) {
+        SymbolTable pkgscope = packages.get(pkgname);
         if (pkgscope == null) {
             logger.severe(String.format("Failed to import package %s", pkgname));
             return;
         }
-        logger.fine(String.format("Importing package %s", pkgname));
+        Trace.fine(Trace.ANALYSIS, "Importing package %s", pkgname);
         for (Map.Entry<String,SymbolTableEntry> iterator: pkgscope.bindings.entrySet()) {
             String identifier = iterator.getKey();
             SymbolTableEntry entry = iterator.getValue();
-            logger.fine(String.format("Importing %s::%s entry %s into %s", pkgname, identifier, entry, this.packageName));
+            Trace.fine(Trace.ANALYSIS, "Importing %s::%s entry %s into %s",
+                                       pkgname, identifier, entry, importScope.name);
             SymbolTableEntry oldEntry = importScope.lookup(identifier);
             if (oldEntry != null) {
-                logger.fine(String.format("Overriding %s::%s", oldEntry.pkgName, identifier));
+                Trace.fine(Trace.ANALYSIS, "Overriding %s::%s", oldEntry.pkgName, identifier);
                 importScope.unbind(identifier);
             }
             importScope.bind(identifier, entry);
         }
         for (Map.Entry<String,SymbolTableEntry> iterator: pkgscope.typeBindings.entrySet()) {
-            logger.fine(String.format("Importing type %s::%s entry %s into %s", pkgname, iterator.getKey(), iterator.getValue(), this.packageName));
+            Trace.fine(Trace.ANALYSIS, "Importing type %s::%s entry %s into %s",
+                                       pkgname, iterator.getKey(), iterator.getValue(), importScope.name);
             importScope.bindType(iterator.getKey(), iterator.getValue());
         }
     }
 
+    SymbolTable packageScope(String pkgname) {
+        return packages.get(pkgname);
+    }
+
+    /*
+     * Makes a package scope read from an interface file available to
+     * importers, in place of analyzing the package.
+     */
+    void addPackageScope(String pkgname, SymbolTable packageScope) {
+        packages.put(pkgname, packageScope);
+    }
+
     private void pushScope(ParserRuleContext ctx, SymbolTable.ScopeType st, String name) {
         if (scopes.containsKey(ctx)) {
             symbolTable = scopes.get(ctx);
@@ -70,15 +120,15 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
             symbolTable = new SymbolTable(symbolTable, st, name);
             scopes.put(ctx, symbolTable);
         }
-        sourceLocationStack.push(sourceLocation(ctx));
-        logger.fine("pushScope { " + name + "-" + symbolTable + " " + ctx + " " + st
-                     + " at " + sourceLocation(ctx));
+        sourceLocationStack.push(ctx);
+        if (Trace.on(Trace.SCOPES))
+            Trace.fine(Trace.SCOPES, "pushScope { %s-%s %s %s at %s", name, symbolTable, ctx, st, sourceLocation(ctx));
         typeVisitor.pushScope(symbolTable);
     }
     private void pushScope(SymbolTable.ScopeType st, String name) {
 	symbolTable = new SymbolTable(symbolTable, st, name);
-        sourceLocationStack.push("<noloc>");
-        logger.fine("pushScope { " + name + "-" + symbolTable + " " + st);
+        sourceLocationStack.push(null);
+        Trace.fine(Trace.SCOPES, "pushScope { %s-%s %s", name, symbolTable, st);
         typeVisitor.pushScope(symbolTable);
     }
 
@@ -86,18 +136,22 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
         assert scopes.containsKey(ctx) : String.format("Expected to find scope for %s at %s",
                                                        ctx.getText(), sourceLocation(ctx));
         symbolTable = scopes.get(ctx);
-        sourceLocationStack.push(sourceLocation(ctx));
-        logger.fine("pushScope { " + symbolTable.name + "-" + symbolTable + " " + symbolTable.scopeType
-                    + " at " + sourceLocation(ctx));
+        sourceLocationStack.push(ctx);
+        if (Trace.on(Trace.SCOPES))
+            Trace.fine(Trace.SCOPES, "pushScope { %s-%s %s at %s",
+                                     symbolTable.name, symbolTable, symbolTable.scopeType, sourceLocation(ctx));
         typeVisitor.pushScope(symbolTable);
         return symbolTable;
     }
 
     SymbolTable popScope() {
         assert symbolTable.parent != null : String.format("Symbol table %s:%s has no parent", symbolTable.name, symbolTable);
-        logger.fine(String.format("popScope -1- %s-%s parent %s-%s at %s }",
-                                   symbolTable.name, symbolTable, symbolTable.parent.name, symbolTable.parent,
-                                   sourceLocationStack.peek()));
+        if (Trace.on(Trace.SCOPES)) {
+            ParserRuleContext ctx = sourceLocationStack.peek();
+            Trace.fine(Trace.SCOPES, "popScope -1- %s-%s parent %s-%s at %s }",
+                       symbolTable.name, symbolTable, symbolTable.parent.name, symbolTable.parent,
+                       (ctx != null) ? sourceLocation(ctx) : "<noloc>");
+        }
         assert typeVisitor != null;
         sourceLocationStack.pop();
         typeVisitor.popScope();
@@ -172,12 +226,111 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
             importPackage("Prelude");
         packages.put(packageName, symbolTable);
         for (BSVParser.PackagestmtContext stmt : ctx.packagestmt()) {
-            visit(stmt);
+            visitPackageStatement(stmt);
         }
         popScope();
         return null;
     }
 
+    private void visitPackageStatement(BSVParser.PackagestmtContext stmt) {
+        // with -top, the bodies of unreachable statements are not analyzed,
+        // but unreachable functions are still bound, for the package interface
+        boolean unreachable = (!declOnly && reachability != null && !reachability.isReachable(stmt));
+        if (unreachable && stmt.functiondef() == null)
+            return;
+        CompilerEvents.DeclarationAnalysis event = CompilerEvents.declarationAnalysis();
+        // top-level functions are bound in the bodies pass, so both passes are logged
+        SymbolTable packageScope = symbolTable;
+        packageScope.bindingLog = bindingLog(declaredBindings, stmt);
+        packageScope.typeBindingLog = bindingLog(declaredTypeBindings, stmt);
+        if (unreachable)
+            visitFunctiondef(stmt.functiondef(), false);
+        else
+            visit(stmt);
+        packageScope.bindingLog = null;
+        packageScope.typeBindingLog = null;
+        if (event == null)
+            return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.pkgName = packageName;
+            event.declaration = CompilerEvents.declarationName(stmt);
+            event.kind = CompilerEvents.kind(stmt);
+            event.pass = declOnly ? "declarations" : "bodies";
+            event.nodes = CompilerEvents.nodeCount(stmt);
+            event.commit();
+        }
+    }
+
+    private static List<String> bindingLog(HashMap<ParserRuleContext, List<String>> logs, ParserRuleContext stmt) {
+        List<String> names = logs.get(stmt);
+        if (names == null) {
+            names = new ArrayList<>();
+            logs.put(stmt, names);
+        }
+        return names;
+    }
+
+    /*
+     * Drops what was recorded for top-level statements that are about to be
+     * replaced: the package-level names they bound and the scopes and types
+     * of all the contexts within them.
+     */
+    void forgetPackageStatements(BSVParser.PackagedefContext packagedef, List<? extends ParserRuleContext> stmts) {
+        SymbolTable packageScope = scopes.get(packagedef);
+        assert packageScope != null : "Package has not been analyzed " + sourceLocation(packagedef);
+        for (ParserRuleContext stmt: stmts) {
+            List<String> names = declaredBindings.remove(stmt);
+            if (names != null)
+                for (String name: names)
+                    packageScope.unbind(name);
+            names = declaredTypeBindings.remove(stmt);
+            if (names != null)
+                for (String name: names)
+                    packageScope.unbindType(name);
+            forgetContexts(stmt);
+        }
+    }
+
+    /*
+     * Drops the scopes and types of all the contexts of an analyzed package,
+     * keeping its package scope, which is all that importers use.
+     */
+    void forgetPackage(BSVParser.PackagedefContext packagedef) {
+        for (BSVParser.PackagestmtContext stmt: packagedef.packagestmt()) {
+            declaredBindings.remove(stmt);
+            declaredTypeBindings.remove(stmt);
+        }
+        forgetContexts(packagedef);
+    }
+
+    private void forgetContexts(ParseTree tree) {
+        if (!(tree instanceof ParserRuleContext))
+            return;
+        ParserRuleContext ctx = (ParserRuleContext)tree;
+        scopes.remove(ctx);
+        typeVisitor.forget(ctx);
+        for (int i = 0; i < ctx.getChildCount(); i++)
+            forgetContexts(ctx.getChild(i));
+    }
+
+    /*
+     * Analyzes top-level statements newly spliced into a package that was
+     * already analyzed. Scopes of the other statements are left as they are.
+     */
+    void visitPackageStatements(String packageName, BSVParser.PackagedefContext packagedef,
+                                List<BSVParser.PackagestmtContext> stmts) {
+        this.packageName = packageName;
+        pushScope(packagedef);
+        declOnly = true;
+        for (BSVParser.PackagestmtContext stmt: stmts)
+            visitPackageStatement(stmt);
+        declOnly = false;
+        for (BSVParser.PackagestmtContext stmt: stmts)
+            visitPackageStatement(stmt);
+        popScope();
+    }
+
     @Override public Void visitImportdecl(BSVParser.ImportdeclContext importdecl) {
         for (BSVParser.ImportitemContext importitem: importdecl.importitem()) {
             String importedPkgName = importitem.pkgname.getText();
@@ -194,7 +347,7 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
             return null;
 
         String interfaceName = ctx.typedeftype().typeide().getText();
-        logger.fine("entering interface decl " + interfaceName + " {");
+        Trace.fine(Trace.ANALYSIS, "entering interface decl %s {", interfaceName);
         pushScope(ctx, SymbolTable.ScopeType.Declaration, interfaceName);
         BSVType interfaceType = typeVisitor.visit(ctx.typedeftype());
         SymbolTable interfaceMappings = symbolTable;
@@ -203,10 +356,12 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
 
         popScope();
         for (Map.Entry<String,SymbolTableEntry> mapping: interfaceMappings.bindings.entrySet()) {
-            logger.fine(String.format("interface mapping  %s  %s : %s", interfaceName, mapping.getKey(), mapping.getValue().type));
+            Trace.fine(Trace.ANALYSIS, "interface mapping  %s  %s : %s",
+                                       interfaceName, mapping.getKey(), mapping.getValue().type);
         }
         for (Map.Entry<String,SymbolTableEntry> mapping: interfaceMappings.typeBindings.entrySet()) {
-            logger.fine(String.format("interface tmapping %s  %s : %s", interfaceName, mapping.getKey(), mapping.getValue().type));
+            Trace.fine(Trace.ANALYSIS, "interface tmapping %s  %s : %s",
+                                       interfaceName, mapping.getKey(), mapping.getValue().type);
         }
         symbolTable.bindType(packageName, interfaceName, interfaceType, interfaceMappings)
 	    .setSymbolType(SymbolType.Interface);
@@ -218,19 +373,19 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
 	    mapping.getValue().parent = interfaceEntry;
         }
 
-        logger.fine("} exiting interface decl " + interfaceName);
+        Trace.fine(Trace.ANALYSIS, "} exiting interface decl %s", interfaceName);
         return null;
     }
 
     @Override public Void visitSubinterfacedecl(BSVParser.SubinterfacedeclContext ctx) {
         String subinterfaceName = ctx.lowerCaseIdentifier().getText();
-        logger.fine("entering subinterface decl " + subinterfaceName + " {");
+        Trace.fine(Trace.ANALYSIS, "entering subinterface decl %s {", subinterfaceName);
 
         BSVType subinterfaceType = typeVisitor.visit(ctx.bsvtype());
 
         symbolTable.bind(subinterfaceName, subinterfaceType);
 
-        logger.fine("} exiting sub interface decl " + subinterfaceName);
+        Trace.fine(Trace.ANALYSIS, "} exiting sub interface decl %s", subinterfaceName);
         return null;
     }
 
@@ -273,19 +428,19 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
                 SymbolTableEntry entry = symbolTable.lookup(tagname);
                 assert entry == null : String.format("Redefining symbol %s at %s", tagname, StaticAnalysis.sourceLocation(elt));
                 if (entry != null)
-                    logger.fine(String.format("Previously defined entry %s type %s",
-                                              tagname, entry.symbolType));
+                    Trace.fine(Trace.ANALYSIS, "Previously defined entry %s type %s", tagname, entry.symbolType);
                 if (entry == null) {
                     entry = new SymbolTableEntry(tagname, enumtype);
                     symbolTable.bind(packageName, tagname, entry);
                 } else {
+                    entry = localEntry(tagname, entry);
                     entry.type = new BSVType();
                 }
                 if (entry.instances == null)
                     entry.instances = new ArrayList<>();
                 entry.value = new IntValue(tagValue);
                 entry.instances.add(new SymbolTableEntry(tagname, enumtype));
-                logger.fine(String.format("Enum tag %s : %s", tagname, enumtype));
+                Trace.fine(Trace.ANALYSIS, "Enum tag %s : %s", tagname, enumtype);
 
                 tagValue = tagValue + i;
             }
@@ -293,6 +448,25 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
         return null;
     }
 
+    /*
+     * The entry of a tag that is already bound, to be overloaded. A tag
+     * imported from another package is copied into this package's scope
+     * instead, because the imported entry is shared by every package that
+     * imports it, possibly being analyzed on other threads.
+     */
+    private SymbolTableEntry localEntry(String tagname, SymbolTableEntry entry) {
+        if (symbolTable.bindings.get(tagname) == entry)
+            return entry;
+        SymbolTableEntry local = new SymbolTableEntry(tagname, entry.type);
+        local.symbolType = entry.symbolType;
+        local.mappings = entry.mappings;
+        local.value = entry.value;
+        if (entry.instances != null)
+            local.instances = new ArrayList<>(entry.instances);
+        symbolTable.bind(packageName, tagname, local);
+        return local;
+    }
+
     @Override public Void visitTypedefstruct(BSVParser.TypedefstructContext ctx) {
         if (!declOnly)
             return null;
@@ -309,27 +483,27 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
 	SymbolTable mappings = new SymbolTable(null, SymbolTable.ScopeType.TaggedUnion, typedefname);
         symbolTable.bindType(packageName, typedefname, taggeduniontype, mappings)
 	    .setSymbolType(SymbolType.TaggedUnion);
-        logger.fine(String.format("tagged union %s : %s", typedefname, taggeduniontype));
+        Trace.fine(Trace.ANALYSIS, "tagged union %s : %s", typedefname, taggeduniontype);
 	int tagnum = 0;
         for (BSVParser.UnionmemberContext member: ctx.unionmember()) {
             BSVParser.UpperCaseIdentifierContext id = member.upperCaseIdentifier();
             String idname = id.getText();
             SymbolTableEntry entry = symbolTable.lookup(idname);
             if (entry != null)
-                logger.fine(String.format("Previously defined entry %s type %s",
-                                          idname, entry.symbolType));
+                Trace.fine(Trace.ANALYSIS, "Previously defined entry %s type %s", idname, entry.symbolType);
             if (entry == null) {
                 entry = new SymbolTableEntry(idname, taggeduniontype);
                 entry.value = new IntValue(tagnum);
                 symbolTable.bind(packageName, idname, entry);
             } else {
+                entry = localEntry(idname, entry);
                 entry.type = new BSVType();
             }
             if (entry.instances == null)
                 entry.instances = new ArrayList<>();
             entry.instances.add(new SymbolTableEntry(idname, taggeduniontype));
 
-	    logger.fine(String.format("tagged union member %s : %s", idname, taggeduniontype));
+	    Trace.fine(Trace.ANALYSIS, "tagged union member %s : %s", idname, taggeduniontype);
 
 	    assert member.subunion() == null : String.format("subunions unhandled %s", ctx.getText());
             if (member.bsvtype() != null) {
@@ -395,7 +569,7 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
                     SymbolTableEntry instanceEntry = ste.getValue();
                     SymbolTableEntry classEntry = symbolTable.lookup(instanceName);
                     assert classEntry != null : String.format("Instance var %s", instanceName);
-                    logger.fine(String.format("Adding instance %s : %s", instanceName, instanceEntry.type));
+                    Trace.fine(Trace.ANALYSIS, "Adding instance %s : %s", instanceName, instanceEntry.type);
                     classEntry.addInstance(instanceEntry);
                 }
             popScope();
@@ -423,7 +597,7 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
     @Override public Void visitModuledef(BSVParser.ModuledefContext ctx) {
         String modulename = ctx.moduleproto().name.getText();
         BSVType moduletype = typeVisitor.visit(ctx.moduleproto());
-        logger.fine(String.format("Binding module %s", modulename));
+        Trace.fine(Trace.ANALYSIS, "Binding module %s", modulename);
         if (declOnly) {
             symbolTable.bind(packageName, modulename,
                              new SymbolTableEntry(modulename, moduletype));
@@ -463,7 +637,7 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
     @Override public Void visitImportbvi(BSVParser.ImportbviContext ctx) {
         String modulename = ctx.moduleproto().name.getText();
         BSVType moduletype = typeVisitor.visit(ctx.moduleproto());
-        logger.fine(String.format("Binding import BVI module %s", modulename));
+        Trace.fine(Trace.ANALYSIS, "Binding import BVI module %s", modulename);
         if (declOnly)
             symbolTable.bind(packageName, modulename,
                              new SymbolTableEntry(modulename, moduletype));
@@ -474,7 +648,7 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
         assert ctx.name != null : String.format("Method with no name %s at %s",
                                                 ctx.getText(), sourceLocation(ctx));
         String methodName = ctx.name.getText();
-        logger.fine("entering methoddef " + methodName + " {");
+        Trace.fine(Trace.ANALYSIS, "entering methoddef %s {", methodName);
         BSVType methodType = new BSVType(); // FIXME
         if (declOnly) {
             symbolTable.bind(methodName, new SymbolTableEntry(methodName, methodType));
@@ -506,18 +680,18 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
         if (ctx.expression() != null)
             visit(ctx.expression());
         popScope();
-        logger.fine("} exiting methoddef " + methodName);
+        Trace.fine(Trace.ANALYSIS, "} exiting methoddef %s", methodName);
         return null;
     }
 
     @Override public Void visitRuledef(BSVParser.RuledefContext ruledef) {
         assert !declOnly;
         String ruleName = (ruledef.name != null) ? ruledef.name.getText() : "<anonrule>";
-        logger.fine("entering rule " + ruleName + " {");
+        Trace.fine(Trace.ANALYSIS, "entering rule %s {", ruleName);
         pushScope(ruledef, SymbolTable.ScopeType.Action, ruleName);
         visitChildren(ruledef);
         popScope();
-        logger.fine("} exited rule " + ruleName);
+        Trace.fine(Trace.ANALYSIS, "} exited rule %s", ruleName);
         return null;
     }
     @Override public Void visitStmt(BSVParser.StmtContext ctx) {
@@ -562,15 +736,22 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
     }
 
     @Override public Void visitFunctiondef(BSVParser.FunctiondefContext ctx) {
+        return visitFunctiondef(ctx, true);
+    }
+
+    /*
+     * Binds a function, and analyzes its body unless analyzeBody is false.
+     */
+    private Void visitFunctiondef(BSVParser.FunctiondefContext ctx, boolean analyzeBody) {
         BSVParser.FunctionprotoContext functionproto = ctx.functionproto();
         String functionname = unescape(functionproto.name.getText());
         boolean isTopLevel = (symbolTable.scopeType == SymbolTable.ScopeType.Package);
 
-        logger.fine("visit functiondef " + functionname);
+        Trace.fine(Trace.ANALYSIS, "visit functiondef %s", functionname);
         if (declOnly) {
             return null;
         }
-        logger.fine(String.format("entering functiondef %s %s {", functionname, declOnly));
+        Trace.fine(Trace.ANALYSIS, "entering functiondef %s %s {", functionname, declOnly);
 	// convert top level function definitions to interface + moduledef
 	String interfaceName = String.format("Interface'%s", functionname);
 	BSVType interfaceType = new BSVType(interfaceName);
@@ -582,33 +763,37 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
 	SymbolTableEntry entry = symbolTable.lookup(functionname);
 
 	assert symbolTable == interfaceMappings;
-        // save the lexical scope
-        pushScope(ctx, SymbolTable.ScopeType.Action, functionname);
-	SymbolTable functiondefScope = symbolTable;
-        if (ctx.functionproto().provisos() != null)
-            visit(ctx.functionproto().provisos());
-        if (functionproto.methodprotoformals() != null) {
-            for (BSVParser.MethodprotoformalContext formal: functionproto.methodprotoformals().methodprotoformal()) {
-                visit(formal);
+        if (analyzeBody) {
+            // save the lexical scope
+            pushScope(ctx, SymbolTable.ScopeType.Action, functionname);
+            SymbolTable functiondefScope = symbolTable;
+            if (ctx.functionproto().provisos() != null)
+                visit(ctx.functionproto().provisos());
+            if (functionproto.methodprotoformals() != null) {
+                for (BSVParser.MethodprotoformalContext formal: functionproto.methodprotoformals().methodprotoformal()) {
+                    visit(formal);
+                }
             }
+            //visit(functionproto);
+            if (ctx.expression() != null)
+                visit(ctx.expression());
+            for (BSVParser.StmtContext stmt: ctx.stmt())
+                visit(stmt);
+            assert symbolTable == functiondefScope;
+            assert symbolTable.parent == interfaceMappings;
+            popScope();
         }
-        //visit(functionproto);
-        if (ctx.expression() != null)
-            visit(ctx.expression());
-        for (BSVParser.StmtContext stmt: ctx.stmt())
-            visit(stmt);
-	assert symbolTable == functiondefScope;
-	assert symbolTable.parent == interfaceMappings;
-        popScope();
-        logger.fine("} exiting functiondef " + functionname);
+        Trace.fine(Trace.ANALYSIS, "} exiting functiondef %s", functionname);
 
 	if (isTopLevel) {
 	    assert symbolTable == interfaceMappings;
 	    for (Map.Entry<String,SymbolTableEntry> mapping: interfaceMappings.bindings.entrySet()) {
-		logger.fine(String.format("interface mapping  %s  %s : %s", interfaceName, mapping.getKey(), mapping.getValue().type));
+		Trace.fine(Trace.ANALYSIS, "interface mapping  %s  %s : %s",
+                                           interfaceName, mapping.getKey(), mapping.getValue().type);
 	    }
 	    for (Map.Entry<String,SymbolTableEntry> mapping: interfaceMappings.typeBindings.entrySet()) {
-		logger.fine(String.format("interface tmapping %s  %s : %s", interfaceName, mapping.getKey(), mapping.getValue().type));
+		Trace.fine(Trace.ANALYSIS, "interface tmapping %s  %s : %s",
+                                           interfaceName, mapping.getKey(), mapping.getValue().type);
 	    }
 	    popScope();
 	    SymbolTableEntry functionEntry = interfaceMappings.lookup(functionname);
@@ -628,7 +813,7 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
         } else if (ctx.bsvtype() != null) {
             BSVType bsvtype = typeVisitor.visit(ctx.bsvtype());
             String varname = ctx.lowerCaseIdentifier().getText();
-            logger.fine(String.format("binding methodproto formal %s : %s", varname, bsvtype));
+            Trace.fine(Trace.ANALYSIS, "binding methodproto formal %s : %s", varname, bsvtype);
             symbolTable.bind(varname, new SymbolTableEntry(varname, bsvtype));
         }
         return null;
@@ -641,12 +826,13 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
                 visit(varinit.rhs);
                 BSVType rhstype = new BSVType(); //typeVisitor.visit(varinit.rhs);
                 assert rhstype != null : "Null rhstype " + varinit.getText() + " at " + sourceLocation(varinit.rhs);
-                logger.fine("varbinding " + rhstype + " " + varinit.getText());
+                if (Trace.on(Trace.ANALYSIS))
+                    Trace.fine(Trace.ANALYSIS, "varbinding %s %s", rhstype, varinit.getText());
 		if (callUnify) {
 		    try {
 			bsvtype.unify(rhstype);
 		    } catch (InferenceError e) {
-			logger.fine("Var binding InferenceError " + e);
+			Trace.fine(Trace.ANALYSIS, "Var binding InferenceError %s", e);
 		    }
 		}
             }
@@ -666,8 +852,7 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
                             ParserRuleContext lhs, ParserRuleContext rhs) {
         assert !declOnly;
         if (varName == null || lhsparamtype == null || rhstype == null) {
-            logger.fine(String.format("varName=%s lhsparamtype=%s rhstype=%s\n",
-                                             varName, lhsparamtype, rhstype));
+            Trace.fine(Trace.ANALYSIS, "varName=%s lhsparamtype=%s rhstype=%s\n", varName, lhsparamtype, rhstype);
             return;
         }
 
@@ -678,11 +863,11 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
 	    try {
 		lhstype.unify(rhstype);
 	    } catch (InferenceError e) {
-		logger.fine("Action binding InferenceError " + e);
+		Trace.fine(Trace.ANALYSIS, "Action binding InferenceError %s", e);
 	    }
 	}
-        logger.fine("ArrowBinding  " + varName + " : " + lhsparamtype);
-        logger.fine("    bsvtype (" + lhstype + ") rhstype (" + rhstype + ")");
+        Trace.fine(Trace.ANALYSIS, "ArrowBinding  %s : %s", varName, lhsparamtype);
+        Trace.fine(Trace.ANALYSIS, "    bsvtype (%s) rhstype (%s)", lhstype, rhstype);
 
     }
 
@@ -711,7 +896,8 @@ public class StaticAnalysis extends BSVBaseVisitor<Void>
         BSVType rhstype = typeVisitor.visit(ctx.rhs);
         for (BSVParser.LowerCaseIdentifierContext ident: ctx.lowerCaseIdentifier()) {
             String varName = ident.getText();
-            logger.fine("Let " + varName + " : " + rhstype + " " + ctx.op.getText() + " " + ctx.rhs.getText());
+            if (Trace.on(Trace.ANALYSIS))
+                Trace.fine(Trace.ANALYSIS, "Let %s : %s %s %s", varName, rhstype, ctx.op.getText(), ctx.rhs.getText());
             BSVType lhstype = rhstype;
             boolean arrowBinding = ctx.op.getText().equals("<-");
             if (arrowBinding) {
@@ -742,12 +928,14 @@ System.err.println("ARROWBINDING " + varName + " : " + rhstype + " " + ctx.op.ge
         assert rhstype != null : ctx.rhs.getText();
         if (false) {
             try {
-                logger.fine("lhs " + ctx.lhs.getText() + " : " + lhstype.prune());
-                logger.fine("rhs " + ctx.rhs.getText() + " : " + rhstype.prune());
+                if (Trace.on(Trace.ANALYSIS)) {
+                    Trace.fine(Trace.ANALYSIS, "lhs %s : %s", ctx.lhs.getText(), lhstype.prune());
+                    Trace.fine(Trace.ANALYSIS, "rhs %s : %s", ctx.rhs.getText(), rhstype.prune());
+                }
                 lhstype.unify(rhsregtype);
-                logger.fine("regwrite lhs (" + lhstype + ") rhs (" + rhstype + ")");
+                Trace.fine(Trace.ANALYSIS, "regwrite lhs (%s) rhs (%s)", lhstype, rhstype);
             } catch (InferenceError e) {
-                logger.fine("Reg write InferenceError " + e);
+                Trace.fine(Trace.ANALYSIS, "Reg write InferenceError %s", e);
             }
         }
         return null;
@@ -769,7 +957,8 @@ System.err.println("ARROWBINDING " + varName + " : " + rhstype + " " + ctx.op.ge
     }
 
     @Override public Void visitCasestmtpatitem(BSVParser.CasestmtpatitemContext ctx)  {
-        logger.fine("visit case stmt pat item " + ctx.getText());
+        if (Trace.on(Trace.ANALYSIS))
+            Trace.fine(Trace.ANALYSIS, "visit case stmt pat item %s", ctx.getText());
         pushScope(ctx, SymbolTable.ScopeType.CaseStmt, ctx.pattern().getText());
         visit(ctx.pattern());
         for (BSVParser.PatterncondContext patterncond: ctx.patterncond())
@@ -834,10 +1023,12 @@ System.err.println("ARROWBINDING " + varName + " : " + rhstype + " " + ctx.op.ge
     @Override public Void visitPattern(BSVParser.PatternContext ctx)  {
         if (ctx.var != null) {
             String varname = ctx.var.getText();
-            logger.fine(String.format("binding pattern var %s at %s", varname, sourceLocation(ctx)));
+            if (Trace.on(Trace.ANALYSIS))
+                Trace.fine(Trace.ANALYSIS, "binding pattern var %s at %s", varname, sourceLocation(ctx));
             symbolTable.bind(varname, new BSVType());
         } else {
-            logger.fine(String.format("visiting pattern %s", ctx.getText()));
+            if (Trace.on(Trace.ANALYSIS))
+                Trace.fine(Trace.ANALYSIS, "visiting pattern %s", ctx.getText());
             visitChildren(ctx);
         }
         return null;
@@ -864,13 +1055,13 @@ System.err.println("ARROWBINDING " + varName + " : " + rhstype + " " + ctx.op.ge
     }
 
     @Override public Void visitBeginendblock(BSVParser.BeginendblockContext block) {
-        logger.fine("entering block {");
+        Trace.fine(Trace.ANALYSIS, "entering block {");
         pushScope(block, symbolTable.scopeType, "begin");
 
         visitChildren(block);
 
         popScope();
-        logger.fine("} exited block");
+        Trace.fine(Trace.ANALYSIS, "} exited block");
         return null;
     }
     @Override public Void visitOperatorexpr(BSVParser.OperatorexprContext ctx) {
@@ -895,7 +1086,8 @@ System.err.println("ARROWBINDING " + varName + " : " + rhstype + " " + ctx.op.ge
         assert !declOnly;
         visit(ctx.expression());
         for (BSVParser.CaseexpritemContext item: ctx.caseexpritem()) {
-            logger.fine("visit case expr item " + item.getText());
+            if (Trace.on(Trace.ANALYSIS))
+                Trace.fine(Trace.ANALYSIS, "visit case expr item %s", item.getText());
             pushScope(item, SymbolTable.ScopeType.CaseStmt, "caseexpr");
             if (item.pattern() != null)
                 visit(item.pattern());
@@ -922,7 +1114,8 @@ System.err.println("ARROWBINDING " + varName + " : " + rhstype + " " + ctx.op.ge
     }
 
     private void bindFreeTypeVars(BSVType t) {
-        logger.fine(String.format("bindFreeTypeVars %s %s entry %s", t, t.isVar, symbolTable.lookupType(t.name)));
+        if (Trace.on(Trace.ANALYSIS))
+            Trace.fine(Trace.ANALYSIS, "bindFreeTypeVars %s %s entry %s", t, t.isVar, symbolTable.lookupType(t.name));
         if (t.isVar) {
             SymbolTableEntry entry = symbolTable.lookupType(t.name);
             if (entry == null) {
@@ -941,7 +1134,8 @@ System.err.println("ARROWBINDING " + varName + " : " + rhstype + " " + ctx.op.ge
     }
 
     @Override public Void visitProviso(BSVParser.ProvisoContext proviso) {
-        logger.fine("visiting proviso " + proviso.getText());
+        if (Trace.on(Trace.ANALYSIS))
+            Trace.fine(Trace.ANALYSIS, "visiting proviso %s", proviso.getText());
         String varName = proviso.var.getText();
         for (BSVParser.BsvtypeContext t : proviso.bsvtype()) {
             BSVType bsvtype = typeVisitor.visit(t);
@@ -0,0 +1,140 @@
+package bsvtokami;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * The library packages in lib/, analyzed at build time and bundled in the
+ * jar under RESOURCE_DIR: a package interface file (see PackageInterface)
+ * and the generated IR of each package.
+ *
+ * When a run imports a package that is bundled, and the package source and
+ * included files it finds have the same content as the ones the bundle was
+ * made from, the package scope is read from the bundle and its IR copied
+ * out, if it differs from the IR already there, instead of parsing and
+ * analyzing the package. A package is only taken from the bundle if the
+ * packages it imports were too.
+ */
+class StdlibSnapshot {
+    private static Logger logger = Logger.getGlobal();
+    static final String RESOURCE_DIR = "/bsvtokami/stdlib/";
+
+    /*
+     * Returns the package scope of pkgName from the bundle, or null if it is
+     * not bundled or its sources differ from the ones at filename.
+     */
+    static SymbolTable load(Compiler compiler, String pkgName, String filename) throws IOException {
+        InputStream resource = StdlibSnapshot.class.getResourceAsStream(RESOURCE_DIR + pkgName + ".bki");
+        if (resource == null || filename == null)
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(resource)))) {
+            List<List<String>> header = PackageInterface.readHeader(in);
+            if (header == null) {
+                logger.warning(String.format("Ignoring bundled interface of %s from another version", pkgName));
+                return null;
+            }
+            List<String> bundledInputs = header.get(0);
+            List<String> hashes = header.get(1);
+            List<String> imports = header.get(2);
+
+            // the bundled inputs are paths on the build machine; find the files by name here
+            ArrayList<String> inputs = new ArrayList<>();
+            for (int i = 0; i < bundledInputs.size(); i++) {
+                String input = (i == 0) ? filename : SearchPath.find(compiler.searchDirs, new File(bundledInputs.get(i)).getName());
+                if (input == null || !ParseCache.hashFile(input).equals(hashes.get(i))) {
+                    logger.fine(String.format("library snapshot of %s does not match %s", pkgName, input));
+                    return null;
+                }
+                inputs.add(input);
+            }
+
+            ArrayList<String> dependencies = new ArrayList<>(imports);
+            if (!pkgName.equals("Prelude"))
+                dependencies.add(0, "Prelude");
+            for (String importedPkgName: dependencies) {
+                compiler.importPackage(importedPkgName);
+                if (!compiler.snapshotPackages.contains(importedPkgName)) {
+                    logger.fine(String.format("not using the library snapshot of %s: %s was analyzed from source", pkgName, importedPkgName));
+                    return null;
+                }
+            }
+            return PackageInterface.readScope(compiler, pkgName, inputs, imports, in);
+        } catch (IOException | IllegalArgumentException ex) {
+            logger.warning(String.format("Ignoring unreadable bundled interface of %s: %s", pkgName, ex));
+            return null;
+        }
+    }
+
+    /*
+     * Writes the bundled IR of pkgName where generateIR would have, and
+     * returns whether there was any.
+     */
+    static boolean extractIR(Compiler compiler, String pkgName, String filename) throws IOException {
+        try (InputStream resource = StdlibSnapshot.class.getResourceAsStream(RESOURCE_DIR + pkgName + ".generated.IR")) {
+            if (resource == null)
+                return false;
+            String dirname = (compiler.kamidir != null) ? compiler.kamidir : new File(filename).getParent();
+            File dir = new File(dirname);
+            if (!dir.exists())
+                dir.mkdirs();
+            File ofile = new File(dirname, pkgName + ".generated.IR");
+            if (!copyIfChanged(resource, ofile))
+                System.err.println(String.format("%s is up to date", ofile));
+            compiler.generatedIR.put(pkgName, ofile.getPath());
+            return true;
+        }
+    }
+
+    /*
+     * Copies in to ofile unless ofile already has that content, so that
+     * extracting the same IR again leaves the file and its modification
+     * time alone. Returns whether ofile was written.
+     */
+    static boolean copyIfChanged(InputStream in, File ofile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) > 0)
+            bytes.write(buffer, 0, count);
+        byte[] content = bytes.toByteArray();
+        if (ofile.exists() && ofile.length() == content.length
+            && Arrays.equals(Files.readAllBytes(ofile.toPath()), content))
+            return false;
+        File tmpfile = File.createTempFile(ofile.getName(), ".tmp", ofile.getAbsoluteFile().getParentFile());
+        Files.write(tmpfile.toPath(), content);
+        Files.move(tmpfile.toPath(), ofile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /*
+     * Analyzes the given library packages and writes their interfaces and
+     * IR to a directory, to be bundled under RESOURCE_DIR.
+     * Usage: StdlibSnapshot outputdir file.bsv...
+     */
+    public static void main(String[] args) throws IOException {
+        Compiler compiler = new Compiler();
+        compiler.setKamiDir(args[0]);
+        compiler.useInterfaces = true;
+        compiler.useSnapshot = false;
+        for (int i = 1; i < args.length; i++) {
+            File file = new File(args[i]);
+            compiler.addSearchDir((file.getParent() != null) ? file.getParent() : ".");
+        }
+        int analyzed = 0;
+        for (int i = 1; i < args.length; i++) {
+            String pkgName = new File(args[i]).getName().split("\\.")[0];
+            try {
+                compiler.importPackage(pkgName);
+                if (compiler.staticAnalyzer.packageScope(pkgName) != null)
+                    analyzed++;
+            } catch (Exception | AssertionError e) {
+                logger.warning(String.format("Could not analyze %s for the library snapshot: %s", args[i], e));
+            }
+        }
+        System.err.println(String.format("library snapshot: %d of %d packages written to %s", analyzed, args.length - 1, args[0]));
+    }
+}
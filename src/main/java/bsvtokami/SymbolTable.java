@@ -60,6 +60,9 @@ class SymbolTable {
         Package, Module, Action, Declaration, Block, TypeClassInstance, IfStmt, CaseStmt, Loop, TaggedUnion
     }
     public final ScopeType scopeType;
+    // when non-null, names bound in this scope are appended here
+    List<String> bindingLog;
+    List<String> typeBindingLog;
 
     SymbolTable (SymbolTable parent, ScopeType st) {
         this.parent = parent;
@@ -88,20 +91,56 @@ class SymbolTable {
     }
 
     SymbolTableEntry lookup(String key) {
+        if (CompilerEvents.sampleLookup())
+            return sampledLookup(key, false);
+        return lookupBinding(key);
+    }
+
+    private SymbolTableEntry lookupBinding(String key) {
         if (bindings.containsKey(key)) {
             return (SymbolTableEntry)bindings.get(key);
         } else if (parent != null) {
-            return parent.lookup(key);
+            return parent.lookupBinding(key);
         } else {
             return null;
         }
     }
 
+    /*
+     * lookup or lookupType, recorded as a SymbolLookup event with the
+     * number of scopes searched.
+     */
+    private SymbolTableEntry sampledLookup(String key, boolean typeNamespace) {
+        CompilerEvents.SymbolLookup event = new CompilerEvents.SymbolLookup();
+        event.begin();
+        SymbolTableEntry entry = null;
+        int depth = 0;
+        for (SymbolTable table = this; table != null; table = table.parent) {
+            Map<String,SymbolTableEntry> map = typeNamespace ? table.typeBindings : table.bindings;
+            depth++;
+            if (map.containsKey(key)) {
+                entry = map.get(key);
+                break;
+            }
+        }
+        event.end();
+        event.key = key;
+        event.scope = name;
+        event.typeNamespace = typeNamespace;
+        event.depth = depth;
+        event.found = entry != null;
+        event.commit();
+        return entry;
+    }
+
     void unbind(String key) {
 	bindings.remove(key);
     }
+    void unbindType(String key) {
+	typeBindings.remove(key);
+    }
     SymbolTableEntry bind(String key, BSVType bsvtype) {
-        logger.fine("binding " + key + " with type " + bsvtype + " in scope " + this + " " + this.name);
+        Trace.fine(Trace.SYMBOLS, "binding %s with type %s in scope %s %s", key, bsvtype, this, this.name);
 	if(bindings.containsKey(key)) {
             System.err.println("ERROR: " + String.format("Symbol %s already bound in scope %s %s", key, name, this));
             return (SymbolTableEntry)bindings.get(key);
@@ -110,71 +149,91 @@ class SymbolTable {
 	    : String.format("Symbol %s already bound in scope %s %s", key, name, this);
 	SymbolTableEntry entry = new SymbolTableEntry(key, bsvtype);
         bindings.put(key, entry);
+	if (bindingLog != null)
+	    bindingLog.add(key);
 	return entry;
     }
     SymbolTableEntry bind(String key, SymbolTableEntry entry) {
-        logger.fine("binding " + key + " with type " + entry.type + " in scope " + this + " " + this.name);
+        Trace.fine(Trace.SYMBOLS, "binding %s with type %s in scope %s %s", key, entry.type, this, this.name);
 	assert !bindings.containsKey(key)
 	    : String.format("Symbol %s already bound in scope %s %s", key, name, this);
         bindings.put(key, entry);
+	if (bindingLog != null)
+	    bindingLog.add(key);
 	return entry;
     }
     SymbolTableEntry bind(String pkgName, String key, SymbolTableEntry entry) {
-        logger.fine("binding " + key + " with type " + entry.type + " in scope " + this + " " + this.name);
+        Trace.fine(Trace.SYMBOLS, "binding %s with type %s in scope %s %s", key, entry.type, this, this.name);
 	assert !bindings.containsKey(key)
 	    : String.format("Symbol %s::%s already bound in scope %s %s", pkgName, key, name, this);
         entry.pkgName = pkgName;
         bindings.put(key, entry);
+	if (bindingLog != null)
+	    bindingLog.add(key);
 	return entry;
     }
 
     SymbolTableEntry lookupType(String key) {
+        if (CompilerEvents.sampleLookup())
+            return sampledLookup(key, true);
+        return lookupTypeBinding(key);
+    }
+
+    private SymbolTableEntry lookupTypeBinding(String key) {
         if (typeBindings.containsKey(key)) {
             return (SymbolTableEntry)typeBindings.get(key);
         } else if (parent != null) {
 	    //logger.fine("lookupType chaining to parent " + parent);
-            return parent.lookupType(key);
+            return parent.lookupTypeBinding(key);
         } else {
             return null;
         }
     }
 
     SymbolTableEntry bindType(String key, SymbolTableEntry entry) {
-        logger.fine("binding type " + key + " with entry " + entry);
+        Trace.fine(Trace.SYMBOLS, "binding type %s with entry %s", key, entry);
         typeBindings.put(key, entry);
+	if (typeBindingLog != null)
+	    typeBindingLog.add(key);
 	return entry;
     }
     SymbolTableEntry bindType(String key, BSVType bsvtype) {
-        logger.fine("binding type " + key + " with type " + bsvtype + " in scope " + this + " " + this.name);
+        Trace.fine(Trace.SYMBOLS, "binding type %s with type %s in scope %s %s", key, bsvtype, this, this.name);
         SymbolTableEntry entry = new SymbolTableEntry(key, bsvtype);
         typeBindings.put(key, entry);
+	if (typeBindingLog != null)
+	    typeBindingLog.add(key);
 	return entry;
     }
     SymbolTableEntry bindType(String pkgName, String key, BSVType bsvtype) {
-        logger.fine("binding type " + key + " with type " + bsvtype);
+        Trace.fine(Trace.SYMBOLS, "binding type %s with type %s", key, bsvtype);
         SymbolTableEntry entry = new SymbolTableEntry(key, bsvtype);
         entry.pkgName = pkgName;
         typeBindings.put(key, entry);
+	if (typeBindingLog != null)
+	    typeBindingLog.add(key);
 	return entry;
     }
     SymbolTableEntry bindType(String pkgName, String key, BSVType bsvtype, SymbolTable mappings) {
         SymbolTableEntry entry = new SymbolTableEntry(key, bsvtype);
-        logger.fine("binding type " + key + " with type " + bsvtype + " and mappings " + mappings
-			   + " in scope " + this + " " + this.name);
+        Trace.fine(Trace.SYMBOLS, "binding type %s with type %s and mappings %s in scope %s %s",
+                                  key, bsvtype, mappings, this, this.name);
         entry.mappings = mappings;
         entry.pkgName = pkgName;
         typeBindings.put(key, entry);
+	if (typeBindingLog != null)
+	    typeBindingLog.add(key);
 	return entry;
     }
     SymbolTable copy(SymbolTable parentContext) {
         SymbolTable n = new SymbolTable(parentContext, scopeType);
         for (Map.Entry<String,SymbolTableEntry> entry: bindings.entrySet()) {
             n.bindings.put(entry.getKey(), entry.getValue().copy());
-            logger.fine("    copy " + entry.getKey() + " " + entry.getValue());
+            Trace.fine(Trace.SYMBOLS, "    copy %s %s", entry.getKey(), entry.getValue());
         }
         for (Map.Entry<String,SymbolTableEntry> entry: typeBindings.entrySet()) {
             n.typeBindings.put(entry.getKey(), entry.getValue().copy());
-            logger.fine("    copy " + entry.getKey() + " " + entry.getValue());
+            Trace.fine(Trace.SYMBOLS, "    copy %s %s", entry.getKey(), entry.getValue());
         }
         return n;
     }
@@ -0,0 +1,125 @@
+package bsvtokami;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Pair;
+
+/*
+ * Reads and writes token lists in a compact binary form. Strings (token
+ * text and source names) are written once and then referred to by index.
+ * Tokens for the file being encoded do not record its name, so the same
+ * encoding can be replayed under whatever name the file has when it is read.
+ */
+class TokenCodec {
+    private static final int NEW_STRING = -1;
+    private static final int NULL_STRING = -2;
+    private static final int MAIN_SOURCE = -3;
+
+    private final String mainSourceName;
+    private final HashMap<String,Integer> stringIds = new HashMap<>();
+    private final ArrayList<String> strings = new ArrayList<>();
+    private final HashMap<String,Pair<TokenSource,CharStream>> sources = new HashMap<>();
+
+    TokenCodec(String mainSourceName) {
+        this.mainSourceName = mainSourceName;
+    }
+
+    void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(NULL_STRING);
+            return;
+        }
+        Integer id = stringIds.get(s);
+        if (id != null) {
+            out.writeInt(id);
+            return;
+        }
+        stringIds.put(s, stringIds.size());
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(NEW_STRING);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    String readString(DataInputStream in) throws IOException {
+        return readString(in, in.readInt());
+    }
+
+    private String readString(DataInputStream in, int id) throws IOException {
+        if (id == NULL_STRING)
+            return null;
+        if (id >= 0)
+            return strings.get(id);
+        assert id == NEW_STRING : "Corrupt string table entry " + id;
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        String s = new String(bytes, StandardCharsets.UTF_8);
+        strings.add(s);
+        return s;
+    }
+
+    void writeToken(DataOutputStream out, Token token) throws IOException {
+        String sourceName = token.getTokenSource() != null ? token.getTokenSource().getSourceName() : null;
+        if (sourceName != null && sourceName.equals(mainSourceName))
+            out.writeInt(MAIN_SOURCE);
+        else
+            writeString(out, sourceName);
+        out.writeInt(token.getType());
+        out.writeInt(token.getChannel());
+        out.writeInt(token.getLine());
+        out.writeInt(token.getCharPositionInLine());
+        out.writeInt(token.getStartIndex());
+        out.writeInt(token.getStopIndex());
+        writeString(out, token.getText());
+    }
+
+    Token readToken(DataInputStream in) throws IOException {
+        int sourceId = in.readInt();
+        String sourceName = (sourceId == MAIN_SOURCE) ? mainSourceName : readString(in, sourceId);
+        int type = in.readInt();
+        int channel = in.readInt();
+        int line = in.readInt();
+        int charPositionInLine = in.readInt();
+        int start = in.readInt();
+        int stop = in.readInt();
+        CommonToken token = new CommonToken(source(sourceName), type, channel, start, stop);
+        token.setLine(line);
+        token.setCharPositionInLine(charPositionInLine);
+        token.setText(readString(in));
+        return token;
+    }
+
+    void writeTokens(DataOutputStream out, List<? extends Token> tokens) throws IOException {
+        out.writeInt(tokens.size());
+        for (Token token: tokens)
+            writeToken(out, token);
+    }
+
+    List<Token> readTokens(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        ArrayList<Token> tokens = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Token token = readToken(in);
+            ((CommonToken)token).setTokenIndex(i);
+            tokens.add(token);
+        }
+        return tokens;
+    }
+
+    /*
+     * Decoded tokens only need their token source for its name, which is
+     * what StaticAnalysis.sourceLocation reports.
+     */
+    private Pair<TokenSource,CharStream> source(String sourceName) {
+        Pair<TokenSource,CharStream> source = sources.get(sourceName);
+        if (source == null) {
+            TokenSource tokenSource = new ListTokenSource(Collections.<Token>emptyList(), sourceName);
+            source = new Pair<TokenSource,CharStream>(tokenSource, null);
+            sources.put(sourceName, source);
+        }
+        return source;
+    }
+}
@@ -0,0 +1,80 @@
+package bsvtokami;
+
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Debug tracing of the compiler's hot paths, by subsystem. Categories are
+ * selected with -trace, and are all off by default:
+ *
+ *   symbols   binding and lookup in symbol tables
+ *   scopes    scopes pushed and popped by the analyzers and the evaluator
+ *   analysis  StaticAnalysis
+ *   types     BSVTypeVisitor type inference
+ *   eval      Evaluator
+ *   ir        GenerateIR
+ *
+ * A message is only formatted if its category is on, so arguments should be
+ * the objects themselves and not their renderings: fine(SCOPES, "push %s",
+ * scope) calls scope.toString() only when scopes are traced. Where computing
+ * an argument costs something itself, test on() first. Traced messages go
+ * to the global logger at FINE, and so to bsvtokami.log.
+ */
+class Trace {
+    enum Category { SYMBOLS, SCOPES, ANALYSIS, TYPES, EVAL, IR }
+
+    private static Logger logger = Logger.getGlobal();
+    // indexed by Category.ordinal(); written only while parsing the command line
+    private static final boolean[] enabled = new boolean[Category.values().length];
+
+    static final Category SYMBOLS = Category.SYMBOLS;
+    static final Category SCOPES = Category.SCOPES;
+    static final Category ANALYSIS = Category.ANALYSIS;
+    static final Category TYPES = Category.TYPES;
+    static final Category EVAL = Category.EVAL;
+    static final Category IR = Category.IR;
+
+    static boolean on(Category category) {
+        return enabled[category.ordinal()];
+    }
+
+    static void fine(Category category, String format, Object... args) {
+        if (enabled[category.ordinal()])
+            logger.fine(String.format(format, args));
+    }
+
+    /*
+     * Turns on a comma-separated list of categories, or all of them. Returns
+     * false if a name is not a category.
+     */
+    static boolean enable(String categories) {
+        for (String name: categories.split(",")) {
+            name = name.trim();
+            if (name.isEmpty())
+                continue;
+            if (name.equals("all")) {
+                Arrays.fill(enabled, true);
+                continue;
+            }
+            try {
+                enabled[Category.valueOf(name.toUpperCase()).ordinal()] = true;
+            } catch (IllegalArgumentException ex) {
+                return false;
+            }
+        }
+        if (!logger.isLoggable(Level.FINE))
+            logger.setLevel(Level.FINE);
+        return true;
+    }
+
+    static String categoryNames() {
+        StringBuilder names = new StringBuilder();
+        for (Category category: Category.values()) {
+            if (names.length() > 0)
+                names.append(",");
+            names.append(category.name().toLowerCase());
+        }
+        return names.toString();
+    }
+}
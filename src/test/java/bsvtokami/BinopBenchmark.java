@@ -0,0 +1,88 @@
+package bsvtokami;
+
+import java.lang.reflect.Method;
+import java.util.*;
+
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+
+/*
+ * Times lexing and parsing of a generated package of functions whose bodies
+ * are long chains of binary operators, to compare binopexpr grammars. The
+ * package is the same on every run: 600 functions, most of them returning
+ * a chain of up to 14 operators drawn from every precedence level.
+ *
+ * It is built with the tests; run it from the top of the tree, with
+ * ANTLR_JAR the ANTLR 4.7.1 runtime:
+ *
+ *   gradle testClasses
+ *   java -cp build/classes/java/test:build/classes/java/main:$ANTLR_JAR bsvtokami.BinopBenchmark [sll]
+ *
+ * It prints the best of 50 timed runs after 10 warm-up runs, per binary
+ * operator. For the left-recursive rule, compile it against a parser
+ * generated from the grammar before binopexpr became a flat chain
+ * (git show 76d67a3^:src/main/antlr/bsvtokami/BSV.g4); BinopexprFolder is
+ * attached only if it is on the class path. With sll, prediction is SLL
+ * only, as the first attempt of the two-stage parse is.
+ */
+public class BinopBenchmark {
+    private static final String[] operands = { "a", "b", "c", "5", "x[3]", "y.f", "(a + 1)", "~b", "-c" };
+    private static final String[] operators = {
+        "||", "&&", "|", "&", "^", "^~", "==", "<", "<=", ">", ">=", "<<", ">>", "+", "-", "*", "/", "%", "**"
+    };
+
+    public static void main(String[] args) throws Exception {
+        boolean sll = (args.length > 0 && args[0].equals("sll"));
+        Random random = new Random(1);
+        StringBuilder text = new StringBuilder("package Alu;\n");
+        int binops = 0;
+        for (int i = 0; i < 600; i++) {
+            text.append(String.format("function Bit#(32) f%d(Bit#(32) a, Bit#(32) b, Bit#(32) c);\n   return ", i));
+            text.append(operands[random.nextInt(operands.length)]);
+            int chain = (random.nextInt(4) == 0) ? 0 : 6 + random.nextInt(9);
+            for (int j = 0; j < chain; j++) {
+                text.append(" ").append(operators[random.nextInt(operators.length)]);
+                text.append(" ").append(operands[random.nextInt(operands.length)]);
+            }
+            binops += chain;
+            text.append(";\nendfunction\n");
+        }
+        text.append("endpackage\n");
+
+        Method attach = null;
+        try {
+            attach = Class.forName("bsvtokami.BinopexprFolder").getDeclaredMethod("attach", Parser.class);
+            attach.setAccessible(true);
+        } catch (ClassNotFoundException ex) {
+            System.err.println("no BinopexprFolder: timing the left-recursive binopexpr");
+        }
+
+        String source = text.toString();
+        if (parse(source, sll, attach) > 0)
+            throw new IllegalStateException("the generated package does not parse");
+        for (int i = 0; i < 10; i++)
+            parse(source, sll, attach);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 50; i++) {
+            long start = System.nanoTime();
+            parse(source, sll, attach);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%d bytes, %d binary operators, %s: best of 50 %.1f ms, %.2f us per binary operator",
+                                         source.length(), binops, sll ? "SLL" : "LL", best / 1e6, best / 1e3 / binops));
+    }
+
+    // returns the number of syntax errors
+    private static int parse(String source, boolean sll, Method attach) throws Exception {
+        BSVLexer lexer = new BSVLexer(CharStreams.fromString(source, "Alu.bsv"));
+        lexer.removeErrorListeners();
+        BSVParser parser = new BSVParser(new CommonTokenStream(lexer));
+        parser.removeErrorListeners();
+        if (sll)
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        if (attach != null)
+            attach.invoke(null, parser);
+        parser.packagedef();
+        return parser.getNumberOfSyntaxErrors();
+    }
+}
@@ -2,10 +2,386 @@ package bsvtokami;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.antlr.v4.runtime.*;
+
 class MainTest {
 
     @org.junit.jupiter.api.Test
     void main() {
         assertNull(null);
     }
-}
\ No newline at end of file
+
+    private static File tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    private static File writeFile(File dir, String name, String text) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @org.junit.jupiter.api.Test
+    void parseCacheRoundTrip() throws IOException {
+        File dir = tempDir("parsecache");
+        File source = writeFile(dir, "Pkg.bsv",
+                                "package Pkg;\n"
+                                + "function Bit#(8) inc(Bit#(8) x);\n"
+                                + "   return x + 1;\n"
+                                + "endfunction\n"
+                                + "endpackage\n");
+        CommonTokenStream tokens = new CommonTokenStream(new BSVLexer(CharStreams.fromFileName(source.getPath())));
+        BSVParser parser = new BSVParser(tokens);
+        ParserRuleContext tree = parser.packagedef();
+        tokens.fill();
+
+        ParseCache cache = new ParseCache(new File(dir, "cache").getPath());
+        String key = ParseCache.key(source.getPath(), new HashMap<String,Token>());
+        cache.store(key, source.getPath(), tree, tokens.getTokens(), new ArrayList<String>());
+
+        ArrayList<String> includes = new ArrayList<>();
+        ParserRuleContext loaded = cache.load(key, source.getPath(), includes);
+        assertNotNull(loaded);
+        assertEquals(tree.toStringTree(parser), loaded.toStringTree(parser));
+        assertEquals(tree.getText(), loaded.getText());
+        assertTrue(includes.isEmpty());
+
+        // the key depends on the build of bsvtokami and the grammar as well as the source
+        assertNotEquals(ParseCache.hashFile(source.getPath()), key);
+        HashMap<String,Token> defines = new HashMap<>();
+        defines.put("BSVTOKAMI", null);
+        assertNotEquals(key, ParseCache.key(source.getPath(), defines));
+    }
+
+    // the nesting of the outermost binopexpr of an expression, fully parenthesized
+    private static String binopNesting(String expression) {
+        BSVParser parser = new BSVParser(new CommonTokenStream(new BSVLexer(CharStreams.fromString(expression))));
+        BinopexprFolder.attach(parser);
+        ParserRuleContext tree = parser.expression();
+        assertEquals(0, parser.getNumberOfSyntaxErrors());
+        return binopNesting(firstBinopexpr(tree));
+    }
+
+    private static BSVParser.BinopexprContext firstBinopexpr(ParserRuleContext ctx) {
+        if (ctx instanceof BSVParser.BinopexprContext)
+            return (BSVParser.BinopexprContext)ctx;
+        for (int i = 0; i < ctx.getChildCount(); i++) {
+            if (!(ctx.getChild(i) instanceof ParserRuleContext))
+                continue;
+            BSVParser.BinopexprContext binopexpr = firstBinopexpr((ParserRuleContext)ctx.getChild(i));
+            if (binopexpr != null)
+                return binopexpr;
+        }
+        return null;
+    }
+
+    private static String binopNesting(BSVParser.BinopexprContext ctx) {
+        if (ctx.op == null)
+            return ctx.unopexpr().getText();
+        return "(" + binopNesting(ctx.left) + " " + ctx.op.getText() + " " + binopNesting(ctx.right) + ")";
+    }
+
+    @org.junit.jupiter.api.Test
+    void binopexprFolding() {
+        // the nesting the left-recursive binopexpr rule produced
+        assertEquals("(a + (b * c))", binopNesting("a + b * c"));
+        assertEquals("((a - b) - c)", binopNesting("a - b - c"));
+        assertEquals("((a ** b) ** c)", binopNesting("a ** b ** c"));
+        assertEquals("((a == b) && (c | d))", binopNesting("a == b && c | d"));
+        assertEquals("(((a << 1) < b) || (c & (d != (e % f))))", binopNesting("a << 1 < b || c & d != e % f"));
+        assertEquals("a", binopNesting("a"));
+    }
+
+    private static String functionPackage(String... functions) {
+        StringBuilder text = new StringBuilder("package Pkg;\n");
+        for (String function: functions)
+            text.append(function);
+        return text.append("endpackage\n").toString();
+    }
+
+    @org.junit.jupiter.api.Test
+    void reanalyzeChangedFunctions() throws IOException {
+        String inc = "function Bit#(8) inc(Bit#(8) x);\n   return x + 1;\nendfunction\n";
+        String inc2 = "function Bit#(8) inc(Bit#(8) x);\n   return x + 2;\nendfunction\n";
+        String incr = "function Bit#(8) incr(Bit#(8) x);\n   return x + 2;\nendfunction\n";
+        String dec = "function Bit#(8) dec(Bit#(8) x);\n   return x - 1;\nendfunction\n";
+        File dir = tempDir("reanalyze");
+        File source = writeFile(dir, "Pkg.bsv", functionPackage(inc, dec));
+
+        Compiler compiler = new Compiler();
+        compiler.addSearchDir("lib");
+        compiler.addSearchDir(dir.getPath());
+        compiler.retainSources = true;
+        compiler.useSnapshot = false;
+        compiler.analyzePackage("Pkg", source.getPath(), false);
+        SymbolTable scope = compiler.staticAnalyzer.packageScope("Pkg");
+        assertNotNull(scope.bindings.get("inc"));
+        assertNotNull(scope.typeBindings.get("Interface'inc"));
+        assertNotNull(scope.bindings.get("dec"));
+
+        // edit the body of inc: it is unbound and bound again
+        writeFile(dir, "Pkg.bsv", functionPackage(inc2, dec));
+        compiler.reanalyzePackage("Pkg", source.getPath(), false);
+        scope = compiler.staticAnalyzer.packageScope("Pkg");
+        assertNotNull(scope.bindings.get("inc"));
+        assertNotNull(scope.typeBindings.get("Interface'inc"));
+
+        // rename inc to incr: the old name and its interface type go away
+        writeFile(dir, "Pkg.bsv", functionPackage(incr, dec));
+        compiler.reanalyzePackage("Pkg", source.getPath(), false);
+        scope = compiler.staticAnalyzer.packageScope("Pkg");
+        assertNull(scope.bindings.get("inc"));
+        assertNull(scope.typeBindings.get("Interface'inc"));
+        assertNotNull(scope.bindings.get("incr"));
+        assertNotNull(scope.typeBindings.get("Interface'incr"));
+
+        // delete dec
+        writeFile(dir, "Pkg.bsv", functionPackage(incr));
+        compiler.reanalyzePackage("Pkg", source.getPath(), false);
+        scope = compiler.staticAnalyzer.packageScope("Pkg");
+        assertNull(scope.bindings.get("dec"));
+        assertNull(scope.typeBindings.get("Interface'dec"));
+        assertNotNull(scope.bindings.get("incr"));
+    }
+
+    @org.junit.jupiter.api.Test
+    void reanalyzeCallersOfChangedFunctions() throws IOException {
+        String inc8 = "function Bit#(8) inc(Bit#(8) x);\n   return x + 1;\nendfunction\n";
+        String inc16 = "function Bit#(16) inc(Bit#(8) x);\n   return zeroExtend(x) + 1;\nendfunction\n";
+        String twice = "function Bit#(16) twice(Bit#(8) x);\n   let y = inc(x);\n   return zeroExtend(y);\nendfunction\n";
+        File dir = tempDir("reanalyzeCallers");
+        File source = writeFile(dir, "Pkg.bsv", functionPackage(inc8, twice));
+
+        Compiler compiler = new Compiler();
+        compiler.addSearchDir("lib");
+        compiler.addSearchDir(dir.getPath());
+        compiler.retainSources = true;
+        compiler.useSnapshot = false;
+        compiler.analyzePackage("Pkg", source.getPath(), false);
+        assertEquals("Bit(8)", localType(compiler, "Pkg", "twice", "y"));
+
+        // only inc changes, but the type of y in twice follows it
+        writeFile(dir, "Pkg.bsv", functionPackage(inc16, twice));
+        compiler.reanalyzePackage("Pkg", source.getPath(), false);
+        assertEquals("Bit(16)", localType(compiler, "Pkg", "twice", "y"));
+    }
+
+    private static String localType(Compiler compiler, String pkgName, String function, String var) {
+        BSVParser.PackagedefContext packagedef = (BSVParser.PackagedefContext)compiler.packages.get(pkgName);
+        for (BSVParser.PackagestmtContext stmt: packagedef.packagestmt()) {
+            BSVParser.FunctiondefContext functiondef = stmt.functiondef();
+            if (functiondef != null && functiondef.functionproto().name.getText().equals(function))
+                return compiler.staticAnalyzer.getScope(functiondef).lookup(var).type.prune().toString();
+        }
+        return null;
+    }
+
+    @org.junit.jupiter.api.Test
+    void daemonReanalyzesImporters() throws IOException {
+        String incA = "package A;\nfunction Bit#(8) inc(Bit#(8) x);\n   return x + 1;\nendfunction\nendpackage\n";
+        String incA16 = "package A;\nfunction Bit#(16) inc(Bit#(8) x);\n   return zeroExtend(x) + 1;\nendfunction\nendpackage\n";
+        String twiceB = "package B;\nimport A::*;\nfunction Bit#(16) twice(Bit#(8) x);\n"
+            + "   let y = inc(x);\n   return zeroExtend(y);\nendfunction\nendpackage\n";
+        File dir = tempDir("daemon");
+        File a = writeFile(dir, "A.bsv", incA);
+        File b = writeFile(dir, "B.bsv", twiceB);
+
+        Compiler compiler = new Compiler();
+        compiler.addSearchDir("lib");
+        compiler.addSearchDir(dir.getPath());
+        compiler.retainSources = true;
+        compiler.useSnapshot = false;
+        CompileDaemon daemon = new CompileDaemon(compiler);
+        // a request's -I directories are searched for that request only
+        assertEquals(0, daemon.compile(dir.getPath(), Arrays.asList("-I", "include", "-K", "kami1", "B.bsv")));
+        assertEquals(Arrays.asList("lib", dir.getPath()), compiler.searchDirs);
+
+        // change the signature of inc in A only: B, which calls it, is analyzed again
+        writeFile(dir, "A.bsv", incA16);
+        assertTrue(a.setLastModified(a.lastModified() + 2000));
+        assertEquals(0, daemon.compile(dir.getPath(), Arrays.asList("-K", "kami2", "B.bsv")));
+        String warmIR = compiler.generatedIR().get("B");
+
+        Compiler cold = new Compiler();
+        cold.addSearchDir("lib");
+        cold.addSearchDir(dir.getPath());
+        cold.useSnapshot = false;
+        cold.setKamiDir(new File(dir, "cold").getPath());
+        cold.analyzePackage("B", b.getPath(), true);
+        String coldIR = cold.generatedIR().get("B");
+
+        assertNotNull(warmIR);
+        assertNotNull(coldIR);
+        assertEquals(new String(Files.readAllBytes(new File(coldIR).toPath()), StandardCharsets.UTF_8),
+                     new String(Files.readAllBytes(new File(warmIR).toPath()), StandardCharsets.UTF_8));
+    }
+
+    @org.junit.jupiter.api.Test
+    void reachabilityFromTopModule() {
+        String text = "package Pkg;\n"
+            + "typeclass Shape#(type t);\n"
+            + "   function Bit#(8) area(t x);\n"
+            + "endtypeclass\n"
+            + "typedef struct { Bit#(8) w; } Square deriving (Bits);\n"
+            + "typedef struct { Bit#(8) r; } Circle deriving (Bits);\n"
+            + "instance Shape#(Square);\n"
+            + "   function Bit#(8) area(Square s);\n"
+            + "      return s.w * s.w;\n"
+            + "   endfunction\n"
+            + "endinstance\n"
+            + "instance Shape#(Circle);\n"
+            + "   function Bit#(8) area(Circle c);\n"
+            + "      return 3 * c.r * c.r;\n"
+            + "   endfunction\n"
+            + "endinstance\n"
+            + "function Bit#(8) helper(Bit#(8) x);\n"
+            + "   return x + 1;\n"
+            + "endfunction\n"
+            + "function Bit#(8) squareArea(Square s);\n"
+            + "   return area(s);\n"
+            + "endfunction\n"
+            + "module mkUnused(Empty);\n"
+            + "   rule show;\n"
+            + "      $display(helper(1));\n"
+            + "   endrule\n"
+            + "endmodule\n"
+            + "module mkTop(Empty);\n"
+            + "   rule show;\n"
+            + "      $display(squareArea(Square { w: 2 }));\n"
+            + "   endrule\n"
+            + "endmodule\n"
+            + "endpackage\n";
+        BSVParser parser = new BSVParser(new CommonTokenStream(new BSVLexer(CharStreams.fromString(text))));
+        BinopexprFolder.attach(parser);
+        BSVParser.PackagedefContext packagedef = parser.packagedef();
+        assertEquals(0, parser.getNumberOfSyntaxErrors());
+        Map<String, BSVParser.PackagedefContext> trees = new LinkedHashMap<>();
+        trees.put("Pkg", packagedef);
+        Reachability reachability = Reachability.compute("mkTop", "Pkg", trees);
+        assertNotNull(reachability);
+
+        Set<String> reachable = new TreeSet<>();
+        Set<String> skipped = new TreeSet<>();
+        for (BSVParser.PackagestmtContext stmt: packagedef.packagestmt()) {
+            String name = (stmt.typeclassinstance() != null)
+                ? "instance " + stmt.typeclassinstance().tctype(0).getText()
+                : Reachability.declaredNames(stmt).get(0);
+            (reachability.isReachable(stmt) ? reachable : skipped).add(name);
+        }
+        // helper is used only from mkUnused; the Square instance is reached through
+        // its typeclass and type, and the Circle one is not, since Circle is not
+        assertEquals(new TreeSet<>(Arrays.asList("Shape", "Square", "instance Square", "squareArea", "mkTop")), reachable);
+        assertEquals(new TreeSet<>(Arrays.asList("Circle", "instance Circle", "helper", "mkUnused")), skipped);
+        assertNull(Reachability.compute("mkMissing", "Pkg", trees));
+    }
+
+    private static Compiler interfaceCompiler(File dir) {
+        Compiler compiler = new Compiler();
+        compiler.addSearchDir("lib");
+        compiler.addSearchDir(dir.getPath());
+        compiler.setKamiDir(new File(dir, "kami").getPath());
+        compiler.useInterfaces = true;
+        compiler.useSnapshot = false;
+        return compiler;
+    }
+
+    @org.junit.jupiter.api.Test
+    void packageInterfaceRoundTrip() throws IOException {
+        File dir = tempDir("interface");
+        File source = writeFile(dir, "Pkg.bsv",
+                                "package Pkg;\n"
+                                + "typedef enum { Red, Green, Blue } Color deriving (Bits, Eq);\n"
+                                + "typedef struct { Bit#(8) x; Color c; } Pixel deriving (Bits);\n"
+                                + "function Bit#(8) inc(Bit#(8) x);\n"
+                                + "   return x + 1;\n"
+                                + "endfunction\n"
+                                + "function t first(t x, t y);\n"
+                                + "   return x;\n"
+                                + "endfunction\n"
+                                + "endpackage\n");
+        // the interface is only used if it is newer than the source
+        source.setLastModified(System.currentTimeMillis() - 10000);
+
+        Compiler compiler = interfaceCompiler(dir);
+        compiler.importPackage("Pkg");
+        File file = PackageInterface.interfaceFile(compiler, "Pkg", source.getPath());
+        assertTrue(file.exists());
+        assertTrue(new File(compiler.kamidir, "Pkg.generated.IR").exists());
+        SymbolTable analyzed = compiler.staticAnalyzer.packageScope("Pkg");
+
+        Compiler loading = interfaceCompiler(dir);
+        loading.importPackage("Prelude");
+        SymbolTable loaded = PackageInterface.load(loading, "Pkg", source.getPath());
+        assertNotNull(loaded);
+        assertEquals(analyzed.bindings.keySet(), loaded.bindings.keySet());
+        assertEquals(analyzed.typeBindings.keySet(), loaded.typeBindings.keySet());
+        for (String name: analyzed.bindings.keySet())
+            assertEquals(typeShape(analyzed.bindings.get(name).type), typeShape(loaded.bindings.get(name).type));
+        for (String name: analyzed.typeBindings.keySet())
+            assertEquals(typeShape(analyzed.typeBindings.get(name).type), typeShape(loaded.typeBindings.get(name).type));
+        assertEquals(analyzed.bindings.get("Blue").value.toString(), loaded.bindings.get("Blue").value.toString());
+
+        // a polymorphic function keeps its shape, and the type variables loaded are renamed
+        BSVType first = loaded.bindings.get("first").type;
+        assertEquals(typeShape(analyzed.bindings.get("first").type), typeShape(first));
+        assertEquals("Function", first.prune().name);
+        assertTrue(first.prune().params.get(0).prune().isVar);
+        assertFalse(first.toString().contains("$Pkg"), first.toString());
+    }
+
+    // the text of a type with its fresh type variables numbered in order of appearance
+    private static String typeShape(BSVType type) {
+        Matcher matcher = Pattern.compile("tvar[0-9]+(\\$\\w+)?").matcher(type.toString());
+        LinkedHashMap<String,String> names = new LinkedHashMap<>();
+        StringBuffer shape = new StringBuffer();
+        while (matcher.find()) {
+            names.putIfAbsent(matcher.group(), "v" + names.size());
+            matcher.appendReplacement(shape, names.get(matcher.group()));
+        }
+        matcher.appendTail(shape);
+        return shape.toString();
+    }
+
+    @org.junit.jupiter.api.Test
+    void stdlibSnapshotMatchesSource() throws IOException {
+        File dir = tempDir("snapshot");
+        File snapshotDir = new File(dir, "snapshot");
+        StdlibSnapshot.main(new String[] { snapshotDir.getPath(), "lib/GetPut.bsv", "lib/Connectable.bsv" });
+        File snapshotIR = new File(snapshotDir, "Connectable.generated.IR");
+        assertTrue(snapshotIR.exists());
+
+        Compiler compiler = new Compiler();
+        compiler.addSearchDir("lib");
+        compiler.setKamiDir(new File(dir, "source").getPath());
+        compiler.useSnapshot = false;
+        compiler.importPackage("Connectable");
+        File sourceIR = new File(compiler.kamidir, "Connectable.generated.IR");
+        byte[] expected = Files.readAllBytes(sourceIR.toPath());
+        assertArrayEquals(expected, Files.readAllBytes(snapshotIR.toPath()));
+
+        // extracting the same IR again leaves the file alone
+        assertTrue(sourceIR.setLastModified(sourceIR.lastModified() - 10000));
+        long lastModified = sourceIR.lastModified();
+        try (InputStream in = new FileInputStream(snapshotIR)) {
+            assertFalse(StdlibSnapshot.copyIfChanged(in, sourceIR));
+        }
+        assertEquals(lastModified, sourceIR.lastModified());
+
+        // and replaces IR that differs
+        writeFile(sourceIR.getParentFile(), sourceIR.getName(), "stale\n");
+        try (InputStream in = new FileInputStream(snapshotIR)) {
+            assertTrue(StdlibSnapshot.copyIfChanged(in, sourceIR));
+        }
+        assertArrayEquals(expected, Files.readAllBytes(sourceIR.toPath()));
+    }
+}